@@ -0,0 +1,98 @@
+/*
+ * Bounded log of the calls shown by CarreteraSim.
+ *
+ */
+package cc.carretera;
+
+import javax.swing.AbstractListModel;
+
+
+/*
+ * Ring buffer with the last lines of the call log. Once full, each
+ * new line overwrites the oldest one, so memory and the cost of
+ * showing the log do not grow with the length of the simulation.
+ *
+ * Like RoadView it is only used from the event dispatch thread, and
+ * listeners are notified once per display frame from flush(): the
+ * lines added since the last frame as an added interval at the end,
+ * and the oldest lines they overwrote as a removed interval at the
+ * start. Only when every line the listeners had was overwritten (the
+ * ring wrapped past all of them) is the whole log reported as changed.
+ */
+class CallLog extends AbstractListModel<String> {
+
+  private static final long serialVersionUID = 1L;
+
+  // Default number of lines kept
+  static final int DEFAULT_CAPACITY = 1000;
+
+  private final String[] lines;
+
+  // Index of the oldest line and number of lines kept
+  private int first = 0;
+  private int size = 0;
+
+  // Number of lines the listeners know of, how many of them have been
+  // overwritten since the last frame, and if lines were added since then
+  private int shown = 0;
+  private int evicted = 0;
+  private boolean dirty = false;
+
+  CallLog() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  CallLog(int capacity) {
+    this.lines = new String[capacity];
+  }
+
+  void add(String line) {
+    if (size < lines.length) {
+      lines[(first+size) % lines.length] = line;
+      ++size;
+    } else {
+      lines[first] = line;
+      first = (first+1) % lines.length;
+      if (evicted < shown) ++evicted;
+    }
+    dirty = true;
+  }
+
+  void clear() {
+    int oldShown = shown;
+    first = 0;
+    size = 0;
+    shown = 0;
+    evicted = 0;
+    dirty = false;
+    if (oldShown > 0) fireIntervalRemoved(this, 0, oldShown-1);
+  }
+
+  // Notify the listeners if lines were added since the last frame.
+  // Returns true if it did.
+  boolean flush() {
+    if (!dirty) return false;
+    if (shown > 0 && evicted == shown) {
+      // The ring wrapped past every line shown
+      if (size > shown) fireIntervalAdded(this, shown, size-1);
+      fireContentsChanged(this, 0, size-1);
+    } else {
+      if (evicted > 0) fireIntervalRemoved(this, 0, evicted-1);
+      fireIntervalAdded(this, shown-evicted, size-1);
+    }
+    shown = size;
+    evicted = 0;
+    dirty = false;
+    return true;
+  }
+
+  @Override
+  public int getSize() {
+    return size;
+  }
+
+  @Override
+  public String getElementAt(int index) {
+    return lines[(first+index) % lines.length];
+  }
+}
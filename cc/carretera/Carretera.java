@@ -1,6 +1,13 @@
 package cc.carretera;
 
-public interface Carretera {
+/**
+ * Operaciones que toda carretera ofrece. Las opcionales estan en
+ * interfaces aparte que cada implementacion declara si las admite:
+ * CarreteraConPlazo, CarreteraConPrioridad, CarreteraConSaltos,
+ * CarreteraConsultable, CarreteraObservable, CarreteraConEspera y
+ * CarreteraParalela. Quien las usa lo comprueba con instanceof.
+ */
+public interface Carretera extends AutoCloseable {
   /**
    * Un coche pide permiso para entrar en el primer segmento de la
    * carretera con una determinada velocidad
@@ -43,4 +50,35 @@ public interface Carretera {
    * le queda un tick menos para llegar al final de su segmento.
    */
   void tick();
+
+  /**
+   * Hace avanzar el tiempo n ticks de una vez, como n llamadas a tick
+   * seguidas sin ninguna otra operación entre ellas: se liberan los
+   * mismos coches, pero ninguno avanza hasta que terminan los n ticks.
+   *
+   * Por defecto llama n veces a tick.
+   *
+   * @param n número de ticks (0 no hace nada)
+   */
+  default void tick(int n) {
+    if (n < 0) {
+      throw new IllegalArgumentException("El numero de ticks no puede ser negativo: "+n);
+    }
+    for (int i = 0; i < n; i++) {
+      tick();
+    }
+  }
+
+  /**
+   * Cierra la carretera y libera sus recursos (hilos servidores,
+   * temporizadores). Los coches bloqueados en cualquier operación se
+   * despiertan y, como los que llamen después, fallan con
+   * CarreteraCerradaException. Cerrar una carretera ya cerrada no hace
+   * nada.
+   *
+   * Por defecto no hace nada, para las carreteras que no tienen
+   * recursos propios.
+   */
+  @Override
+  default void close() { }
 }
@@ -1,7 +1,11 @@
 package cc.carretera;
 
 import org.jcsp.lang.*;
+import org.jcsp.util.Buffer;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Implementación del recurso compartido Carretera con paso de mensajes.
@@ -9,53 +13,112 @@ import java.util.*;
  * @author Juan Francisco Casanova Ferrer
  * @author Ivan Carrion Lopez
  */
-public class CarreteraCSP implements Carretera, CSProcess {
+public class CarreteraCSP implements CarreteraConPlazo, CarreteraConPrioridad, CarreteraConSaltos,
+                                     CarreteraConsultable, CarreteraObservable, CarreteraConEspera,
+                                     CarreteraParalela, CSProcess {
   // Configuración de la carretera
   private final int segmentos;
   private final int carriles;
 
-  // Matriz que guarda los carriles ocupados
-  private final boolean[][] carrilesOcupados;
+  // Estado de cada segmento: carriles ocupados y cola de los coches que
+  // quieren avanzar desde el, por clases de prioridad (densa o dispersa,
+  // ver TablaSegmentos). Solo lo usa el servidor
+  private final TablaSegmentos<Segmento> estadoSegmentos;
 
-  // Mapa que guarda el nombre del coche y su estado actual en la carretera (posición y ticks en ese instante)
-  private final Map<String, EstadoCoche> coches;
+  // Cola de los coches que quieren entrar, por clases de prioridad.
+  // Solo la usa el servidor
+  private final Planificador<Peticion> colaEntrar;
 
-  // Declaración de canales
+  // Tabla que guarda el estado actual de cada coche en la carretera (posición y ticks en ese instante)
+  private final TablaCoches<Void> coches;
+
+  // Posiciones de los coches para las consultas, que no pasan por el
+  // servidor (lo actualiza el servidor)
+  private final IndicePosiciones indice;
+
+  // Observador de los cambios de estado (null si no hay ninguno),
+  // solo lo usa el servidor
+  private volatile ObservadorCarretera observador;
+
+  // Como esperan los coches la respuesta del servidor en circulando y
+  // avanzar antes de bloquearse
+  private volatile EstrategiaEspera estrategia = EstrategiaEspera.BLOQUEAR;
+
+  // Pool en el que el servidor reparte los ticks entre las particiones
+  // de los coches (null para aplicarlos en el propio servidor)
+  private volatile ForkJoinPool pool;
+
+  // Hilos en los que se ejecutan los servidores. Al cerrar una carretera
+  // su hilo vuelve al pool y lo reutiliza la siguiente que se cree
+  private static final ExecutorService SERVIDORES = Executors.newCachedThreadPool(r -> {
+      Thread hilo = new Thread(r, "carretera-servidor");
+      hilo.setDaemon(true);
+      return hilo;
+    });
+
+  // Respuesta del servidor a las peticiones pendientes al cerrarse
+  private static final Object CERRADA = new Object();
+
+  // Fuerza del veneno con el que se cierran los canales de peticiones
+  private static final int VENENO = 1;
+
+  // Declaración de canales. Los de peticiones se pueden envenenar para
+  // cerrar la carretera
   Any2OneChannel canalTick;
   Any2OneChannel canalCircular;
   Any2OneChannel canalEntrar;
   Any2OneChannel canalAvanzar;
   Any2OneChannel canalSalir;
+  Any2OneChannel canalCancelar;
+  Any2OneChannel canalCerrar;
 
   /**
    * Constructor.
-   * Inicialización de los atributos de la carretera.
+   * Inicialización de los atributos de la carretera. Las carreteras muy
+   * largas usan la representacion dispersa de los segmentos.
    *
    * @param segmentos numero de segmentos en los que se divide la carretera.
    * @param carriles numero de carriles en la carretera.
    */
   public CarreteraCSP(int segmentos, int carriles) {
+    this(segmentos, carriles, segmentos > TablaSegmentos.UMBRAL_DISPERSA);
+  }
+
+  /**
+   * Constructor.
+   * Inicialización de los atributos de la carretera.
+   *
+   * @param segmentos numero de segmentos en los que se divide la carretera.
+   * @param carriles numero de carriles en la carretera.
+   * @param dispersa si solo se guarda el estado de los segmentos con coches o esperas.
+   */
+  public CarreteraCSP(int segmentos, int carriles, boolean dispersa) {
     this.segmentos = segmentos;
     this.carriles = carriles;
 
-    // En la matriz de carriles ocupados ignoramos la posicion 0
-    // Esto es poque los carriles y segmentos empiezan a contar por el numero 1
-    this.carrilesOcupados = new boolean[segmentos + 1][carriles + 1];
+    // Cada segmento tiene sus carriles y la cola de los que quieren
+    // avanzar desde el (o salir, desde el ultimo)
+    this.estadoSegmentos = new TablaSegmentos<>(segmentos, dispersa, () -> new Segmento(carriles));
+    this.colaEntrar = new Planificador<>();
 
-    // Inicializar mapa de coches
-    this.coches = new HashMap<>();
+    // Inicializar tabla de coches y su indice de posiciones
+    this.coches = new TablaCoches<>();
+    this.indice = new IndicePosiciones(segmentos, carriles);
 
     // Creación de canales para comunicación con el servidor
-    canalTick = Channel.any2one();
-    canalSalir = Channel.any2one();
-    canalEntrar = Channel.any2one();
-    canalCircular = Channel.any2one();
-    canalAvanzar = Channel.any2one();
+    canalTick = Channel.any2one(0);
+    canalSalir = Channel.any2one(0);
+    canalEntrar = Channel.any2one(0);
+    canalCircular = Channel.any2one(0);
+    canalAvanzar = Channel.any2one(0);
+    canalCancelar = Channel.any2one(0);
+    canalCerrar = Channel.any2one(0);
 
     // Puesta en marcha del servidor: alternativa sucia (desde el
     // punto de vista de CSP) a Parallel que nos ofrece JCSP para
-    // poner en marcha un CSProcess
-    new ProcessManager(this).start();
+    // poner en marcha un CSProcess. Usamos un hilo del pool de
+    // servidores, que se devuelve al cerrar la carretera
+    SERVIDORES.execute(this::run);
   }
 
   /**
@@ -67,17 +130,96 @@ public class CarreteraCSP implements Carretera, CSProcess {
    * @return La posicion en la que entra el coche.
    */
   public Pos entrar(String car, int tks) {
+    return entrar(car, tks, Prioridad.NORMAL);
+  }
+
+  /**
+   * El coche entra en la carretera si hay hueco, esperando en la cola
+   * de su clase de prioridad.
+   *
+   * @param car nombre del coche
+   * @param tks número de ticks necesarios para atravesar un segmento (velocidad)
+   * @param prioridad clase de prioridad del coche
+   *
+   * @return La posicion en la que entra el coche.
+   */
+  public Pos entrar(String car, int tks, Prioridad prioridad) {
     // Creamos un canal para que el servidor nos envie la respuesta
     One2OneChannel canalRespuesta = Channel.one2one();
 
     // Guardamos los datos que enviamos en la peticion
-    Peticion peticion = new Peticion(canalRespuesta, car, tks);
+    Peticion peticion = new Peticion(canalRespuesta, car, tks, prioridad);
 
     // Enviamos la peticion al servidor para entrar
-    canalEntrar.out().write(peticion);
+    enviar(canalEntrar, peticion);
 
     // Esperamos la respuesta del servidor una vez haya un carril libre en el primer segmento
-    return (Pos) canalRespuesta.in().read();
+    return (Pos) respuesta(canalRespuesta);
+  }
+
+  /**
+   * El coche entra en la carretera solo si hay hueco en este momento.
+   *
+   * @param car nombre del coche
+   * @param tks número de ticks necesarios para atravesar un segmento (velocidad)
+   *
+   * @return La posicion en la que entra el coche, o null si no hay hueco.
+   */
+  public Pos tryEntrar(String car, int tks) {
+    // Creamos un canal para que el servidor nos envie la respuesta
+    One2OneChannel canalRespuesta = Channel.one2one();
+
+    // Guardamos los datos que enviamos en la peticion, que no debe aplazarse
+    Peticion peticion = new Peticion(canalRespuesta, car, tks, true);
+
+    // Enviamos la peticion al servidor para entrar
+    enviar(canalEntrar, peticion);
+
+    // El servidor responde inmediatamente, con null si no hay hueco
+    return (Pos) respuesta(canalRespuesta);
+  }
+
+  /**
+   * El coche entra en la carretera si hay hueco antes de timeout milisegundos.
+   *
+   * @param car nombre del coche
+   * @param tks número de ticks necesarios para atravesar un segmento (velocidad)
+   * @param timeout tiempo máximo de espera en milisegundos
+   *
+   * @return La posicion en la que entra el coche, o null si se acaba el tiempo.
+   */
+  public Pos entrar(String car, int tks, long timeout) {
+    if (timeout <= 0) {
+      return tryEntrar(car, tks);
+    }
+
+    // El canal de respuesta tiene un buffer: si se nos acaba el tiempo
+    // mientras el servidor nos responde, el servidor no debe bloquearse
+    One2OneChannel canalRespuesta = Channel.one2one(new Buffer(1));
+
+    // Guardamos los datos que enviamos en la peticion
+    Peticion peticion = new Peticion(canalRespuesta, car, tks);
+
+    // Enviamos la peticion al servidor para entrar
+    enviar(canalEntrar, peticion);
+
+    // Esperamos la respuesta o a que se acabe el plazo
+    CSTimer reloj = new CSTimer();
+    reloj.setAlarm(reloj.read() + timeout);
+    Alternative espera = new Alternative(new Guard[] {canalRespuesta.in(), reloj});
+    if (espera.priSelect() == 1) {
+      // Se ha acabado el plazo: pedimos al servidor que retire la
+      // peticion. Si ya nos habia concedido la entrada la respuesta
+      // esta en el buffer, si no nos respondera null. Si la carretera
+      // se ha cerrado el servidor ya nos ha respondido
+      try {
+        canalCancelar.out().write(peticion);
+      } catch (PoisonException e) {
+        // La respuesta ya esta en el buffer
+      }
+    }
+
+    return (Pos) respuesta(canalRespuesta);
   }
 
   /**
@@ -89,17 +231,31 @@ public class CarreteraCSP implements Carretera, CSProcess {
    * @return La siguiente posicion del coche.
    */
   public Pos avanzar(String car, int tks) {
+    return avanzar(car, tks, Prioridad.NORMAL);
+  }
+
+  /**
+   * El coche avanza al siguiente segmento si hay hueco, esperando en la
+   * cola de su clase de prioridad.
+   *
+   * @param car identificador del coche
+   * @param tks número de ticks necesarios para atravesar un segmento (velocidad)
+   * @param prioridad clase de prioridad del coche
+   *
+   * @return La siguiente posicion del coche.
+   */
+  public Pos avanzar(String car, int tks, Prioridad prioridad) {
     // Creamos un canal para que el servidor nos envie la respuesta
     One2OneChannel canalRespuesta = Channel.one2one();
 
     // Guardamos los datos que enviamos en la peticion
-    Peticion peticion = new Peticion(canalRespuesta, car, tks);
+    Peticion peticion = new Peticion(canalRespuesta, car, tks, prioridad);
 
     // Enviamos la peticion al servidor para avanzar
-    canalAvanzar.out().write(peticion);
+    enviar(canalAvanzar, peticion);
 
     // Esperamos la respuesta del servidor una vez haya un carril libre en el siguiente segmento
-    return (Pos) canalRespuesta.in().read();
+    return (Pos) respuestaConEstrategia(canalRespuesta);
   }
 
   /**
@@ -113,7 +269,7 @@ public class CarreteraCSP implements Carretera, CSProcess {
     Peticion peticion = new Peticion(car);
 
     // Enviamos la peticion para salir de la carretera al servidor
-    canalSalir.out().write(peticion);
+    enviar(canalSalir, peticion);
   }
 
   /**
@@ -129,10 +285,10 @@ public class CarreteraCSP implements Carretera, CSProcess {
     Peticion peticion = new Peticion(canalRespuesta, car);
 
     // Enviamos la peticion al servidor para que circule
-    canalCircular.out().write(peticion);
+    enviar(canalCircular, peticion);
 
     // Esperamos la respuesta del servidor una vez el coche tenga 0 ticks
-    canalRespuesta.in().read();
+    respuestaConEstrategia(canalRespuesta);
   }
 
   /**
@@ -140,8 +296,179 @@ public class CarreteraCSP implements Carretera, CSProcess {
    * Si un coche ya tiene cero ticks, continua con cero ticks.
    */
   public void tick() {
-    // Enviamos una peticion al servidor para que se ejecute un tick del reloj
-    canalTick.out().write(null);
+    tick(1);
+  }
+
+  /**
+   * Disminuye n ticks para todos los coches en circulacion con una sola
+   * peticion al servidor.
+   *
+   * @param n numero de ticks
+   */
+  public void tick(int n) {
+    if (n < 0) {
+      throw new IllegalArgumentException("El numero de ticks no puede ser negativo: "+n);
+    }
+    // Enviamos una peticion al servidor para que se ejecuten n ticks del reloj
+    enviar(canalTick, n);
+  }
+
+  /**
+   * Avanza los ticks que le quedan al coche que menos tiene.
+   *
+   * @return El numero de ticks avanzados (0 si no circula ningun coche).
+   */
+  public int tickHastaVencimiento() {
+    // En lugar del numero de ticks enviamos el canal por el que el
+    // servidor nos dira cuantos ha avanzado
+    One2OneChannel canalRespuesta = Channel.one2one();
+    enviar(canalTick, canalRespuesta);
+    return (Integer) respuesta(canalRespuesta);
+  }
+
+  /**
+   * Cierra la carretera: el servidor responde con un fallo a todas las
+   * peticiones aplazadas, envenena los canales de peticiones y termina,
+   * devolviendo su hilo al pool.
+   */
+  public void close() {
+    One2OneChannel canalRespuesta = Channel.one2one();
+    try {
+      canalCerrar.out().write(canalRespuesta);
+    } catch (PoisonException e) {
+      // Ya estaba cerrada
+      return;
+    }
+    // Esperamos a que el servidor haya terminado
+    canalRespuesta.in().read();
+  }
+
+  /**
+   * Como respuesta, pero antes de bloquearse en la lectura espera a que
+   * el servidor tenga la respuesta segun la estrategia de espera.
+   */
+  private Object respuestaConEstrategia(One2OneChannel canalRespuesta) {
+    if (estrategia != EstrategiaEspera.BLOQUEAR) {
+      AltingChannelInput entrada = canalRespuesta.in();
+      estrategia.esperar(entrada::pending);
+    }
+    return respuesta(canalRespuesta);
+  }
+
+  /**
+   * Aplica n ticks seguidos en el servidor y responde a las peticiones
+   * de circular de los coches que se quedan con 0 ticks.
+   */
+  private void aplicarTicks(int n, Map<String, Peticion> peticionesCircular) {
+    // Coches que se quedan con 0 ticks, con el tick en el que les llega
+    // a 0. Con muchos coches y un pool, los bloques de la tabla se
+    // recorren en los hilos del pool
+    List<TablaCoches.Vencido<Void>> liberados = coches.aplicarTicks(n, pool);
+
+    // Desbloqueamos de circulando a los coches con 0 ticks. Si todavia
+    // no han pedido circular se les respondera al pedirlo
+    for (TablaCoches.Vencido<Void> liberado : liberados) {
+      Peticion circular = peticionesCircular.remove(liberado.id);
+      if (circular != null) {
+        circular.getCanalRespuesta().out().write(null);
+      }
+    }
+
+    // El observador recibe los mismos eventos que con n ticks
+    if (observador != null) {
+      liberados.sort(Comparator.comparingInt(liberado -> liberado.tick));
+      int tick = 0;
+      for (TablaCoches.Vencido<Void> liberado : liberados) {
+        for (; tick < liberado.tick; tick++) {
+          observador.tick();
+        }
+        observador.liberacion(liberado.id);
+      }
+      for (; tick < n; tick++) {
+        observador.tick();
+      }
+    }
+  }
+
+  /**
+   * Envia una peticion al servidor.
+   *
+   * @throws CarreteraCerradaException si la carretera esta cerrada
+   */
+  private static void enviar(Any2OneChannel canal, Object peticion) {
+    try {
+      canal.out().write(peticion);
+    } catch (PoisonException e) {
+      throw new CarreteraCerradaException();
+    }
+  }
+
+  /**
+   * Espera la respuesta del servidor a una peticion.
+   *
+   * @throws CarreteraCerradaException si la carretera se ha cerrado
+   */
+  private static Object respuesta(One2OneChannel canalRespuesta) {
+    Object respuesta = canalRespuesta.in().read();
+    if (respuesta == CERRADA) {
+      throw new CarreteraCerradaException();
+    }
+    return respuesta;
+  }
+
+  /**
+   * @return El coche que ocupa la posicion, o null si esta libre. No
+   *         pasa por el servidor.
+   */
+  public String cocheEn(Pos pos) {
+    return indice.cocheEn(pos);
+  }
+
+  /**
+   * @return La posicion del coche, o null si no esta en la carretera.
+   *         No pasa por el servidor.
+   */
+  public Pos posicion(String id) {
+    return indice.posicion(id);
+  }
+
+  /**
+   * @return El numero de carriles ocupados del segmento. No pasa por el servidor.
+   */
+  public int ocupacion(int segmento) {
+    return indice.ocupacion(segmento);
+  }
+
+  /**
+   * Registra el observador de los cambios de estado de la carretera.
+   * Debe llamarse antes de empezar a usar la carretera.
+   *
+   * @param observador observador de la carretera (null para ninguno)
+   */
+  public void observar(ObservadorCarretera observador) {
+    this.observador = observador;
+  }
+
+  /**
+   * Reparte cada tick entre los hilos del pool: el servidor recorre la
+   * tabla de coches por particiones en paralelo (si hay suficientes
+   * coches) y despues responde a los que vencen. Debe llamarse antes de
+   * empezar a usar la carretera.
+   *
+   * @param pool pool en el que se aplican los ticks (null para aplicarlos en el servidor)
+   */
+  public void tickParalelo(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Elige como esperan los coches la respuesta del servidor en
+   * circulando y avanzar antes de bloquearse en la lectura.
+   *
+   * @param estrategia estrategia de espera de los coches
+   */
+  public void esperarCon(EstrategiaEspera estrategia) {
+    this.estrategia = estrategia;
   }
 
   /**
@@ -149,16 +476,9 @@ public class CarreteraCSP implements Carretera, CSProcess {
    */
   public void run() {
 
-    // Cola de peticiones aplazadas para entrar, avanzar, y salir (una por cada segmento)
-    // 0 --> Los que desean entrar al segmento 1
-    // 1 --> Los que desean avanzar al segmento 2
-    // 2 --> Los que desean avanzar al segmento 3
-    // ...
-    // N --> Los que desean salir
-    Queue<Peticion>[] colasPeticiones = new Queue[segmentos + 1];
-    for (int i = 0; i < colasPeticiones.length; i++) {
-      colasPeticiones[i] = new LinkedList<>();
-    }
+    // Las peticiones aplazadas para entrar estan en colaEntrar, y las de
+    // avanzar y salir en la cola del segmento desde el que se avanza
+    // (o se sale, en el ultimo)
 
     // Peticiones aplazadas para circular
     HashMap<String, Peticion> peticionesCircular = new HashMap<>();
@@ -169,41 +489,38 @@ public class CarreteraCSP implements Carretera, CSProcess {
     final int ENTRAR = 2;
     final int AVANZAR = 3;
     final int SALIR = 4;
+    final int CANCELAR = 5;
+    final int CERRAR = 6;
 
     // Calculo de las guardas
-    Guard[] entradas = new Guard[5];
+    Guard[] entradas = new Guard[7];
     entradas[TICK] = canalTick.in();
     entradas[CIRCULAR] = canalCircular.in();
     entradas[ENTRAR] = canalEntrar.in();
     entradas[AVANZAR] = canalAvanzar.in();
     entradas[SALIR] = canalSalir.in();
+    entradas[CANCELAR] = canalCancelar.in();
+    entradas[CERRAR] = canalCerrar.in();
 
     // Servicios alternativos
     Alternative servicios = new Alternative(entradas);
 
-    // Bucle principal del servidor
+    // Bucle principal del servidor, hasta que se cierra la carretera
     Peticion peticion;
-    while (true) {
+    boolean cerrada = false;
+    while (!cerrada) {
       switch (servicios.fairSelect()) {
 
         case TICK:
-          canalTick.in().read();
-
-          // Para cada coche en la carretera
-          for (Map.Entry<String, EstadoCoche> coche : coches.entrySet()) {
-
-            // Si el coche tiene mas de 1 tick
-            if (coche.getValue().getTks() > 0) {
-
-              // Actualizamos el numero de ticks (uno menos)
-              coche.getValue().setTks(coche.getValue().getTks() - 1);
-
-              // Si el coche tiene 0 ticks, desbloqueamos de circulando
-              if (coche.getValue().getTks() == 0) {
-                One2OneChannel canalRespuesta = peticionesCircular.get(coche.getKey()).getCanalRespuesta();
-                canalRespuesta.out().write(null);
-              }
-            }
+          // Numero de ticks, o canal de respuesta si hay que avanzar
+          // hasta el primer vencimiento
+          Object orden = canalTick.in().read();
+          if (orden instanceof One2OneChannel) {
+            int n = coches.primerVencimiento();
+            aplicarTicks(n, peticionesCircular);
+            ((One2OneChannel) orden).out().write(n);
+          } else {
+            aplicarTicks((Integer) orden, peticionesCircular);
           }
           break;
 
@@ -212,31 +529,50 @@ public class CarreteraCSP implements Carretera, CSProcess {
           peticion = (Peticion) canalCircular.in().read();
           String id = peticion.getId();
 
-          // Aplazamos la peticion de circular
-          peticionesCircular.put(id, peticion);
+          // Si el coche ya ha llegado al final del segmento respondemos
+          // inmediatamente, si no aplazamos la peticion de circular
+          if (coches.getTks(coches.manejador(id)) == 0) {
+            peticion.getCanalRespuesta().out().write(null);
+          } else {
+            peticionesCircular.put(id, peticion);
+          }
           break;
 
         case ENTRAR:
           // Obtenemos la peticion
           peticion = (Peticion) canalEntrar.in().read();
 
-          // Colocamos la peticion en la cola de los que quieren entrar
-          colasPeticiones[0].add(peticion);
+          // Una peticion sin espera se rechaza si no puede atenderse ya
+          // (si hay otros esperando tampoco hay hueco para ella)
+          if (peticion.isSinEspera() && (!colaEntrar.isEmpty() || carrilLibre(1) == 0)) {
+            peticion.getCanalRespuesta().out().write(null);
+            break;
+          }
+
+          if (observador != null) {
+            observador.solicitud(peticion.getId(), 1);
+          }
+
+          // Colocamos la peticion en la cola de su clase de los que quieren entrar
+          colaEntrar.add(peticion.getPrioridad(), peticion);
 
           // Actualizamos el estado de la carretera y las colas de peticiones
-          colasPeticiones = actualizacion(0, colasPeticiones);
+          actualizacion(0);
           break;
 
         case AVANZAR:
           // Obtenemos la peticion y el segmento actual desde el que se avanza
           peticion = (Peticion) canalAvanzar.in().read();
-          int segmentoActual = coches.get(peticion.getId()).getPosicion().getSegmento();
+          int segmentoActual = coches.getSegmento(coches.manejador(peticion.getId()));
+          if (observador != null) {
+            observador.solicitud(peticion.getId(), segmentoActual + 1);
+          }
 
           // Colocamos la peticion en su cola correspondiente
-          colasPeticiones[segmentoActual].add(peticion);
+          estadoSegmentos.get(segmentoActual).cola.add(peticion.getPrioridad(), peticion);
 
           // Actualizamos el estado de la carretera y las colas de peticiones
-          colasPeticiones = actualizacion(segmentoActual, colasPeticiones);
+          actualizacion(segmentoActual);
           break;
 
         case SALIR:
@@ -244,113 +580,177 @@ public class CarreteraCSP implements Carretera, CSProcess {
           peticion = (Peticion) canalSalir.in().read();
 
           // Colocamos la peticion en la cola de los que quieren salir
-          colasPeticiones[segmentos].add(peticion);
+          estadoSegmentos.get(segmentos).cola.add(peticion.getPrioridad(), peticion);
 
           // Actualizamos el estado de la carretera y las colas de peticiones
-          colasPeticiones = actualizacion(segmentos, colasPeticiones);
+          actualizacion(segmentos);
+          break;
+
+        case CANCELAR:
+          // Obtenemos la peticion de entrar cuyo plazo se ha acabado
+          peticion = (Peticion) canalCancelar.in().read();
+
+          // Si sigue en la cola la retiramos y respondemos que no ha
+          // entrado. Si no, ya se le respondio con su posicion
+          if (colaEntrar.remove(peticion)) {
+            if (observador != null) {
+              observador.abandono(peticion.getId(), 1);
+            }
+            peticion.getCanalRespuesta().out().write(null);
+          }
+          break;
+
+        case CERRAR:
+          One2OneChannel canalCerrada = (One2OneChannel) canalCerrar.in().read();
+
+          // Respondemos con un fallo a todas las peticiones aplazadas
+          List<Planificador<Peticion>> colas = new ArrayList<>();
+          colas.add(colaEntrar);
+          for (Segmento segmento : estadoSegmentos.activos()) {
+            colas.add(segmento.cola);
+          }
+          for (Planificador<Peticion> cola : colas) {
+            for (Peticion aplazada : cola) {
+              if (aplazada.getCanalRespuesta() != null) {
+                aplazada.getCanalRespuesta().out().write(CERRADA);
+              }
+            }
+            cola.clear();
+          }
+          for (Peticion aplazada : peticionesCircular.values()) {
+            aplazada.getCanalRespuesta().out().write(CERRADA);
+          }
+          peticionesCircular.clear();
+
+          // Envenenamos los canales: quien este esperando para enviar una
+          // peticion, o la envie despues, falla
+          for (Any2OneChannel canal : new Any2OneChannel[] {canalTick, canalCircular, canalEntrar, canalAvanzar,
+                                                            canalSalir, canalCancelar, canalCerrar}) {
+            canal.in().poison(VENENO);
+          }
+
+          cerrada = true;
+          canalCerrada.out().write(null);
           break;
       }
     }
   }
 
   /**
-   * Metodo recursivo que hace entrar, avanzar, y salir a los coches.
+   * Metodo que hace entrar, avanzar, y salir a los coches.
    * Cuando un coche avanza o sale, avisa a los anteriores que ha dejado un hueco libre.
+   * Recorre los segmentos hacia atras solo mientras se mueve algun coche,
+   * porque si en un segmento no queda ningun hueco nuevo los coches del
+   * anterior siguen sin poder avanzar (asi no se recorre la carretera
+   * entera en cada peticion).
    *
    * Este método no incumple la regla de cambiar el estado del recurso exclusivamente desde dentro del servidor,
    * ya que solo se invoca desde dentro del servidor.
    *
-   * @param colasPeticiones Array que almacena colas de cochees esperando a ir al siguiente segmento.
    * @param segmentoActual Segmento emn el que está el coche:
    *                       - Si segmento == 0, quiere entrar.
    *                       - Si segmento < num segmentos, quiere avanzar.
    *                       - Si segmento == ultimo segmento, quiere salir.
-   *
-   * @return Las colas actualizadas
    */
-  private Queue<Peticion>[] actualizacion(int segmentoActual, Queue<Peticion>[] colasPeticiones) {
+  private void actualizacion(int segmentoActual) {
+
+    // Si en el segmento actual queda algun hueco nuevo
+    boolean hueco = true;
 
-    // Variable para return
-    Queue<Peticion>[] colasPeticionesActualizadas = null;
+    for (; hueco && segmentoActual >= 0; segmentoActual--) {
 
-    // Caso base para parar la recursividad
-    // Si el segmento actual es el correspondiente para entrar
-    if (segmentoActual == 0) {
+      // Si el segmento actual es el correspondiente para entrar
+      if (segmentoActual == 0) {
 
-      // Por cada coche que quiera entrar y mientras haya hueco en el siguiente carril
-      int sizeCola = colasPeticiones[segmentoActual].size();
-      for (int i = 0; i < sizeCola && carrilLibre(segmentoActual + 1) != 0; i++) {
+        // Por cada coche que quiera entrar y mientras haya hueco en el siguiente carril
+        while (!colaEntrar.isEmpty() && carrilLibre(1) != 0) {
 
-        // Obtenemos y eliminamos al primer coche de la cola para entrar
-        Peticion peticion = colasPeticiones[segmentoActual].poll();
+          // Obtenemos y eliminamos al coche al que le toca entrar
+          Peticion peticion = colaEntrar.poll();
 
-        // Comprobamos cual es el carril libre y asignamos la nueva posicion al coche
-        int carrilLibre = carrilLibre(1);
-        Pos posicion = new Pos(1, carrilLibre);
+          // Comprobamos cual es el carril libre y asignamos la nueva posicion al coche
+          int carrilLibre = carrilLibre(1);
+          Pos posicion = new Pos(1, carrilLibre);
 
-        // Introducimos el coche en la carretera
-        EstadoCoche estado = new EstadoCoche(posicion, peticion.getTicks());
-        coches.put(peticion.getId(), estado);
-        carrilesOcupados[1][carrilLibre] = true;
+          // Introducimos el coche en la carretera
+          coches.alta(peticion.getId(), 1, carrilLibre, peticion.getTicks(), null);
+          ocupar(1, carrilLibre);
+          indice.ocupar(peticion.getId(), posicion);
 
-        // Liberamos al coche del bloqueo
-        peticion.getCanalRespuesta().out().write(posicion);
+          if (observador != null) {
+            observador.concesion(peticion.getId(), posicion, peticion.getTicks());
+          }
+
+          // Liberamos al coche del bloqueo
+          peticion.getCanalRespuesta().out().write(posicion);
+        }
+        continue;
       }
 
-      // Se devuelve las listas de peticiones y se rompe la recursividad
-      colasPeticionesActualizadas = colasPeticiones;
-    }
+      // Un segmento sin estado no tiene coches que quieran moverse
+      Segmento segmento = estadoSegmentos.get(segmentoActual);
+      hueco = false;
+      if (segmento == null) {
+        continue;
+      }
+
+      // Para salir
+      if (segmentoActual == segmentos) {
 
-    // Caso recursivo particular, para salir
-    else if (segmentoActual == segmentos) {
+        // Por cada coche que quiera salir
+        while (!segmento.cola.isEmpty()) {
 
-      // Por cada coche que quiera salir
-      int sizeCola = colasPeticiones[segmentoActual].size();
-      for (int i = 0; i < sizeCola; i++) {
+          // Obtenemos y eliminamos al primer coche de la cola para salir
+          Peticion peticion = segmento.cola.poll();
 
-        // Obtenemos y eliminamos al primer coche de la cola para salir
-        Peticion peticion = colasPeticiones[segmentoActual].poll();
+          // Eliminamos al coche de la carretera
+          int coche = coches.manejador(peticion.getId());
+          Pos posicionActual = coches.getPosicion(coche);
+          coches.baja(coche);
+          indice.liberar(peticion.getId(), posicionActual);
+          hueco = true;
 
-        // Eliminamos al coche de la carretera
-        int carrilActual = coches.get(peticion.getId()).getPosicion().getCarril();
-        carrilesOcupados[segmentoActual][carrilActual] = false;
-        coches.remove(peticion.getId());
+          if (observador != null) {
+            observador.salida(peticion.getId(), posicionActual);
+          }
+
+          desocupar(segmentoActual, posicionActual.getCarril());
+        }
       }
 
-      // Llamada recursiva a los coches del anterior carril
-      colasPeticionesActualizadas = actualizacion(segmentoActual - 1, colasPeticiones);
-    }
+      // Para avanzar
+      else {
 
-    // Caso recursivo general, para avanzar
-    // Si el segmento actual es el correspondiente para avanzar
-    else if (0 < segmentoActual  && segmentoActual < segmentos) {
+        // Por cada coche que quiera avanzar y mientras haya hueco en el siguiente carril
+        while (!segmento.cola.isEmpty() && carrilLibre(segmentoActual + 1) != 0) {
 
-      // Por cada coche que quiera avanzar y mientras haya hueco en el siguiente carril
-      int sizeCola = colasPeticiones[segmentoActual].size();
-      for (int i = 0; i < sizeCola && carrilLibre(segmentoActual + 1) != 0; i++) {
+          // Obtenemos y eliminamos al coche al que le toca avanzar
+          Peticion peticion = segmento.cola.poll();
 
-        // Obtenemos y eliminamos al primer coche de la cola para avanzar
-        Peticion peticion = colasPeticiones[segmentoActual].poll();
+          // Comprobamos cual es el carril libre y asignamos la nueva posicion al coche
+          int carrilLibre = carrilLibre(segmentoActual + 1);
+          Pos posicion = new Pos(segmentoActual + 1, carrilLibre);
 
-        // Comprobamos cual es el carril libre y asignamos la nueva posicion al coche
-        int carrilLibre = carrilLibre(segmentoActual + 1);
-        Pos posicion = new Pos(segmentoActual + 1, carrilLibre);
+          // Actualizamos el estado del coche en la carretera, liberando el
+          // carril que ocupaba (no tiene por que ser el mismo que el nuevo)
+          int coche = coches.manejador(peticion.getId());
+          int carrilAnterior = coches.getCarril(coche);
+          coches.mover(coche, segmentoActual + 1, carrilLibre, peticion.getTicks());
+          indice.mover(peticion.getId(), new Pos(segmentoActual, carrilAnterior), posicion);
+          ocupar(segmentoActual + 1, carrilLibre);
+          hueco = true;
 
-        // Actualizamos el estado del coche en la carretera
-        coches.get(peticion.getId()).setPosicion(posicion);
-        coches.get(peticion.getId()).setTks(peticion.getTicks());
-        carrilesOcupados[segmentoActual + 1][carrilLibre] = true;
-        carrilesOcupados[segmentoActual][carrilLibre] = false;
+          if (observador != null) {
+            observador.concesion(peticion.getId(), posicion, peticion.getTicks());
+          }
 
-        // Liberamos al coche del bloqueo
-        peticion.getCanalRespuesta().out().write(posicion);
-      }
+          // Liberamos al coche del bloqueo
+          peticion.getCanalRespuesta().out().write(posicion);
 
-      // Llamada recursiva a los coches del anterior carril
-      colasPeticionesActualizadas = actualizacion(segmentoActual - 1, colasPeticiones);
+          desocupar(segmentoActual, carrilAnterior);
+        }
+      }
     }
-
-    return colasPeticionesActualizadas;
   }
 
   /**
@@ -358,9 +758,14 @@ public class CarreteraCSP implements Carretera, CSProcess {
    *         Si no hay carril libre, devuelve 0.
    */
   private Integer carrilLibre(Integer siguienteSegmento) {
+    // Un segmento sin estado no tiene coches
+    Segmento segmento = estadoSegmentos.get(siguienteSegmento);
+    if (segmento == null) {
+      return 1;
+    }
     int carrilLibre = 0;
     for (int carril = 1; carril <= carriles; carril++) {
-      if (!carrilesOcupados[siguienteSegmento][carril]) {
+      if (!segmento.ocupados[carril]) {
         carrilLibre = carril;
         break;
       }
@@ -369,47 +774,62 @@ public class CarreteraCSP implements Carretera, CSProcess {
   }
 
   /**
-   * Clase que guarda el estado de un coche dentro de la carretera:
-   * - Posicion: la posicion del coche en la carretera
-   * - Tks: numero de ticks que tiene el coche actualmente
+   * Marca un carril como ocupado.
    */
-  private static class EstadoCoche {
-    private Pos posicion;
-    private Integer tks;
-
-    public EstadoCoche(Pos posicion, Integer tks) {
-      this.posicion = posicion;
-      this.tks = tks;
-    }
+  private void ocupar(int segmento, int carril) {
+    Segmento estado = estadoSegmentos.obtener(segmento);
+    estado.ocupados[carril] = true;
+    estado.coches++;
+  }
 
-    public Pos getPosicion() {
-      return posicion;
+  /**
+   * Marca un carril como libre, y retira el segmento de la tabla si se
+   * queda sin coches ni peticiones.
+   */
+  private void desocupar(int segmento, int carril) {
+    Segmento estado = estadoSegmentos.get(segmento);
+    estado.ocupados[carril] = false;
+    estado.coches--;
+    if (estado.vacio()) {
+      estadoSegmentos.liberar(segmento);
     }
+  }
 
-    public Integer getTks() {
-      return tks;
-    }
+  /**
+   * Clase que guarda el estado de un segmento:
+   * - Ocupados: carriles ocupados (ignoramos la posicion 0, los carriles empiezan en 1)
+   * - Coches: numero de carriles ocupados
+   * - Cola: peticiones aplazadas para avanzar desde el segmento (o salir,
+   *   desde el ultimo), por clases de prioridad
+   */
+  private static class Segmento {
+    private final boolean[] ocupados;
+    private int coches;
+    private final Planificador<Peticion> cola = new Planificador<>();
 
-    public void setPosicion(Pos posicion) {
-      this.posicion = posicion;
+    public Segmento(int carriles) {
+      this.ocupados = new boolean[carriles + 1];
     }
 
-    public void setTks(Integer tks) {
-      this.tks = tks;
+    public boolean vacio() {
+      return coches == 0 && cola.isEmpty();
     }
   }
 
-
   /**
    * Clase que guarda una peticion:
    * - CanalRespuesta: canal por el que se da respuesta a la peticion.
    * - Id: nombre del coche
    * - Tks: numero maximo de ticks del coche
+   * - SinEspera: si la peticion debe rechazarse en lugar de aplazarse
+   * - Prioridad: clase en cuya cola espera la peticion
    */
   private static class Peticion {
     private One2OneChannel canalRespuesta;
     private final String id;
     private Integer ticks;
+    private boolean sinEspera;
+    private Prioridad prioridad = Prioridad.NORMAL;
 
     // Constructor para entrar y avanzar
     public Peticion(One2OneChannel canalRespuesta, String id, Integer ticks) {
@@ -418,6 +838,18 @@ public class CarreteraCSP implements Carretera, CSProcess {
       this.ticks = ticks;
     }
 
+    // Constructor para entrar y avanzar con prioridad
+    public Peticion(One2OneChannel canalRespuesta, String id, Integer ticks, Prioridad prioridad) {
+      this(canalRespuesta, id, ticks);
+      this.prioridad = prioridad;
+    }
+
+    // Constructor para entrar sin espera
+    public Peticion(One2OneChannel canalRespuesta, String id, Integer ticks, boolean sinEspera) {
+      this(canalRespuesta, id, ticks);
+      this.sinEspera = sinEspera;
+    }
+
     // Constructor para circulando
     public Peticion(One2OneChannel canalRespuesta, String id) {
       this.canalRespuesta = canalRespuesta;
@@ -440,5 +872,13 @@ public class CarreteraCSP implements Carretera, CSProcess {
     public Integer getTicks() {
       return ticks;
     }
+
+    public boolean isSinEspera() {
+      return sinEspera;
+    }
+
+    public Prioridad getPrioridad() {
+      return prioridad;
+    }
   }
 }
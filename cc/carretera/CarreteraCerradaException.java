@@ -0,0 +1,14 @@
+package cc.carretera;
+
+/**
+ * Excepción que lanzan las operaciones de una Carretera que se ha
+ * cerrado, tanto las que estaban bloqueadas al cerrarla como las que
+ * se invocan después.
+ */
+public class CarreteraCerradaException extends IllegalStateException {
+  private static final long serialVersionUID = 1L;
+
+  public CarreteraCerradaException() {
+    super("La carretera está cerrada");
+  }
+}
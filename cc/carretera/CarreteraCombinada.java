@@ -0,0 +1,697 @@
+package cc.carretera;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Implementación del recurso compartido Carretera con combinacion
+ * (flat combining).
+ *
+ * Cada hilo tiene un registro en el que publica sus peticiones (entrar,
+ * avanzar, salir, circulando, tick). En lugar de entrar cada uno en la
+ * zona de exclusion mutua, el hilo que consigue el cerrojo (el
+ * combinador) recorre todos los registros y aplica de una vez todas las
+ * peticiones publicadas, y despues despierta a los hilos cuyas
+ * peticiones ha completado. Los demas no compiten por el cerrojo:
+ * esperan a que alguien complete su peticion.
+ *
+ * Las peticiones que no se pueden completar (no hay carril libre, el
+ * coche todavia tiene ticks) quedan apuntadas en la cola del segmento
+ * al que se quiere entrar o en el estado del coche, y las completa el
+ * combinador que aplica la peticion que las desbloquea.
+ *
+ * Asi el cerrojo cambia de hilo una vez por lote en lugar de una vez
+ * por operacion, y el estado de la carretera lo toca un solo hilo
+ * seguido, sin llevarlo de una cache a otra en cada operacion.
+ *
+ * El combinador solo recorre los registros de los hilos que estan
+ * publicando: los que llevan un tiempo sin hacerlo salen de la lista y
+ * vuelven a entrar al publicar otra vez, y un contador de peticiones
+ * pendientes dice sin recorrerla si queda alguna por aplicar.
+ */
+public class CarreteraCombinada implements CarreteraConPlazo, CarreteraConSaltos,
+                                           CarreteraConsultable, CarreteraObservable,
+                                           CarreteraConEspera, CarreteraParalela {
+  // Operaciones que se publican en los registros
+  private static final int ENTRAR = 1;
+  private static final int TRY_ENTRAR = 2;
+  private static final int AVANZAR = 3;
+  private static final int SALIR = 4;
+  private static final int CIRCULANDO = 5;
+  private static final int TICK = 6;
+  private static final int TICK_HASTA_VENCIMIENTO = 7;
+
+  // Respuesta a las peticiones pendientes al cerrarse
+  private static final Object CERRADA = new Object();
+
+  // Combinaciones sin publicar nada tras las que se retira un registro
+  // de la lista (su hilo lo vuelve a añadir al publicar)
+  private static final int COMBINACIONES_INACTIVO = 32;
+
+  private final int carriles;
+
+  // Estado de cada segmento: carriles ocupados y peticiones esperando
+  // para entrar en el (densa o dispersa, ver TablaSegmentos)
+  private final TablaSegmentos<Segmento> estadoSegmentos;
+
+  // Estado de los coches, con el registro del hilo que espera en
+  // circulando (null si no espera)
+  private final TablaCoches<Registro> coches;
+
+  // Posiciones de los coches para las consultas, que no publican
+  // peticiones (lo actualiza el combinador)
+  private final IndicePosiciones indice;
+
+  // Cerrojo del combinador: solo lo tiene quien aplica las peticiones
+  private final ReentrantLock combinador = new ReentrantLock();
+
+  // Lista de registros activos: los hilos se añaden al principio, y solo
+  // el combinador retira los que llevan tiempo sin publicar
+  private final AtomicReference<Registro> registros = new AtomicReference<>();
+
+  // Peticiones publicadas que el combinador todavia no ha visto. Se
+  // cuenta antes de publicar, asi que nunca se queda corto: si es 0 no
+  // hay ninguna y no hace falta recorrer la lista
+  private final AtomicInteger pendientes = new AtomicInteger(0);
+
+  // Combinaciones hechas, solo la usa el combinador
+  private int combinaciones = 0;
+
+  // Registro de cada hilo en esta carretera
+  private final ThreadLocal<Registro> registro = ThreadLocal.withInitial(this::registrar);
+
+  // Observador de los cambios de estado (null si no hay ninguno)
+  private volatile ObservadorCarretera observador;
+
+  // Como esperan los hilos a que se complete su peticion antes de aparcarse
+  private volatile EstrategiaEspera estrategia = EstrategiaEspera.BLOQUEAR;
+
+  // Pool en el que se reparten los ticks (null para aplicarlos en el combinador)
+  private volatile ForkJoinPool pool;
+
+  // Si se ha cerrado la carretera
+  private volatile boolean cerrada = false;
+
+  /**
+   * Constructor.
+   * Las carreteras muy largas usan la representacion dispersa de los
+   * segmentos.
+   *
+   * @param segmentos numero de segmentos en los que se divide la carretera.
+   * @param carriles numero de carriles en la carretera.
+   */
+  public CarreteraCombinada(int segmentos, int carriles) {
+    this.carriles = carriles;
+    this.estadoSegmentos = new TablaSegmentos<>(segmentos, segmentos > TablaSegmentos.UMBRAL_DISPERSA,
+                                                () -> new Segmento(carriles));
+    this.coches = new TablaCoches<>();
+    this.indice = new IndicePosiciones(segmentos, carriles);
+  }
+
+  public Pos entrar(String id, int tks) {
+    return (Pos) ejecutar(ENTRAR, id, tks, -1);
+  }
+
+  public Pos tryEntrar(String id, int tks) {
+    return (Pos) ejecutar(TRY_ENTRAR, id, tks, -1);
+  }
+
+  /**
+   * El coche entra en la carretera si hay hueco antes de timeout milisegundos.
+   *
+   * @return La posicion en la que entra el coche, o null si se acaba el tiempo.
+   */
+  public Pos entrar(String id, int tks, long timeout) {
+    if (timeout <= 0) {
+      return tryEntrar(id, tks);
+    }
+    return (Pos) ejecutar(ENTRAR, id, tks, System.nanoTime() + timeout * 1_000_000);
+  }
+
+  public Pos avanzar(String id, int tks) {
+    return (Pos) ejecutar(AVANZAR, id, tks, -1);
+  }
+
+  public void circulando(String id) {
+    ejecutar(CIRCULANDO, id, 0, -1);
+  }
+
+  public void salir(String id) {
+    ejecutar(SALIR, id, 0, -1);
+  }
+
+  public void tick() {
+    tick(1);
+  }
+
+  public void tick(int n) {
+    if (n < 0) {
+      throw new IllegalArgumentException("El numero de ticks no puede ser negativo: "+n);
+    }
+    ejecutar(TICK, null, n, -1);
+  }
+
+  public int tickHastaVencimiento() {
+    return (Integer) ejecutar(TICK_HASTA_VENCIMIENTO, null, 0, -1);
+  }
+
+  /**
+   * @return El coche que ocupa la posicion, o null si esta libre. No
+   *         publica ninguna peticion.
+   */
+  public String cocheEn(Pos pos) {
+    return indice.cocheEn(pos);
+  }
+
+  /**
+   * @return La posicion del coche, o null si no esta en la carretera.
+   *         No publica ninguna peticion.
+   */
+  public Pos posicion(String id) {
+    return indice.posicion(id);
+  }
+
+  /**
+   * @return El numero de carriles ocupados del segmento. No publica ninguna peticion.
+   */
+  public int ocupacion(int segmento) {
+    return indice.ocupacion(segmento);
+  }
+
+  /**
+   * Registra el observador de los cambios de estado de la carretera.
+   * Los eventos los notifica el combinador, en el orden en el que
+   * aplica las peticiones.
+   *
+   * @param observador observador de la carretera (null para ninguno)
+   */
+  public void observar(ObservadorCarretera observador) {
+    this.observador = observador;
+  }
+
+  /**
+   * Elige como esperan los hilos a que el combinador complete su
+   * peticion antes de aparcarse.
+   *
+   * @param estrategia estrategia de espera de los coches
+   */
+  public void esperarCon(EstrategiaEspera estrategia) {
+    this.estrategia = estrategia;
+  }
+
+  /**
+   * Reparte cada tick entre los hilos del pool (si hay suficientes
+   * coches), ver TablaCoches.
+   *
+   * @param pool pool en el que se aplican los ticks (null para aplicarlos en el combinador)
+   */
+  public void tickParalelo(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Cierra la carretera: las peticiones que esperan, y las que se hagan
+   * despues, fallan con CarreteraCerradaException.
+   */
+  public void close() {
+    combinador.lock();
+    try {
+      if (!cerrada) {
+        cerrada = true;
+        for (Segmento segmento : estadoSegmentos.activos()) {
+          for (Registro r : segmento.cola) {
+            completar(r, CERRADA);
+          }
+          segmento.cola.clear();
+        }
+        for (int coche = 0; coche < coches.limite(); coche++) {
+          Registro r = coches.getDato(coche);
+          if (r != null) {
+            completar(r, CERRADA);
+            coches.setDato(coche, null);
+          }
+        }
+      }
+      combinar();
+    } finally {
+      soltar();
+    }
+  }
+
+  /**
+   * Publica una peticion en el registro del hilo y espera a que se
+   * complete, combinando si consigue el cerrojo.
+   *
+   * @param plazo System.nanoTime() en el que se deja de esperar (negativo sin plazo)
+   *
+   * @return La respuesta a la peticion.
+   */
+  private Object ejecutar(int operacion, String id, int tks, long plazo) {
+    if (cerrada) {
+      throw new CarreteraCerradaException();
+    }
+    Registro r = registro.get();
+    r.operacion = operacion;
+    r.id = id;
+    r.tks = tks;
+    r.resultado = null;
+    r.hecha = false;
+    if (!r.enLista) {
+      insertar(r);
+    }
+    pendientes.incrementAndGet();
+    // Escritura volatil: publica los campos anteriores al combinador
+    r.pendiente = true;
+    // El combinador puede haber retirado el registro justo antes de ver
+    // la peticion: o la ve al retirarlo, o vemos aqui que ya no esta
+    if (!r.enLista) {
+      insertar(r);
+    }
+
+    while (!r.hecha) {
+      // Mientras nadie haya visto la peticion intentamos aplicarla
+      // nosotros. Si ya esta apuntada (esperando un carril o a que
+      // venza el segmento) la completara otro combinador
+      if (r.pendiente && combinador.tryLock()) {
+        try {
+          combinar();
+        } finally {
+          soltar();
+        }
+        continue;
+      }
+
+      // Alguien esta combinando: esperamos a que complete la peticion
+      if (estrategia.esperar(() -> r.hecha)) {
+        break;
+      }
+      if (plazo < 0) {
+        LockSupport.park(this);
+      } else {
+        long resto = plazo - System.nanoTime();
+        if (resto <= 0) {
+          caducar(r);
+          break;
+        }
+        LockSupport.parkNanos(this, resto);
+      }
+    }
+
+    Object resultado = r.resultado;
+    r.resultado = null;
+    if (resultado == CERRADA) {
+      throw new CarreteraCerradaException();
+    }
+    if (resultado instanceof RuntimeException) {
+      throw (RuntimeException) resultado;
+    }
+    return resultado;
+  }
+
+  /**
+   * Suelta el cerrojo del combinador. Una peticion publicada mientras se
+   * combinaba puede no haberse visto, y su hilo puede haberse aparcado al
+   * no conseguir el cerrojo: si queda alguna, se vuelve a combinar (si
+   * otro hilo coge el cerrojo antes, la vera el).
+   */
+  private void soltar() {
+    combinador.unlock();
+    while (hayPendientes() && combinador.tryLock()) {
+      int aplicadas;
+      try {
+        aplicadas = combinar();
+      } finally {
+        combinador.unlock();
+      }
+      if (aplicadas == 0) {
+        // Hay un hilo a mitad de publicar: le dejamos terminar
+        Thread.yield();
+      }
+    }
+  }
+
+  private boolean hayPendientes() {
+    return pendientes.get() > 0;
+  }
+
+  /**
+   * Aplica todas las peticiones publicadas. Se invoca con el cerrojo del
+   * combinador.
+   *
+   * Los registros que llevan COMBINACIONES_INACTIVO combinaciones sin
+   * publicar (hilos esperando en circulando o en una cola, o que ya han
+   * terminado) se retiran al pasar por ellos, asi que la lista que se
+   * recorre es la de los hilos que estan publicando, no la de todos los
+   * que han usado la carretera.
+   *
+   * @return El numero de peticiones aplicadas.
+   */
+  private int combinar() {
+    int combinacion = ++combinaciones;
+    int aplicadas = 0;
+    Registro anterior = null;
+    Registro siguiente;
+    for (Registro r = registros.get(); r != null; r = siguiente) {
+      siguiente = r.siguiente;
+      if (r.pendiente) {
+        tomar(r, combinacion);
+        aplicadas++;
+      } else if (anterior != null && combinacion - r.combinacion > COMBINACIONES_INACTIVO) {
+        // Nunca retiramos el primero, que es el unico que cambian los
+        // hilos al añadirse. Si el hilo ha publicado mientras, o lo ve
+        // fuera de la lista y se vuelve a añadir, o vemos aqui la peticion
+        anterior.siguiente = siguiente;
+        r.enLista = false;
+        if (r.pendiente) {
+          tomar(r, combinacion);
+          aplicadas++;
+        }
+        continue;
+      }
+      anterior = r;
+    }
+    return aplicadas;
+  }
+
+  private void tomar(Registro r, int combinacion) {
+    r.pendiente = false;
+    r.combinacion = combinacion;
+    pendientes.decrementAndGet();
+    aplicar(r);
+  }
+
+  /**
+   * Aplica una peticion: la completa, o la deja apuntada hasta que se
+   * pueda completar.
+   */
+  private void aplicar(Registro r) {
+    if (cerrada) {
+      completar(r, CERRADA);
+      return;
+    }
+    try {
+      switch (r.operacion) {
+        case ENTRAR:
+        case TRY_ENTRAR:
+          aplicarEntrar(r);
+          break;
+        case AVANZAR:
+          aplicarAvanzar(r);
+          break;
+        case SALIR:
+          aplicarSalir(r);
+          break;
+        case CIRCULANDO:
+          aplicarCirculando(r);
+          break;
+        case TICK:
+          aplicarTicks(r.tks);
+          completar(r, null);
+          break;
+        case TICK_HASTA_VENCIMIENTO:
+          int n = coches.primerVencimiento();
+          aplicarTicks(n);
+          completar(r, n);
+          break;
+        default:
+          throw new IllegalStateException("Operacion desconocida "+r.operacion);
+      }
+    } catch (RuntimeException e) {
+      // El fallo es de quien hizo la peticion
+      completar(r, e);
+    }
+  }
+
+  private void aplicarEntrar(Registro r) {
+    // Si hay otros esperando tampoco hay hueco para el
+    Segmento primero = estadoSegmentos.get(1);
+    boolean hueco = primero == null || (primero.cola.isEmpty() && carrilLibre(1) != 0);
+    if (!hueco && r.operacion == TRY_ENTRAR) {
+      completar(r, null);
+      return;
+    }
+    if (observador != null) {
+      observador.solicitud(r.id, 1);
+    }
+    if (hueco) {
+      conceder(r, 1);
+    } else {
+      estadoSegmentos.obtener(1).cola.add(r);
+    }
+  }
+
+  private void aplicarAvanzar(Registro r) {
+    int siguiente = coches.getSegmento(coches.manejador(r.id)) + 1;
+    if (observador != null) {
+      observador.solicitud(r.id, siguiente);
+    }
+    Segmento segmento = estadoSegmentos.obtener(siguiente);
+    if (segmento.cola.isEmpty() && carrilLibre(siguiente) != 0) {
+      conceder(r, siguiente);
+      servir(siguiente - 1);
+    } else {
+      segmento.cola.add(r);
+    }
+  }
+
+  private void aplicarSalir(Registro r) {
+    int coche = coches.manejador(r.id);
+    Pos posicion = coches.getPosicion(coche);
+    coches.baja(coche);
+    indice.liberar(r.id, posicion);
+    desocupar(posicion.getSegmento(), posicion.getCarril());
+    if (observador != null) {
+      observador.salida(r.id, posicion);
+    }
+    completar(r, null);
+    servir(posicion.getSegmento());
+  }
+
+  private void aplicarCirculando(Registro r) {
+    int coche = coches.manejador(r.id);
+    if (coches.getTks(coche) == 0) {
+      completar(r, null);
+    } else {
+      coches.setDato(coche, r);
+    }
+  }
+
+  /**
+   * Aplica n ticks y completa las peticiones de circular de los coches
+   * que se quedan con 0 ticks.
+   */
+  private void aplicarTicks(int n) {
+    List<TablaCoches.Vencido<Registro>> liberados = coches.aplicarTicks(n, pool);
+
+    // El observador recibe los mismos eventos que con n llamadas a tick
+    if (observador != null) {
+      liberados.sort(Comparator.comparingInt(liberado -> liberado.tick));
+      int tick = 0;
+      for (TablaCoches.Vencido<Registro> liberado : liberados) {
+        for (; tick < liberado.tick; tick++) {
+          observador.tick();
+        }
+        observador.liberacion(liberado.id);
+      }
+      for (; tick < n; tick++) {
+        observador.tick();
+      }
+    }
+
+    for (TablaCoches.Vencido<Registro> liberado : liberados) {
+      if (liberado.dato != null) {
+        coches.setDato(coches.manejador(liberado.id), null);
+        completar(liberado.dato, null);
+      }
+    }
+  }
+
+  /**
+   * Mete al coche de la peticion en un carril libre del segmento, y
+   * libera el que ocupaba en el anterior.
+   */
+  private void conceder(Registro r, int segmento) {
+    int carril = carrilLibre(segmento);
+    Pos posicion = new Pos(segmento, carril);
+    ocupar(segmento, carril);
+    if (segmento == 1) {
+      coches.alta(r.id, 1, carril, r.tks, null);
+      indice.ocupar(r.id, posicion);
+    } else {
+      int coche = coches.manejador(r.id);
+      int carrilAnterior = coches.getCarril(coche);
+      coches.mover(coche, segmento, carril, r.tks);
+      indice.mover(r.id, new Pos(segmento - 1, carrilAnterior), posicion);
+      desocupar(segmento - 1, carrilAnterior);
+    }
+    if (observador != null) {
+      observador.concesion(r.id, posicion, r.tks);
+    }
+    completar(r, posicion);
+  }
+
+  /**
+   * Concede los carriles libres del segmento a las peticiones que
+   * esperan para entrar en el, en orden de llegada. Cada coche que
+   * avanza deja un hueco en el segmento anterior, asi que se sigue hacia
+   * atras mientras se mueva algun coche.
+   */
+  private void servir(int segmento) {
+    for (; segmento >= 1; segmento--) {
+      Segmento estado = estadoSegmentos.get(segmento);
+      if (estado == null) {
+        return;
+      }
+      boolean movido = false;
+      while (!estado.cola.isEmpty() && carrilLibre(segmento) != 0) {
+        conceder(estado.cola.poll(), segmento);
+        movido = true;
+      }
+      if (!movido) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Retira de la cola de entrada la peticion de un hilo al que se le ha
+   * acabado el plazo, si no se ha completado ya.
+   */
+  private void caducar(Registro r) {
+    combinador.lock();
+    try {
+      // Puede que la peticion no se haya aplicado todavia
+      combinar();
+      if (!r.hecha) {
+        Segmento primero = estadoSegmentos.get(1);
+        primero.cola.remove(r);
+        if (primero.vacio()) {
+          estadoSegmentos.liberar(1);
+        }
+        if (observador != null) {
+          observador.abandono(r.id, 1);
+        }
+        completar(r, null);
+      }
+    } finally {
+      soltar();
+    }
+  }
+
+  /**
+   * Da la respuesta a una peticion y despierta a su hilo.
+   */
+  private static void completar(Registro r, Object resultado) {
+    r.resultado = resultado;
+    r.hecha = true;
+    if (r.hilo != Thread.currentThread()) {
+      LockSupport.unpark(r.hilo);
+    }
+  }
+
+  // Crea el registro del hilo actual, que se añade a la lista al publicar
+  private Registro registrar() {
+    return new Registro(Thread.currentThread());
+  }
+
+  // Añade el registro del hilo actual al principio de la lista
+  private void insertar(Registro r) {
+    r.enLista = true;
+    Registro primero;
+    do {
+      primero = registros.get();
+      r.siguiente = primero;
+    } while (!registros.compareAndSet(primero, r));
+  }
+
+  /**
+   * @return El numero del primer carril libre.
+   *         Si no hay carril libre, devuelve 0.
+   */
+  private int carrilLibre(int segmento) {
+    // Un segmento sin estado no tiene coches
+    Segmento estado = estadoSegmentos.get(segmento);
+    if (estado == null) {
+      return 1;
+    }
+    for (int carril = 1; carril <= carriles; carril++) {
+      if (!estado.ocupados[carril]) {
+        return carril;
+      }
+    }
+    return 0;
+  }
+
+  private void ocupar(int segmento, int carril) {
+    Segmento estado = estadoSegmentos.obtener(segmento);
+    estado.ocupados[carril] = true;
+    estado.coches++;
+  }
+
+  /**
+   * Marca un carril como libre, y retira el segmento de la tabla si se
+   * queda sin coches ni peticiones.
+   */
+  private void desocupar(int segmento, int carril) {
+    Segmento estado = estadoSegmentos.get(segmento);
+    estado.ocupados[carril] = false;
+    estado.coches--;
+    if (estado.vacio()) {
+      estadoSegmentos.liberar(segmento);
+    }
+  }
+
+  /**
+   * Clase que guarda el estado de un segmento:
+   * - Ocupados: carriles ocupados (ignorando la posicion 0)
+   * - Coches: numero de carriles ocupados
+   * - Cola: peticiones esperando para entrar en el segmento, en orden de llegada
+   */
+  private static class Segmento {
+    private final boolean[] ocupados;
+    private int coches;
+    private final ArrayDeque<Registro> cola = new ArrayDeque<>();
+
+    public Segmento(int carriles) {
+      this.ocupados = new boolean[carriles + 1];
+    }
+
+    public boolean vacio() {
+      return coches == 0 && cola.isEmpty();
+    }
+  }
+
+  /**
+   * Clase que guarda el registro de un hilo:
+   * - Hilo: hilo al que pertenece
+   * - Siguiente: siguiente registro de la lista
+   * - EnLista: si esta en la lista (lo pone a false el combinador al retirarlo)
+   * - Combinacion: ultima combinacion que aplico una peticion suya (solo la usa el combinador)
+   * - Operacion, Id, Tks: ultima peticion publicada
+   * - Pendiente: si el combinador todavia no ha visto la peticion
+   * - Resultado: respuesta a la peticion (Pos, Integer, null, CERRADA o una excepcion)
+   * - Hecha: si la peticion se ha completado
+   */
+  private static final class Registro {
+    private final Thread hilo;
+    private volatile Registro siguiente;
+    private volatile boolean enLista;
+    private int combinacion;
+    private int operacion;
+    private String id;
+    private int tks;
+    private volatile boolean pendiente;
+    private Object resultado;
+    private volatile boolean hecha;
+
+    public Registro(Thread hilo) {
+      this.hilo = hilo;
+    }
+  }
+}
@@ -0,0 +1,16 @@
+package cc.carretera;
+
+/**
+ * Carretera en la que se puede elegir como esperan los coches (ver
+ * EstrategiaEspera).
+ */
+public interface CarreteraConEspera extends Carretera {
+  /**
+   * Elige como esperan los coches antes de bloquearse en circulando y
+   * avanzar (ver EstrategiaEspera). Debe llamarse antes de empezar a
+   * usar la carretera. Por defecto los coches se bloquean sin esperar.
+   *
+   * @param estrategia estrategia de espera de los coches
+   */
+  void esperarCon(EstrategiaEspera estrategia);
+}
@@ -0,0 +1,32 @@
+package cc.carretera;
+
+/**
+ * Carretera en la que los coches pueden entrar sin esperar, o esperando
+ * como mucho un plazo, y no entrar si no hay hueco a tiempo.
+ */
+public interface CarreteraConPlazo extends Carretera {
+  /**
+   * Como entrar, pero sin bloquearse: el coche solo entra si en ese
+   * momento hay un carril libre en el primer segmento.
+   *
+   * @param id identificador del coche
+   * @param tks número de ticks necearios para atravesar un segmento (velocidad)
+   *
+   * @return posición que ocupa el coche, o null si no ha entrado
+   */
+  Pos tryEntrar(String id, int tks);
+
+  /**
+   * Como entrar, pero esperando como mucho timeout milisegundos a que
+   * haya un carril libre. Si se acaba el tiempo la petición se retira
+   * y el coche no entra. Con timeout menor o igual que 0 equivale a
+   * tryEntrar.
+   *
+   * @param id identificador del coche
+   * @param tks número de ticks necearios para atravesar un segmento (velocidad)
+   * @param timeout tiempo máximo de espera en milisegundos
+   *
+   * @return posición que ocupa el coche, o null si no ha entrado
+   */
+  Pos entrar(String id, int tks, long timeout);
+}
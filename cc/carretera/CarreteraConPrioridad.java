@@ -0,0 +1,34 @@
+package cc.carretera;
+
+/**
+ * Carretera con clases de prioridad (ver Prioridad): los coches esperan
+ * en la cola de su clase para entrar y avanzar.
+ */
+public interface CarreteraConPrioridad extends Carretera {
+  /**
+   * Como entrar, pero el coche espera en la cola de su clase de
+   * prioridad: los huecos del primer segmento se reparten entre las
+   * clases segun su peso (ver Prioridad). entrar(id, tks) equivale a
+   * entrar con prioridad NORMAL.
+   *
+   * @param id identificador del coche
+   * @param tks número de ticks necearios para atravesar un segmento (velocidad)
+   * @param prioridad clase de prioridad del coche
+   *
+   * @return posición (segmento/carril) que ocupa el coche, ver clase Pos
+   */
+  Pos entrar(String id, int tks, Prioridad prioridad);
+
+  /**
+   * Como avanzar, pero el coche espera en la cola de su clase de
+   * prioridad del siguiente segmento. avanzar(id, tks) equivale a
+   * avanzar con prioridad NORMAL.
+   *
+   * @param id identificador del coche
+   * @param tks número de ticks necearios para atravesar un segmento (velocidad)
+   * @param prioridad clase de prioridad del coche
+   *
+   * @return posición (segmento/carril) que ocupa el coche, ver clase Pos
+   */
+  Pos avanzar(String id, int tks, Prioridad prioridad);
+}
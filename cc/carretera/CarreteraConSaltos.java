@@ -0,0 +1,17 @@
+package cc.carretera;
+
+/**
+ * Carretera cuyo reloj puede saltarse los ticks en los que no se libera
+ * ningún coche.
+ */
+public interface CarreteraConSaltos extends Carretera {
+  /**
+   * Hace avanzar el tiempo hasta que a algún coche se le acaban los
+   * ticks (el de menos ticks de los que están circulando), saltándose
+   * los ticks en los que no se libera ningún coche. Si ningún coche
+   * está circulando no hace nada.
+   *
+   * @return El número de ticks que ha avanzado el tiempo.
+   */
+  int tickHastaVencimiento();
+}
@@ -0,0 +1,37 @@
+package cc.carretera;
+
+/**
+ * Carretera que se puede consultar (quien ocupa cada posicion y cuantos
+ * carriles de cada segmento estan ocupados) sin bloquear las demas
+ * operaciones.
+ */
+public interface CarreteraConsultable extends Carretera {
+  /**
+   * Consulta que coche ocupa una posicion. Se puede llamar a la vez que
+   * las demas operaciones sin bloquearlas ni esperar a que terminen.
+   *
+   * @param pos posicion (segmento/carril) que se consulta
+   *
+   * @return El coche que ocupa la posicion, o null si esta libre.
+   */
+  String cocheEn(Pos pos);
+
+  /**
+   * Consulta la posicion de un coche, como cocheEn.
+   *
+   * @param id identificador del coche
+   *
+   * @return La posicion del coche, o null si no esta en la carretera.
+   */
+  Pos posicion(String id);
+
+  /**
+   * Consulta cuantos carriles de un segmento estan ocupados, como
+   * cocheEn.
+   *
+   * @param segmento segmento que se consulta
+   *
+   * @return El numero de carriles ocupados del segmento.
+   */
+  int ocupacion(int segmento);
+}
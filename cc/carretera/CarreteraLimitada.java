@@ -0,0 +1,216 @@
+package cc.carretera;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Control de admision para una Carretera: limita el numero de coches
+ * que pueden estar esperando a la vez para entrar.
+ *
+ * Los coches que aceptan que se les rechace entran con admitir. Cuando
+ * ya hay maxEsperando coches esperando para entrar, los que llegan no se
+ * quedan esperando: solo entran si hay un carril libre en ese momento
+ * (tryEntrar), y si no admitir devuelve null y el coche se descarta.
+ * Asi una carretera saturada rechaza trafico en lugar de acumular hilos
+ * bloqueados sin limite.
+ *
+ * entrar sigue el contrato de Carretera: espera sin limite y siempre
+ * devuelve la posicion, aunque cuenta entre los que esperan. El resto de
+ * operaciones de Carretera y CarreteraConPlazo se delegan sin cambios en
+ * la carretera limitada. Las demas (observadores, estrategias de espera,
+ * consultas...) se configuran en la carretera limitada antes de
+ * envolverla, salvo las prioridades, que ofrece
+ * CarreteraLimitada.ConPrioridad.
+ */
+public class CarreteraLimitada implements CarreteraConPlazo {
+  // Carretera a la que se limita la entrada
+  private final CarreteraConPlazo carretera;
+
+  // Maximo de coches esperando para entrar
+  private final int maxEsperando;
+
+  // Coches esperando ahora mismo para entrar
+  private final AtomicInteger esperando = new AtomicInteger(0);
+
+  // Coches que no han entrado por no poder esperar
+  private final AtomicLong rechazados = new AtomicLong(0);
+
+  /**
+   * Constructor.
+   *
+   * @param carretera carretera a la que se limita la entrada
+   * @param maxEsperando maximo de coches esperando a la vez para entrar (0 para no esperar nunca)
+   */
+  public CarreteraLimitada(CarreteraConPlazo carretera, int maxEsperando) {
+    if (maxEsperando < 0) {
+      throw new IllegalArgumentException("maxEsperando no puede ser negativo: "+maxEsperando);
+    }
+    this.carretera = carretera;
+    this.maxEsperando = maxEsperando;
+  }
+
+  /**
+   * El coche entra en la carretera, esperando lo que haga falta como en
+   * la carretera limitada.
+   *
+   * @return La posicion en la que entra el coche.
+   */
+  public Pos entrar(String id, int tks) {
+    return contarEsperando(() -> carretera.entrar(id, tks));
+  }
+
+  public Pos tryEntrar(String id, int tks) {
+    return contar(carretera.tryEntrar(id, tks));
+  }
+
+  /**
+   * Como entrar, pero esperando como mucho timeout milisegundos.
+   *
+   * @return La posicion en la que entra el coche, o null si se acaba el
+   *         plazo.
+   */
+  public Pos entrar(String id, int tks, long timeout) {
+    if (timeout <= 0) {
+      return tryEntrar(id, tks);
+    }
+    return contarEsperando(() -> carretera.entrar(id, tks, timeout));
+  }
+
+  /**
+   * El coche entra en la carretera si hay hueco, esperando solo si
+   * caben mas coches en la cola de entrada.
+   *
+   * @return La posicion en la que entra el coche, o null si se le rechaza.
+   */
+  public Pos admitir(String id, int tks) {
+    if (!apuntarse()) {
+      return tryEntrar(id, tks);
+    }
+    try {
+      return carretera.entrar(id, tks);
+    } finally {
+      esperando.decrementAndGet();
+    }
+  }
+
+  /**
+   * Como admitir, pero esperando como mucho timeout milisegundos.
+   *
+   * @return La posicion en la que entra el coche, o null si se le
+   *         rechaza o se acaba el plazo.
+   */
+  public Pos admitir(String id, int tks, long timeout) {
+    if (timeout <= 0 || !apuntarse()) {
+      return tryEntrar(id, tks);
+    }
+    try {
+      return carretera.entrar(id, tks, timeout);
+    } finally {
+      esperando.decrementAndGet();
+    }
+  }
+
+  public Pos avanzar(String id, int tks) {
+    return carretera.avanzar(id, tks);
+  }
+
+  public void circulando(String id) {
+    carretera.circulando(id);
+  }
+
+  public void salir(String id) {
+    carretera.salir(id);
+  }
+
+  public void tick() {
+    carretera.tick();
+  }
+
+  public void tick(int n) {
+    carretera.tick(n);
+  }
+
+  public void close() {
+    carretera.close();
+  }
+
+  /**
+   * @return El numero de coches que no han podido entrar por estar
+   *         llena la cola de entrada (o por usar tryEntrar sin hueco).
+   */
+  public long getRechazados() {
+    return rechazados.get();
+  }
+
+  /**
+   * @return El numero de coches esperando ahora mismo para entrar.
+   */
+  public int getEsperando() {
+    return esperando.get();
+  }
+
+  // Cuenta al coche entre los que esperan mientras entra con entrada
+  Pos contarEsperando(Supplier<Pos> entrada) {
+    esperando.incrementAndGet();
+    try {
+      return entrada.get();
+    } finally {
+      esperando.decrementAndGet();
+    }
+  }
+
+  // Se apunta entre los que esperan si aun cabe en la cola de entrada
+  private boolean apuntarse() {
+    if (maxEsperando == 0) {
+      return false;
+    }
+    if (esperando.incrementAndGet() > maxEsperando) {
+      esperando.decrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  // Cuenta los rechazos de las entradas sin espera
+  private Pos contar(Pos posicion) {
+    if (posicion == null) {
+      rechazados.incrementAndGet();
+    }
+    return posicion;
+  }
+
+  /**
+   * CarreteraLimitada para una carretera con prioridades, que tambien
+   * las ofrece: los coches de todas las clases cuentan entre los que
+   * esperan.
+   */
+  public static class ConPrioridad extends CarreteraLimitada implements CarreteraConPrioridad {
+    // La carretera limitada, vista como carretera con prioridades
+    private final CarreteraConPrioridad prioridades;
+
+    /**
+     * Constructor.
+     *
+     * @param carretera carretera a la que se limita la entrada
+     * @param maxEsperando maximo de coches esperando a la vez para entrar (0 para no esperar nunca)
+     */
+    public <C extends CarreteraConPlazo & CarreteraConPrioridad> ConPrioridad(C carretera, int maxEsperando) {
+      super(carretera, maxEsperando);
+      this.prioridades = carretera;
+    }
+
+    /**
+     * Como entrar, pero el coche espera en la cola de su clase de prioridad.
+     *
+     * @return La posicion en la que entra el coche.
+     */
+    public Pos entrar(String id, int tks, Prioridad prioridad) {
+      return contarEsperando(() -> prioridades.entrar(id, tks, prioridad));
+    }
+
+    public Pos avanzar(String id, int tks, Prioridad prioridad) {
+      return prioridades.avanzar(id, tks, prioridad);
+    }
+  }
+}
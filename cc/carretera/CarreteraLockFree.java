@@ -0,0 +1,739 @@
+package cc.carretera;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Implementación del recurso compartido Carretera sin cerrojo global.
+ *
+ * - Los carriles ocupados de cada segmento son un mapa de bits en un
+ *   AtomicLongArray: un coche reserva un carril con un CAS sobre la
+ *   palabra del segmento, y lo libera con una sola operacion atomica.
+ * - El reloj es un AtomicLong: un tick es un incremento, y cada coche
+ *   guarda el tick en el que vence su segmento. Circulando espera
+ *   hasta que el reloj llega a ese tick; los que se aparcan se apuntan
+ *   en un indice por tick de vencimiento, y cada tick despierta solo a
+ *   los de los ticks que han pasado, sin recorrer todos los coches.
+ * - Solo los coches que encuentran su segmento lleno se apuntan en la
+ *   cola de espera del segmento y se aparcan con LockSupport. Quien
+ *   libera un carril coloca en el directamente al primero de la cola, y
+ *   libera a su vez el carril que ese coche deja en el segmento
+ *   anterior, asi que los que esperan entran en orden de llegada y un
+ *   carril nunca queda libre con coches esperandolo.
+ *
+ * Sin esperas, avanzar es un CAS para el carril nuevo, una operacion
+ * atomica para liberar el anterior y la lectura del reloj.
+ *
+ * Con un observador cada cambio de estado (el CAS que reserva o libera
+ * un carril, el que avanza el reloj) se hace junto con sus eventos bajo
+ * un cerrojo, para que lleguen en el orden real: observada deja de ser
+ * sin cerrojos, y solo sirve para comprobarla. Sin observador no se
+ * toma nunca.
+ */
+public class CarreteraLockFree implements CarreteraConPlazo, CarreteraConSaltos,
+                                          CarreteraConsultable, CarreteraObservable,
+                                          CarreteraConEspera, CarreteraParalela {
+  // Bits por palabra del mapa de carriles
+  private static final int BITS = 64;
+
+  private final int segmentos;
+  private final int carriles;
+
+  // Palabras del mapa de bits de cada segmento
+  private final int palabras;
+
+  // Mapa de bits de los carriles ocupados: el segmento s ocupa las
+  // palabras [s * palabras, (s + 1) * palabras), y el carril c es el
+  // bit c - 1
+  private final AtomicLongArray carrilesOcupados;
+
+  // Colas de espera de cada segmento, creadas la primera vez que alguien
+  // tiene que esperar en el
+  private final AtomicReferenceArray<Cola> colas;
+
+  // Reloj: el doble de los ticks transcurridos, mas 1 mientras se esta
+  // calculando un salto (tickHastaVencimiento)
+  private final AtomicLong reloj = new AtomicLong(0);
+
+  // Estado de los coches en la carretera
+  private final ConcurrentHashMap<String, Coche> coches = new ConcurrentHashMap<>();
+
+  // Hilos aparcados en circulando, por el tick en el que vence su segmento
+  private final ConcurrentSkipListMap<Long, ConcurrentLinkedQueue<Thread>> aparcados =
+    new ConcurrentSkipListMap<>();
+
+  // Posiciones de los coches para las consultas
+  private final IndicePosiciones indice;
+
+  // Observador de los cambios de estado (null si no hay), y cerrojo bajo
+  // el que se hacen los cambios y sus eventos mientras lo haya
+  private volatile ObservadorCarretera observador = null;
+  private final ReentrantLock eventos = new ReentrantLock();
+
+  // Si se ha cerrado la carretera
+  private volatile boolean cerrada = false;
+
+  // Como esperan los coches en circulando y avanzar antes de aparcarse
+  private volatile EstrategiaEspera estrategia = EstrategiaEspera.BLOQUEAR;
+
+  // Pool en el que se despierta a los coches que vencen, si son muchos
+  // (null para despertarlos en el hilo del reloj)
+  private volatile ForkJoinPool pool;
+
+  /**
+   * Constructor.
+   *
+   * @param segmentos numero de segmentos en los que se divide la carretera.
+   * @param carriles numero de carriles en la carretera.
+   */
+  public CarreteraLockFree(int segmentos, int carriles) {
+    this.segmentos = segmentos;
+    this.carriles = carriles;
+    this.palabras = (carriles + BITS - 1) / BITS;
+    this.carrilesOcupados = new AtomicLongArray((segmentos + 1) * palabras);
+    this.colas = new AtomicReferenceArray<>(segmentos + 1);
+    this.indice = new IndicePosiciones(segmentos, carriles);
+  }
+
+  /**
+   * El coche entra en la carretera si hay hueco.
+   *
+   * @param id identificador del coche
+   * @param tks número de ticks necesarios para atravesar un segmento (velocidad)
+   *
+   * @return La posicion en la que entra el coche.
+   */
+  public Pos entrar(String id, int tks) {
+    comprobarAbierta();
+    return ocupar(id, new Coche(), 1, tks, -1);
+  }
+
+  /**
+   * El coche entra en la carretera solo si hay hueco en este momento
+   * (y nadie espera para entrar).
+   *
+   * @return La posicion en la que entra el coche, o null si no hay hueco.
+   */
+  public Pos tryEntrar(String id, int tks) {
+    comprobarAbierta();
+    bloquear();
+    try {
+      if (hayEsperas(1)) {
+        return null;
+      }
+      int carril = reservar(1);
+      if (carril == 0) {
+        return null;
+      }
+      if (observador != null) {
+        observador.solicitud(id, 1);
+      }
+      return mover(id, new Coche(), 1, carril, tks);
+    } finally {
+      desbloquear();
+    }
+  }
+
+  /**
+   * El coche entra en la carretera si hay hueco antes de timeout milisegundos.
+   *
+   * @return La posicion en la que entra el coche, o null si se acaba el tiempo.
+   */
+  public Pos entrar(String id, int tks, long timeout) {
+    if (timeout <= 0) {
+      return tryEntrar(id, tks);
+    }
+    comprobarAbierta();
+    return ocupar(id, new Coche(), 1, tks, System.nanoTime() + timeout * 1_000_000L);
+  }
+
+  /**
+   * El coche avanza al siguiente segmento si hay hueco.
+   *
+   * @return La siguiente posicion del coche.
+   */
+  public Pos avanzar(String id, int tks) {
+    comprobarAbierta();
+    Coche coche = coches.get(id);
+    return ocupar(id, coche, coche.segmento + 1, tks, -1);
+  }
+
+  /**
+   * El coche espera en un segmento hasta que tiene 0 ticks.
+   */
+  public void circulando(String id) {
+    comprobarAbierta();
+    Coche coche = coches.get(id);
+    if (ahora() >= coche.vence) {
+      return;
+    }
+
+    // Antes de aparcarnos seguimos la estrategia de espera
+    if (estrategia.esperar(() -> ahora() >= coche.vence || cerrada)) {
+      comprobarAbierta();
+      return;
+    }
+
+    // Nos apuntamos antes de volver a mirar el reloj, asi el tick que
+    // nos libere nos vera y nos despertara. Si no llegamos a aparcarnos
+    // el tick nos despertara igualmente, y el permiso sobrante solo
+    // hace dar una vuelta mas a otra espera
+    long vence = coche.vence;
+    aparcados.computeIfAbsent(vence, tick -> new ConcurrentLinkedQueue<>()).add(Thread.currentThread());
+    while (ahora() < vence && !cerrada) {
+      LockSupport.park(this);
+    }
+    comprobarAbierta();
+  }
+
+  /**
+   * El coche sale de la carretera.
+   */
+  public void salir(String id) {
+    comprobarAbierta();
+    bloquear();
+    try {
+      Coche coche = coches.remove(id);
+      Pos posicion = new Pos(coche.segmento, coche.carril);
+      indice.liberar(id, posicion);
+      if (observador != null) {
+        observador.salida(id, posicion);
+      }
+      liberar(coche.segmento, coche.carril);
+    } finally {
+      desbloquear();
+    }
+  }
+
+  /**
+   * Disminuye un tick para todos los coches en circulacion.
+   */
+  public void tick() {
+    tick(1);
+  }
+
+  /**
+   * Disminuye n ticks para todos los coches en circulacion: un solo
+   * incremento del reloj.
+   */
+  public void tick(int n) {
+    if (n < 0) {
+      throw new IllegalArgumentException("El numero de ticks no puede ser negativo: "+n);
+    }
+    comprobarAbierta();
+    bloquear();
+    try {
+      while (true) {
+        long actual = reloj.get();
+        // Si se esta calculando un salto, esperamos a que termine (cediendo
+        // el procesador, quien lo calcula puede estar sin el)
+        if ((actual & 1) != 0) {
+          Thread.yield();
+        } else if (reloj.compareAndSet(actual, actual + 2L * n)) {
+          avisarTicks(actual / 2, n);
+          despertarVencidos(actual / 2 + n);
+          return;
+        }
+      }
+    } finally {
+      desbloquear();
+    }
+  }
+
+  /**
+   * Avanza los ticks que le quedan al coche que menos tiene.
+   *
+   * Mientras se busca ese coche el reloj queda marcado: los ticks
+   * esperan, y los coches que entran o avanzan vuelven a leerlo, de
+   * forma que o bien el salto los ve o bien ellos ven el salto.
+   *
+   * @return El numero de ticks avanzados (0 si no circula ningun coche).
+   */
+  public int tickHastaVencimiento() {
+    comprobarAbierta();
+    bloquear();
+    try {
+      long actual;
+      do {
+        actual = reloj.get();
+        if ((actual & 1) != 0) {
+          Thread.yield();
+        }
+      } while ((actual & 1) != 0 || !reloj.compareAndSet(actual, actual + 1));
+
+      // Los coches que circulan sin haberse aparcado no estan en el
+      // indice, asi que el primer vencimiento se busca entre todos
+      long ahora = actual / 2;
+      long primero = Long.MAX_VALUE;
+      for (Coche coche : coches.values()) {
+        long vence = coche.vence;
+        if (vence > ahora && vence < primero) {
+          primero = vence;
+        }
+      }
+      int n = primero == Long.MAX_VALUE ? 0 : (int) (primero - ahora);
+
+      reloj.set(2 * (ahora + n));
+      avisarTicks(ahora, n);
+      despertarVencidos(ahora + n);
+      return n;
+    } finally {
+      desbloquear();
+    }
+  }
+
+  /**
+   * @return El coche que ocupa la posicion, o null si esta libre. No
+   *         espera a ninguna operacion.
+   */
+  public String cocheEn(Pos pos) {
+    return indice.cocheEn(pos);
+  }
+
+  /**
+   * @return La posicion del coche, o null si no esta en la carretera.
+   *         No espera a ninguna operacion.
+   */
+  public Pos posicion(String id) {
+    return indice.posicion(id);
+  }
+
+  /**
+   * @return El numero de carriles ocupados del segmento. No espera a ninguna operacion.
+   */
+  public int ocupacion(int segmento) {
+    return indice.ocupacion(segmento);
+  }
+
+  /**
+   * Registra el observador de los cambios de estado de la carretera.
+   * Mientras lo haya, cada cambio y sus eventos se hacen bajo un
+   * cerrojo, en el orden en el que se notifican.
+   *
+   * @param observador observador de la carretera (null para ninguno)
+   */
+  public void observar(ObservadorCarretera observador) {
+    this.observador = observador;
+  }
+
+  /**
+   * Elige como esperan los coches en circulando y avanzar antes de
+   * aparcarse.
+   *
+   * @param estrategia estrategia de espera de los coches
+   */
+  public void esperarCon(EstrategiaEspera estrategia) {
+    this.estrategia = estrategia;
+  }
+
+  /**
+   * Reparte entre los hilos del pool el despertar a los coches que
+   * vencen en cada tick (el tick en si es un solo incremento del reloj).
+   * Solo se reparte si vencen suficientes coches a la vez.
+   *
+   * @param pool pool en el que se aplican los ticks (null para aplicarlos en el hilo del reloj)
+   */
+  public void tickParalelo(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Cierra la carretera: despierta a todos los coches que esperan, que
+   * fallan con CarreteraCerradaException.
+   */
+  public void close() {
+    cerrada = true;
+    for (int s = 1; s <= segmentos; s++) {
+      Cola cola = colas.get(s);
+      if (cola != null) {
+        for (Espera espera : cola.esperas) {
+          LockSupport.unpark(espera.hilo);
+        }
+      }
+    }
+    for (ConcurrentLinkedQueue<Thread> hilos : aparcados.values()) {
+      for (Thread hilo : hilos) {
+        LockSupport.unpark(hilo);
+      }
+    }
+  }
+
+  private void comprobarAbierta() {
+    if (cerrada) {
+      throw new CarreteraCerradaException();
+    }
+  }
+
+  /**
+   * @return Los ticks transcurridos.
+   */
+  private long ahora() {
+    return reloj.get() / 2;
+  }
+
+  /**
+   * Apunta al coche en su nueva posicion con sus ticks, contados desde
+   * el tick actual, y se lo notifica al observador. Si el reloj cambia
+   * mientras, se vuelven a contar.
+   */
+  private Pos colocar(String id, Coche coche, int segmento, int carril, int tks) {
+    Pos posicion = new Pos(segmento, carril);
+    if (segmento == 1) {
+      indice.ocupar(id, posicion);
+    } else {
+      indice.mover(id, new Pos(coche.segmento, coche.carril), posicion);
+    }
+    coche.segmento = segmento;
+    coche.carril = carril;
+    // El coche tiene que estar en el mapa antes de volver a leer el
+    // reloj, para que un salto que no hayamos visto lo vea a el
+    if (segmento == 1) {
+      coches.put(id, coche);
+    }
+    while (true) {
+      long actual = reloj.get();
+      if ((actual & 1) != 0) {
+        Thread.yield();
+        continue;
+      }
+      coche.vence = actual / 2 + tks;
+      if (reloj.get() == actual) {
+        break;
+      }
+    }
+    if (observador != null) {
+      observador.concesion(id, posicion, tks);
+    }
+    return posicion;
+  }
+
+  /**
+   * Coloca al coche en el carril que ha reservado y libera el que deja
+   * en el segmento anterior (si no acaba de entrar).
+   */
+  private Pos mover(String id, Coche coche, int segmento, int carril, int tks) {
+    int segmentoAnterior = coche.segmento;
+    int carrilAnterior = coche.carril;
+    Pos posicion = colocar(id, coche, segmento, carril, tks);
+    if (segmento > 1) {
+      liberar(segmentoAnterior, carrilAnterior);
+    }
+    return posicion;
+  }
+
+  /**
+   * Con observador, toma el cerrojo bajo el que se hacen los cambios de
+   * estado y se notifican sus eventos. El observador se registra antes
+   * de usar la carretera, asi que bloquear y desbloquear lo ven igual.
+   */
+  private void bloquear() {
+    if (observador != null) {
+      eventos.lock();
+    }
+  }
+
+  private void desbloquear() {
+    if (observador != null) {
+      eventos.unlock();
+    }
+  }
+
+  /**
+   * Notifica al observador n ticks desde el tick desde, con la
+   * liberacion de cada coche al que se le acaban los ticks en ellos,
+   * como si fueran n llamadas a tick. Los coches se buscan entre todos,
+   * pero solo cuando hay observador.
+   */
+  private void avisarTicks(long desde, int n) {
+    ObservadorCarretera observador = this.observador;
+    if (observador == null || n == 0) {
+      return;
+    }
+    List<Map.Entry<String, Coche>> vencidos = new ArrayList<>();
+    for (Map.Entry<String, Coche> entrada : coches.entrySet()) {
+      long vence = entrada.getValue().vence;
+      if (vence > desde && vence <= desde + n) {
+        vencidos.add(entrada);
+      }
+    }
+    vencidos.sort(Comparator.comparingLong(entrada -> entrada.getValue().vence));
+    long tick = desde;
+    for (Map.Entry<String, Coche> vencido : vencidos) {
+      for (; tick < vencido.getValue().vence; tick++) {
+        observador.tick();
+      }
+      observador.liberacion(vencido.getKey());
+    }
+    for (; tick < desde + n; tick++) {
+      observador.tick();
+    }
+  }
+
+  /**
+   * Despierta a los coches aparcados en circulando cuyo segmento ha
+   * vencido: saca del indice los ticks hasta ahora, sin mirar al resto
+   * de coches. Un coche que se apunta en un tick ya sacado ve el reloj
+   * al volver a mirarlo y no se aparca.
+   */
+  private void despertarVencidos(long ahora) {
+    Map.Entry<Long, ConcurrentLinkedQueue<Thread>> primero = aparcados.firstEntry();
+    if (primero == null || primero.getKey() > ahora) {
+      return;
+    }
+    List<Thread> hilos = new ArrayList<>();
+    for (Map.Entry<Long, ConcurrentLinkedQueue<Thread>> vencidos : aparcados.headMap(ahora, true).entrySet()) {
+      if (aparcados.remove(vencidos.getKey(), vencidos.getValue())) {
+        hilos.addAll(vencidos.getValue());
+      }
+    }
+    ForkJoinPool pool = this.pool;
+    if (pool == null || hilos.size() < TablaCoches.UMBRAL_PARALELO) {
+      for (Thread hilo : hilos) {
+        LockSupport.unpark(hilo);
+      }
+    } else {
+      pool.submit(() -> hilos.parallelStream().forEach(LockSupport::unpark)).join();
+    }
+  }
+
+  /**
+   * El coche ocupa un carril del segmento, esperando en su cola si esta
+   * lleno o si ya hay otros esperando. Si espera, quien le pasa el
+   * carril le coloca en el.
+   *
+   * @param plazo System.nanoTime() en el que se deja de esperar (negativo sin plazo)
+   *
+   * @return La nueva posicion del coche, o null si se acaba el plazo.
+   */
+  private Pos ocupar(String id, Coche coche, int segmento, int tks, long plazo) {
+    Cola cola;
+    Espera espera;
+    bloquear();
+    try {
+      if (observador != null) {
+        observador.solicitud(id, segmento);
+      }
+
+      // Camino rapido: nadie espera y hay un carril libre
+      if (!hayEsperas(segmento)) {
+        int carril = reservar(segmento);
+        if (carril != 0) {
+          return mover(id, coche, segmento, carril, tks);
+        }
+      }
+
+      // Nos ponemos a la cola y, por si se ha liberado un carril antes de
+      // que nos vieran, repartimos los libres
+      cola = cola(segmento);
+      espera = new Espera(Thread.currentThread(), id, coche, tks);
+      cola.esperas.add(espera);
+      cola.esperando.incrementAndGet();
+      repartir(segmento);
+    } finally {
+      desbloquear();
+    }
+
+    // Antes de aparcarnos para avanzar (no para entrar) seguimos la
+    // estrategia de espera
+    if (segmento > 1 && plazo < 0) {
+      estrategia.esperar(() -> espera.posicion != null || cerrada);
+    }
+
+    while (espera.posicion == null) {
+      if (cerrada) {
+        throw new CarreteraCerradaException();
+      }
+      if (plazo < 0) {
+        LockSupport.park(this);
+      } else {
+        long restante = plazo - System.nanoTime();
+        if (restante <= 0) {
+          // Si seguimos en la cola nos vamos. Si no, alguien nos esta
+          // colocando en un carril y esperamos a que termine
+          if (abandonar(cola, espera, segmento)) {
+            return null;
+          }
+          while (espera.posicion == null) {
+            Thread.onSpinWait();
+          }
+          break;
+        }
+        LockSupport.parkNanos(this, restante);
+      }
+    }
+    return espera.posicion;
+  }
+
+  /**
+   * Saca de la cola a un coche al que se le ha acabado el plazo.
+   *
+   * @return Si seguia en la cola (si no, ya le estan colocando).
+   */
+  private boolean abandonar(Cola cola, Espera espera, int segmento) {
+    bloquear();
+    try {
+      if (!cola.esperas.remove(espera)) {
+        return false;
+      }
+      cola.esperando.decrementAndGet();
+      if (observador != null) {
+        observador.abandono(espera.id, segmento);
+      }
+      return true;
+    } finally {
+      desbloquear();
+    }
+  }
+
+  /**
+   * Libera un carril y, si hay coches esperando en el segmento, se lo
+   * pasa al primero.
+   */
+  private void liberar(int segmento, int carril) {
+    soltar(segmento, carril);
+    if (hayEsperas(segmento)) {
+      repartir(segmento);
+    }
+  }
+
+  /**
+   * Borra el bit del carril. Esta a 1 y solo lo borramos nosotros:
+   * restar es una sola operacion atomica, sin bucle de CAS.
+   */
+  private void soltar(int segmento, int carril) {
+    int bit = carril - 1;
+    carrilesOcupados.getAndAdd(segmento * palabras + bit / BITS, -(1L << (bit % BITS)));
+  }
+
+  /**
+   * Mientras haya coches esperando en el segmento y carriles libres,
+   * coloca al primero de la cola en un carril y lo despierta. Cada coche
+   * que avanza asi deja libre su carril del segmento anterior, que se
+   * reparte a continuacion, y asi hacia atras mientras queden carriles
+   * que pasar. Se hace en un bucle y no con llamadas anidadas, que en
+   * una carretera larga podrian ser tantas como segmentos.
+   */
+  private void repartir(int segmento) {
+    boolean liberado = true;
+    for (int s = segmento; s >= 1 && liberado; s--) {
+      liberado = false;
+      Cola cola = colas.get(s);
+      while (cola != null && cola.esperando.get() > 0) {
+        int carril = reservar(s);
+        if (carril == 0) {
+          // Quien libere el proximo carril repartira
+          break;
+        }
+        Espera espera = cola.esperas.poll();
+        if (espera == null) {
+          // Otro ha atendido la cola mientras: devolvemos el carril y
+          // volvemos a mirar, que puede haber llegado alguien
+          soltar(s, carril);
+          continue;
+        }
+        cola.esperando.decrementAndGet();
+        int carrilAnterior = espera.coche.carril;
+        espera.posicion = colocar(espera.id, espera.coche, s, carril, espera.tks);
+        LockSupport.unpark(espera.hilo);
+        if (s > 1) {
+          soltar(s - 1, carrilAnterior);
+          liberado = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Reserva el primer carril libre del segmento con un CAS.
+   *
+   * @return El carril reservado, o 0 si no hay ninguno libre.
+   */
+  private int reservar(int segmento) {
+    int base = segmento * palabras;
+    for (int p = 0; p < palabras; p++) {
+      long mascara = p == palabras - 1 && carriles % BITS != 0 ? (1L << (carriles % BITS)) - 1 : -1L;
+      while (true) {
+        long ocupados = carrilesOcupados.get(base + p);
+        long libres = ~ocupados & mascara;
+        if (libres == 0) {
+          break;
+        }
+        long bit = Long.lowestOneBit(libres);
+        if (carrilesOcupados.compareAndSet(base + p, ocupados, ocupados | bit)) {
+          return p * BITS + Long.numberOfTrailingZeros(bit) + 1;
+        }
+      }
+    }
+    return 0;
+  }
+
+  private boolean hayEsperas(int segmento) {
+    Cola cola = colas.get(segmento);
+    return cola != null && cola.esperando.get() > 0;
+  }
+
+  private Cola cola(int segmento) {
+    Cola cola = colas.get(segmento);
+    if (cola == null) {
+      colas.compareAndSet(segmento, null, new Cola());
+      cola = colas.get(segmento);
+    }
+    return cola;
+  }
+
+  /**
+   * Clase que guarda el estado de un coche dentro de la carretera. Lo
+   * cambia el hilo del coche, o quien le coloca mientras espera en una
+   * cola:
+   * - Segmento y carril: su posicion
+   * - Vence: tick en el que se queda con 0 ticks
+   */
+  private static class Coche {
+    private volatile int segmento;
+    private volatile int carril;
+    private volatile long vence;
+  }
+
+  /**
+   * Cola de espera de un segmento:
+   * - Esperas: coches esperando, en orden de llegada
+   * - Esperando: cuantos hay (se consulta sin recorrer la cola)
+   */
+  private static class Cola {
+    private final ConcurrentLinkedQueue<Espera> esperas = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger esperando = new AtomicInteger(0);
+  }
+
+  /**
+   * Espera de un coche en la cola de un segmento:
+   * - Hilo: el hilo aparcado
+   * - Id, coche y tks: lo que necesita quien le coloque
+   * - Posicion: donde le han colocado (null mientras espera)
+   */
+  private static class Espera {
+    private final Thread hilo;
+    private final String id;
+    private final Coche coche;
+    private final int tks;
+    private volatile Pos posicion;
+
+    public Espera(Thread hilo, String id, Coche coche, int tks) {
+      this.hilo = hilo;
+      this.id = id;
+      this.coche = coche;
+      this.tks = tks;
+    }
+  }
+}
@@ -1,8 +1,14 @@
 package cc.carretera;
 
 import es.upm.babel.cclib.Monitor;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.List;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Implementación del recurso compartido Carretera con Monitores.
@@ -10,52 +16,90 @@ import java.util.HashMap;
  * @author Juan Francisco Casanova Ferrer
  * @author Ivan Carrion Lopez
  */
-public class CarreteraMonitor implements Carretera {
+public class CarreteraMonitor implements CarreteraConPlazo, CarreteraConPrioridad,
+                                         CarreteraConSaltos, CarreteraConsultable,
+                                         CarreteraObservable, CarreteraConEspera, CarreteraParalela {
   private final int carriles;
 
-  // Matriz que guarda los carriles ocupados
-  private final boolean[][] carrilesOcupados;
+  // Estado de cada segmento: carriles ocupados y coches esperando para
+  // avanzar a el, por clases de prioridad (densa o dispersa, ver TablaSegmentos)
+  private final TablaSegmentos<Segmento> estadoSegmentos;
 
-  // Mapa que guarda el nombre del coche y su estado actual en la carretera (posición, ticks, y si está bloqueado mientras circula)
-  private final Map<String, EstadoCoche> coches;
+  // Tabla que guarda el estado actual de cada coche en la carretera (posición y ticks), y la condicion en la que se bloquea mientras circula
+  private final TablaCoches<Monitor.Cond> coches;
+
+  // Posiciones de los coches para las consultas, que no entran en el monitor
+  private final IndicePosiciones indice;
 
   // Monitor para la exclusión mutua
   private final Monitor mutex;
 
-  // Condiciones para avanzar de segmento
-  private final Monitor.Cond[] condicionesAvanzar;
+  // Coches esperando para entrar en el primer segmento, en orden de
+  // llegada dentro de cada clase de prioridad. Cada uno espera en su
+  // propia condicion para poder despertarlo, o retirarlo de la cola si
+  // se le acaba el plazo, sin tocar a los demas
+  private final Planificador<Espera> esperandoEntrar;
 
   // Condicion para que un coche circule inmediatamente despues de alcanzar los 0 ticks
   private final Monitor.Cond sincronizarCircularTick;
 
+  // Observador de los cambios de estado (null si no hay ninguno)
+  private ObservadorCarretera observador;
+
+  // Si se ha cerrado la carretera (volatile porque se consulta fuera
+  // del monitor mientras se espera)
+  private volatile boolean cerrada = false;
+
+  // Condiciones de los coches bloqueados al cerrar la carretera, que
+  // se van despertando de uno en uno
+  private final ArrayDeque<Monitor.Cond> porDespertar = new ArrayDeque<>();
+
+  // Como esperan los coches en circulando antes de bloquearse
+  private volatile EstrategiaEspera estrategia = EstrategiaEspera.BLOQUEAR;
+
+  // Pool en el que se reparten los ticks entre las particiones de los
+  // coches (null para aplicarlos en el hilo del reloj)
+  private ForkJoinPool pool;
+
   /**
    * Constructor.
-   * Inicialización de los atributos de la carretera.
+   * Inicialización de los atributos de la carretera. Las carreteras muy
+   * largas usan la representacion dispersa de los segmentos.
    *
    * @param segmentos numero de segmentos en los que se divide la carretera.
    * @param carriles numero de carriles en la carretera.
    */
   public CarreteraMonitor(int segmentos, int carriles) {
-    this.carriles = carriles;
+    this(segmentos, carriles, segmentos > TablaSegmentos.UMBRAL_DISPERSA);
+  }
 
-    // En la matriz de carriles ocupados ignoramos la posicion 0
-    // Esto es poque los carriles y segmentos empiezan a contar por el numero 1
-    this.carrilesOcupados = new boolean[segmentos + 1][carriles + 1];
+  /**
+   * Constructor.
+   * Inicialización de los atributos de la carretera.
+   *
+   * @param segmentos numero de segmentos en los que se divide la carretera.
+   * @param carriles numero de carriles en la carretera.
+   * @param dispersa si solo se guarda el estado de los segmentos con coches o esperas.
+   */
+  public CarreteraMonitor(int segmentos, int carriles, boolean dispersa) {
+    this.carriles = carriles;
 
-    // Inicializar mapa de coches
-    this.coches = new HashMap<>();
+    // Inicializar tabla de coches y su indice de posiciones
+    this.coches = new TablaCoches<>();
+    this.indice = new IndicePosiciones(segmentos, carriles);
 
     // Inicializar monitor
     this.mutex = new Monitor();
 
-    // Necesitamos una cola de condicion por cada segmento de la carretera
-    this.condicionesAvanzar = new Monitor.Cond[segmentos + 1];
-    for (int i = 0; i < segmentos + 1; i++) {
-      condicionesAvanzar[i] = mutex.newCond();
-    }
+    // Cada segmento tiene sus carriles y la cola de los coches que
+    // esperan para avanzar a el (la del segmento 1 no se usa)
+    this.estadoSegmentos = new TablaSegmentos<>(segmentos, dispersa, () -> new Segmento(carriles));
 
     // Inicializar condicion para sincronizar el metodo tick y circulando
     sincronizarCircularTick = mutex.newCond();
+
+    // Inicializar la cola de entrada
+    this.esperandoEntrar = new Planificador<>();
   }
 
   /**
@@ -67,14 +111,117 @@ public class CarreteraMonitor implements Carretera {
    * @return La posicion en la que entra el coche.
    */
   public Pos entrar(String id, int tks) {
+    return entrarEsperando(id, tks, -1, Prioridad.NORMAL);
+  }
+
+  /**
+   * El coche entra en la carretera si hay hueco, esperando en la cola
+   * de su clase de prioridad.
+   *
+   * @param id identificador del coche
+   * @param tks número de ticks necesarios para atravesar un segmento (velocidad)
+   * @param prioridad clase de prioridad del coche
+   *
+   * @return La posicion en la que entra el coche.
+   */
+  public Pos entrar(String id, int tks, Prioridad prioridad) {
+    return entrarEsperando(id, tks, -1, prioridad);
+  }
+
+  /**
+   * El coche entra en la carretera solo si hay hueco en este momento.
+   *
+   * @param id identificador del coche
+   * @param tks número de ticks necesarios para atravesar un segmento (velocidad)
+   *
+   * @return La posicion en la que entra el coche, o null si no hay hueco.
+   */
+  public Pos tryEntrar(String id, int tks) {
+    // Entrada en la zona de exclusion mutua
+    mutex.enter();
+    comprobarAbierta();
+
+    // Si no hay hueco en el primer segmento no entramos
+    if (carrilLibre(1) == 0) {
+      mutex.leave();
+      return null;
+    }
+
+    if (observador != null) {
+      observador.solicitud(id, 1);
+    }
+    Pos posicion = ocuparPrimerSegmento(id, tks);
+
+    // Salida de la zona de exclusion mutua
+    mutex.leave();
+
+    return posicion;
+  }
+
+  /**
+   * El coche entra en la carretera si hay hueco antes de timeout milisegundos.
+   *
+   * @param id identificador del coche
+   * @param tks número de ticks necesarios para atravesar un segmento (velocidad)
+   * @param timeout tiempo máximo de espera en milisegundos
+   *
+   * @return La posicion en la que entra el coche, o null si se acaba el tiempo.
+   */
+  public Pos entrar(String id, int tks, long timeout) {
+    if (timeout <= 0) {
+      return tryEntrar(id, tks);
+    }
+    return entrarEsperando(id, tks, timeout, Prioridad.NORMAL);
+  }
+
+  /**
+   * Entrada con espera, sin limite si timeout es negativo.
+   */
+  private Pos entrarEsperando(String id, int tks, long timeout, Prioridad prioridad) {
     // Entrada en la zona de exclusion mutua
     mutex.enter();
+    comprobarAbierta();
 
-    // Si no hay hueco en el primer carril, esperamos
+    if (observador != null) {
+      observador.solicitud(id, 1);
+    }
+
+    // Si no hay hueco en el primer carril, esperamos a la cola de entrada
     if (carrilLibre(1) == 0) {
-      condicionesAvanzar[1].await();
+      Espera espera = new Espera(mutex.newCond());
+      esperandoEntrar.add(prioridad, espera);
+
+      // Si hay plazo, al acabarse nos sacaran de la cola
+      if (timeout >= 0) {
+        espera.plazo = Temporizador.INSTANCIA.schedule(() -> caducar(espera), timeout, TimeUnit.MILLISECONDS);
+      }
+
+      espera.condicion.await();
+      despertadoAlCerrar(esperandoEntrar, espera);
+
+      // Se ha acabado el plazo sin que quedase un hueco
+      if (espera.caducada) {
+        if (observador != null) {
+          observador.abandono(id, 1);
+        }
+        mutex.leave();
+        return null;
+      }
     }
 
+    Pos posicion = ocuparPrimerSegmento(id, tks);
+
+    // Salida de la zona de exclusion mutua
+    mutex.leave();
+
+    return posicion;
+  }
+
+  /**
+   * Introduce el coche en un carril libre del primer segmento. Se
+   * invoca desde dentro de la zona de exclusion mutua.
+   */
+  private Pos ocuparPrimerSegmento(String id, int tks) {
     // Comprobamos cual es el carril libre y asignamos la nueva posicion al coche
     int carrilLibre = carrilLibre(1);
     Pos posicion = new Pos(1, carrilLibre);
@@ -83,16 +230,52 @@ public class CarreteraMonitor implements Carretera {
     Monitor.Cond bloqueado = mutex.newCond();
 
     // Introducimos el coche en la carretera
-    EstadoCoche estado = new EstadoCoche(posicion, tks, bloqueado);
-    coches.put(id, estado);
-    carrilesOcupados[1][carrilLibre] = true;
+    coches.alta(id, 1, carrilLibre, tks, bloqueado);
+    ocupar(1, carrilLibre);
+    indice.ocupar(id, posicion);
 
-    // Salida de la zona de exclusion mutua
-    mutex.leave();
+    if (observador != null) {
+      observador.concesion(id, posicion, tks);
+    }
 
     return posicion;
   }
 
+  /**
+   * Saca de la cola de entrada a un coche al que se le ha acabado el
+   * plazo. Si ya no esta en la cola es que ha conseguido entrar.
+   */
+  private void caducar(Espera espera) {
+    mutex.enter();
+    if (!cerrada && esperandoEntrar.remove(espera)) {
+      espera.caducada = true;
+      espera.condicion.signal();
+    }
+    mutex.leave();
+  }
+
+  /**
+   * Despierta al coche al que le toca entrar en el segmento (segun su
+   * clase de prioridad), que acaba de quedar un carril libre.
+   */
+  private void avisarHueco(int segmento) {
+    if (segmento == 1) {
+      Espera espera = esperandoEntrar.poll();
+      if (espera != null) {
+        if (espera.plazo != null) {
+          espera.plazo.cancel(false);
+        }
+        espera.condicion.signal();
+      }
+    } else {
+      Segmento estado = estadoSegmentos.get(segmento);
+      Espera espera = estado == null ? null : estado.cola.poll();
+      if (espera != null) {
+        espera.condicion.signal();
+      }
+    }
+  }
+
   /**
    * El coche avanza al siguiente segmento si hay hueco.
    *
@@ -102,27 +285,60 @@ public class CarreteraMonitor implements Carretera {
    * @return La siguiente posicion del coche.
    */
   public Pos avanzar(String id, int tks) {
+    return avanzar(id, tks, Prioridad.NORMAL);
+  }
+
+  /**
+   * El coche avanza al siguiente segmento si hay hueco, esperando en la
+   * cola de su clase de prioridad.
+   *
+   * @param id identificador del coche
+   * @param tks número de ticks necesarios para atravesar un segmento (velocidad)
+   * @param prioridad clase de prioridad del coche
+   *
+   * @return La siguiente posicion del coche.
+   */
+  public Pos avanzar(String id, int tks, Prioridad prioridad) {
     // Entrada en la zona de exclusion mutua
     mutex.enter();
+    comprobarAbierta();
 
     // Si no hay hueco en el siguiente carril, esperamos
-    int siguienteSegmento = coches.get(id).getPosicion().getSegmento() + 1;
+    int coche = coches.manejador(id);
+    int siguienteSegmento = coches.getSegmento(coche) + 1;
+    if (observador != null) {
+      observador.solicitud(id, siguienteSegmento);
+    }
     if (carrilLibre(siguienteSegmento) == 0) {
-      condicionesAvanzar[siguienteSegmento].await();
+      // El segmento esta lleno, asi que tiene estado. Mientras esperamos
+      // nos contamos en el para que no se retire de la tabla
+      Segmento segmento = estadoSegmentos.get(siguienteSegmento);
+      Espera espera = new Espera(mutex.newCond());
+      segmento.cola.add(prioridad, espera);
+      segmento.esperando++;
+      espera.condicion.await();
+      segmento.esperando--;
+      despertadoAlCerrar(segmento.cola, espera);
     }
 
     // Comprobamos cual es el carril libre y asignamos la nueva posicion al coche
     int carrilLibre = carrilLibre(siguienteSegmento);
     Pos posicion = new Pos(siguienteSegmento, carrilLibre);
 
-    // Actualizamos el estado del coche en la carretera
-    coches.get(id).setPosicion(posicion);
-    coches.get(id).setTks(tks);
-    carrilesOcupados[siguienteSegmento][carrilLibre] = true;
-    carrilesOcupados[siguienteSegmento - 1][carrilLibre] = false;
+    // Actualizamos el estado del coche en la carretera, liberando el
+    // carril que ocupaba (no tiene por que ser el mismo que el nuevo)
+    int carrilAnterior = coches.getCarril(coche);
+    coches.mover(coche, siguienteSegmento, carrilLibre, tks);
+    indice.mover(id, new Pos(siguienteSegmento - 1, carrilAnterior), posicion);
+    ocupar(siguienteSegmento, carrilLibre);
+    desocupar(siguienteSegmento - 1, carrilAnterior);
+
+    if (observador != null) {
+      observador.concesion(id, posicion, tks);
+    }
 
     // Señalizamos que queda un huevo libre en el segmento actual
-    condicionesAvanzar[siguienteSegmento - 1].signal();
+    avisarHueco(siguienteSegmento - 1);
 
     // Salida de la zona de exclusion mutua
     mutex.leave();
@@ -138,15 +354,22 @@ public class CarreteraMonitor implements Carretera {
   public void salir(String id) {
     // Entrada en la zona de exclusion mutua
     mutex.enter();
+    comprobarAbierta();
 
     // Eliminamos al coche de la carretera
-    int segmentoActual = coches.get(id).getPosicion().getSegmento();
-    int carrilActual = coches.get(id).getPosicion().getCarril();
-    carrilesOcupados[segmentoActual][carrilActual] = false;
-    coches.remove(id);
+    int coche = coches.manejador(id);
+    Pos posicion = coches.getPosicion(coche);
+    int segmentoActual = posicion.getSegmento();
+    desocupar(segmentoActual, posicion.getCarril());
+    coches.baja(coche);
+    indice.liberar(id, posicion);
+
+    if (observador != null) {
+      observador.salida(id, posicion);
+    }
 
     // Señalizamos que queda un huevo libre en el ultimo segmento
-    condicionesAvanzar[segmentoActual].signal();
+    avisarHueco(segmentoActual);
 
     // Salida de la zona de exclusion mutua
     mutex.leave();
@@ -160,10 +383,22 @@ public class CarreteraMonitor implements Carretera {
   public void circulando(String id) {
     // Entrada en la zona de exclusion mutua
     mutex.enter();
+    comprobarAbierta();
+
+    // Si la estrategia de espera lo dice, esperamos a que se acaben los
+    // ticks del coche fuera del monitor, sin bloquearnos
+    int coche = coches.manejador(id);
+    if (coches.getTks(coche) != 0 && estrategia != EstrategiaEspera.BLOQUEAR) {
+      mutex.leave();
+      estrategia.esperar(() -> coches.getTksVolatil(coche) == 0 || cerrada);
+      mutex.enter();
+      comprobarAbierta();
+    }
 
     // Si el numero de ticks del coche es mayor que cero, lo bloqueamos
-    if (coches.get(id).getTks() != 0) {
-      coches.get(id).getBloqueo().await();
+    if (coches.getTks(coche) != 0) {
+      coches.getDato(coche).await();
+      despertadoAlCerrar(null, null);
     }
 
     // Señalamos que se ha completado la circulacion del coche
@@ -178,42 +413,255 @@ public class CarreteraMonitor implements Carretera {
    * Si un coche ya tiene cero ticks, continua con cero ticks.
    */
   public void tick() {
+    tick(1);
+  }
+
+  /**
+   * Disminuye n ticks para todos los coches en circulacion dentro de
+   * la misma zona de exclusion mutua.
+   *
+   * @param n numero de ticks
+   */
+  public void tick(int n) {
+    if (n < 0) {
+      throw new IllegalArgumentException("El numero de ticks no puede ser negativo: "+n);
+    }
+
     // Entrada en la zona de exclusion mutua
     mutex.enter();
+    comprobarAbierta();
 
-    // Para cada coche en la carretera
-    for (EstadoCoche coche : coches.values()) {
+    aplicarTicks(n);
 
-      // Si el coche tiene mas de 0 ticks
-      if (coche.getTks() > 0) {
+    // Salida de la zona de exclusion mutua
+    mutex.leave();
+  }
 
-        // Actualizamos el numero de ticks (uno menos)
-        coche.setTks(coche.getTks() - 1);
+  /**
+   * Avanza los ticks que le quedan al coche que menos tiene.
+   *
+   * @return El numero de ticks avanzados (0 si no circula ningun coche).
+   */
+  public int tickHastaVencimiento() {
+    // Entrada en la zona de exclusion mutua
+    mutex.enter();
+    comprobarAbierta();
 
-        // Si se ha quedado con 0 ticks
-        if (coche.getTks() == 0) {
+    // Buscamos el primer vencimiento
+    int n = coches.primerVencimiento();
 
-          // Desbloqueamos el coche para que circule
-          coche.getBloqueo().signal();
+    aplicarTicks(n);
 
-          // Esperamos a que complete la circulacion
-          sincronizarCircularTick.await();
+    // Salida de la zona de exclusion mutua
+    mutex.leave();
+
+    return n;
+  }
+
+  /**
+   * Aplica n ticks seguidos y desbloquea a los coches que se quedan con
+   * 0 ticks. Se invoca desde dentro de la zona de exclusion mutua.
+   */
+  private void aplicarTicks(int n) {
+    // Coches que se quedan con 0 ticks en alguno de los n ticks, con el
+    // tick en el que les llega a 0. Con muchos coches y un pool, los
+    // bloques de la tabla se recorren en los hilos del pool
+    List<TablaCoches.Vencido<Monitor.Cond>> liberados = coches.aplicarTicks(n, pool);
+
+    // El observador recibe los mismos eventos que con n llamadas a tick
+    if (observador != null) {
+      liberados.sort(Comparator.comparingInt(liberado -> liberado.tick));
+      int tick = 0;
+      for (TablaCoches.Vencido<Monitor.Cond> liberado : liberados) {
+        for (; tick < liberado.tick; tick++) {
+          observador.tick();
         }
+        observador.liberacion(liberado.id);
+      }
+      for (; tick < n; tick++) {
+        observador.tick();
       }
     }
 
-    // Salida de la zona de exclusion mutua
+    // Los desbloqueamos despues de recorrer la tabla, porque mientras
+    // esperamos a que circulen otros coches pueden entrar o salir
+    for (TablaCoches.Vencido<Monitor.Cond> liberado : liberados) {
+
+      // Mientras esperabamos a los anteriores el coche puede haber
+      // circulado sin esperar, e incluso haber avanzado y estar
+      // esperando con sus nuevos ticks, o haber salido (y su manejador
+      // ser ya de otro coche): solo lo desbloqueamos si sigue en la
+      // carretera con 0 ticks y esperando
+      Monitor.Cond bloqueo = liberado.dato;
+      int coche = coches.manejador(liberado.id);
+      if (coche == TablaCoches.NINGUNO || coches.getDato(coche) != bloqueo
+          || coches.getTks(coche) != 0 || bloqueo.waiting() == 0) {
+        continue;
+      }
+
+      // Desbloqueamos el coche para que circule
+      bloqueo.signal();
+
+      // Esperamos a que complete la circulacion
+      sincronizarCircularTick.await();
+      despertadoAlCerrar(null, null);
+    }
+  }
+
+  /**
+   * @return El coche que ocupa la posicion, o null si esta libre. No
+   *         entra en el monitor.
+   */
+  public String cocheEn(Pos pos) {
+    return indice.cocheEn(pos);
+  }
+
+  /**
+   * @return La posicion del coche, o null si no esta en la carretera.
+   *         No entra en el monitor.
+   */
+  public Pos posicion(String id) {
+    return indice.posicion(id);
+  }
+
+  /**
+   * @return El numero de carriles ocupados del segmento. No entra en el monitor.
+   */
+  public int ocupacion(int segmento) {
+    return indice.ocupacion(segmento);
+  }
+
+  /**
+   * Registra el observador de los cambios de estado de la carretera.
+   *
+   * @param observador observador de la carretera (null para ninguno)
+   */
+  public void observar(ObservadorCarretera observador) {
+    mutex.enter();
+    this.observador = observador;
     mutex.leave();
   }
 
+  /**
+   * Elige como esperan los coches en circulando antes de bloquearse.
+   * En avanzar se bloquean siempre: para saber si hay hueco hay que
+   * consultar los segmentos, y eso solo se puede hacer en el monitor.
+   *
+   * @param estrategia estrategia de espera de los coches
+   */
+  public void esperarCon(EstrategiaEspera estrategia) {
+    this.estrategia = estrategia;
+  }
+
+  /**
+   * Reparte cada tick entre los hilos del pool: la tabla de coches se
+   * recorre por particiones en paralelo (si hay suficientes coches) y
+   * despues se desbloquea a los que vencen, como siempre.
+   *
+   * @param pool pool en el que se aplican los ticks (null para aplicarlos en el hilo del reloj)
+   */
+  public void tickParalelo(ForkJoinPool pool) {
+    mutex.enter();
+    this.pool = pool;
+    mutex.leave();
+  }
+
+  /**
+   * Cierra la carretera: cancela los plazos pendientes y despierta a
+   * los coches bloqueados, que fallan con CarreteraCerradaException.
+   */
+  public void close() {
+    mutex.enter();
+    if (!cerrada) {
+      cerrada = true;
+
+      // Recogemos una sola vez a todos los bloqueados: mientras tenemos
+      // el monitor nadie mas puede bloquearse ni despertar
+      for (Segmento segmento : estadoSegmentos.activos()) {
+        for (Espera espera : segmento.cola) {
+          porDespertar.add(espera.condicion);
+        }
+      }
+      for (Espera espera : esperandoEntrar) {
+        if (espera.plazo != null) {
+          espera.plazo.cancel(false);
+        }
+        porDespertar.add(espera.condicion);
+      }
+      for (int coche = 0; coche < coches.limite(); coche++) {
+        Monitor.Cond bloqueo = coches.getDato(coche);
+        if (bloqueo != null && bloqueo.waiting() > 0) {
+          porDespertar.add(bloqueo);
+        }
+      }
+      if (sincronizarCircularTick.waiting() > 0) {
+        porDespertar.add(sincronizarCircularTick);
+      }
+
+      // Cada coche que despertamos despierta al siguiente
+      despertarSiguiente();
+    }
+    mutex.leave();
+  }
+
+  /**
+   * Falla si la carretera esta cerrada. Se invoca nada mas entrar en
+   * la zona de exclusion mutua.
+   */
+  private void comprobarAbierta() {
+    if (cerrada) {
+      mutex.leave();
+      throw new CarreteraCerradaException();
+    }
+  }
+
+  /**
+   * Se invoca al despertar de un await: si nos han despertado por
+   * cerrarse la carretera, salimos de la cola en la que esperabamos,
+   * despertamos al siguiente coche bloqueado y fallamos.
+   *
+   * @param cola cola de entrada o de un segmento (null si no esperabamos en ninguna)
+   * @param espera nuestra espera en la cola
+   */
+  private void despertadoAlCerrar(Planificador<Espera> cola, Espera espera) {
+    if (cerrada) {
+      if (cola != null) {
+        cola.remove(espera);
+      }
+      despertarSiguiente();
+      mutex.leave();
+      throw new CarreteraCerradaException();
+    }
+  }
+
+  /**
+   * Despierta al siguiente de los coches que estaban bloqueados al
+   * cerrar la carretera, si queda alguno. Con cclib solo podemos
+   * despertar a uno cada vez, asi que cada uno despierta al siguiente.
+   */
+  private void despertarSiguiente() {
+    Monitor.Cond siguiente;
+    while ((siguiente = porDespertar.poll()) != null) {
+      if (siguiente.waiting() > 0) {
+        siguiente.signal();
+        return;
+      }
+    }
+  }
+
   /**
    * @return El numero del primer carril libre.
    *         Si no hay carril libre, devuelve 0.
    */
   private Integer carrilLibre(Integer segmento) {
+    // Un segmento sin estado no tiene coches
+    Segmento estado = estadoSegmentos.get(segmento);
+    if (estado == null) {
+      return 1;
+    }
     int carrilLibre = 0;
     for (int carril = 1; carril <= carriles; carril++) {
-      if (!carrilesOcupados[segmento][carril]) {
+      if (!estado.ocupados[carril]) {
         carrilLibre = carril;
         break;
       }
@@ -222,40 +670,82 @@ public class CarreteraMonitor implements Carretera {
   }
 
   /**
-   * Clase que guarda el estado de un coche dentro de la carretera:
-   * - Posicion: la posicion del coche en la carretera
-   * - Tks: numero de ticks que tiene el coche actualmente
-   * - Bloqueo: condicion de bloqueo para circular
+   * Marca un carril como ocupado.
    */
-  private static class EstadoCoche {
-    private Pos posicion;
-    private Integer tks;
-    private final Monitor.Cond bloqueo;
+  private void ocupar(int segmento, int carril) {
+    Segmento estado = estadoSegmentos.obtener(segmento);
+    estado.ocupados[carril] = true;
+    estado.coches++;
+  }
 
-    public EstadoCoche(Pos posicion, Integer tks, Monitor.Cond bloqueo) {
-      this.posicion = posicion;
-      this.tks = tks;
-      this.bloqueo = bloqueo;
+  /**
+   * Marca un carril como libre, y retira el segmento de la tabla si se
+   * queda sin coches ni esperas.
+   */
+  private void desocupar(int segmento, int carril) {
+    Segmento estado = estadoSegmentos.get(segmento);
+    estado.ocupados[carril] = false;
+    estado.coches--;
+    if (estado.vacio()) {
+      estadoSegmentos.liberar(segmento);
     }
+  }
 
-    public Pos getPosicion() {
-      return posicion;
+  /**
+   * Clase que guarda el estado de un segmento:
+   * - Ocupados: carriles ocupados (ignoramos la posicion 0, los carriles empiezan en 1)
+   * - Coches: numero de carriles ocupados
+   * - Cola: esperas de los coches para avanzar al segmento, por clases de prioridad
+   * - Esperando: coches esperando para avanzar (el despertado cuenta hasta que vuelve)
+   */
+  private static class Segmento {
+    private final boolean[] ocupados;
+    private int coches;
+    private final Planificador<Espera> cola = new Planificador<>();
+    private int esperando;
+
+    public Segmento(int carriles) {
+      this.ocupados = new boolean[carriles + 1];
     }
 
-    public Integer getTks() {
-      return tks;
+    public boolean vacio() {
+      return coches == 0 && esperando == 0;
     }
+  }
 
-    public Monitor.Cond getBloqueo() {
-      return bloqueo;
-    }
+  /**
+   * Clase que guarda la espera de un coche para entrar o avanzar:
+   * - Condicion: condicion en la que espera el coche
+   * - Plazo: tarea que lo saca de la cola al acabarse el plazo (null si no hay plazo)
+   * - Caducada: si se ha acabado el plazo sin que el coche entrase
+   */
+  private static class Espera {
+    private final Monitor.Cond condicion;
+    private ScheduledFuture<?> plazo;
+    private boolean caducada;
 
-    public void setPosicion(Pos posicion) {
-      this.posicion = posicion;
+    public Espera(Monitor.Cond condicion) {
+      this.condicion = condicion;
     }
+  }
 
-    public void setTks(Integer tks) {
-      this.tks = tks;
+  /**
+   * Hilo compartido por todas las carreteras que vigila los plazos de
+   * las entradas. Se crea la primera vez que se usa.
+   */
+  private static class Temporizador {
+    static final ScheduledThreadPoolExecutor INSTANCIA = crear();
+
+    private static ScheduledThreadPoolExecutor crear() {
+      ScheduledThreadPoolExecutor temporizador = new ScheduledThreadPoolExecutor(1, r -> {
+          Thread hilo = new Thread(r, "carretera-plazos");
+          hilo.setDaemon(true);
+          return hilo;
+        });
+      // Las entradas que consiguen hueco cancelan su plazo, no hace
+      // falta guardarlas hasta que venzan
+      temporizador.setRemoveOnCancelPolicy(true);
+      return temporizador;
     }
   }
 }
@@ -0,0 +1,15 @@
+package cc.carretera;
+
+/**
+ * Carretera que avisa de sus cambios de estado a un ObservadorCarretera.
+ */
+public interface CarreteraObservable extends Carretera {
+  /**
+   * Registra un observador que recibe, en orden, los cambios de estado
+   * de la carretera. Debe llamarse antes de empezar a usar la
+   * carretera.
+   *
+   * @param observador observador de la carretera (null para ninguno)
+   */
+  void observar(ObservadorCarretera observador);
+}
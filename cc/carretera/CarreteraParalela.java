@@ -0,0 +1,19 @@
+package cc.carretera;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Carretera que puede repartir el trabajo de cada tick entre los hilos
+ * de un ForkJoinPool.
+ */
+public interface CarreteraParalela extends Carretera {
+  /**
+   * Reparte el trabajo de cada tick entre los hilos del pool, para
+   * carreteras con muchos coches: la duracion de un tick baja con el
+   * numero de hilos del pool. Con pocos coches los ticks se siguen
+   * aplicando en un solo hilo.
+   *
+   * @param pool pool en el que se aplican los ticks (null para no repartirlos)
+   */
+  void tickParalelo(ForkJoinPool pool);
+}
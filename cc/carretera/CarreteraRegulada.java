@@ -0,0 +1,318 @@
+package cc.carretera;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Regulacion de la entrada a una Carretera (como los semaforos de las
+ * rampas de acceso a las autopistas): los coches entran a la tasa que
+ * decide un ControladorEntrada, en lugar de todos a la vez.
+ *
+ * Cuando llegan muchos mas coches de los que caben, el primer segmento
+ * se llena, las colas se propagan hacia delante y los coches salen mas
+ * despacio de lo que la carretera permite. Regulando la entrada los que
+ * sobran esperan fuera, y los de dentro circulan sin atascos.
+ *
+ * Despues de cada tick se mide la ocupacion de los primeros segmentos
+ * (con ocupacion) y los coches que han salido, el controlador calcula la
+ * nueva tasa y se reparten los permisos de entrada de ese tick. Los
+ * permisos que no se usan se acumulan, como mucho un segmento entero.
+ * Cada coche espera un permiso, en orden de llegada, antes de pedir
+ * entrar en la carretera regulada.
+ *
+ * La carretera regulada tiene que admitir entradas con plazo y consultas
+ * (para medir su ocupacion). El resto de operaciones de Carretera,
+ * CarreteraConPlazo y CarreteraConsultable se delegan sin cambios; las
+ * demas (observadores, estrategias de espera...) se configuran en la
+ * carretera regulada antes de envolverla, salvo las prioridades, que
+ * ofrece CarreteraRegulada.ConPrioridad.
+ */
+public class CarreteraRegulada implements CarreteraConPlazo, CarreteraConsultable {
+  // Segmentos cuya ocupacion se mide
+  private static final int SEGMENTOS_MEDIDOS = 8;
+
+  // Peso de cada tick en la media de las salidas
+  private static final double PESO_SALIDAS = 0.2;
+
+  // Tasa minima, para que la carretera nunca deje de admitir coches
+  private static final double TASA_MINIMA = 1.0 / 64;
+
+  // Carretera regulada, y la misma vista como consultable para medirla
+  private final CarreteraConPlazo carretera;
+  private final CarreteraConsultable consultas;
+
+  // Decide la tasa de entrada
+  private final ControladorEntrada controlador;
+
+  // Segmentos medidos y carriles que tienen entre todos
+  private final int segmentosMedidos;
+  private final int capacidadMedida;
+
+  // Maximo de permisos acumulados, y tasa maxima
+  private final int rafaga;
+
+  // Permisos de entrada, en orden de llegada
+  private final Semaphore permisos = new Semaphore(0, true);
+
+  // Si se ha cerrado la carretera
+  private final AtomicBoolean cerrada = new AtomicBoolean(false);
+
+  // Coches que han salido desde el ultimo tick
+  private final AtomicLong salidasTick = new AtomicLong(0);
+
+  // Estado del control: solo lo cambia el hilo que da los ticks, el
+  // resto se publica para consultarlo
+  private double permisosParciales = 0;
+  private volatile double tasa;
+  private volatile double ocupacion = 0;
+  private volatile double salidas = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param carretera carretera cuya entrada se regula
+   * @param segmentos numero de segmentos de la carretera
+   * @param carriles numero de carriles de la carretera
+   * @param controlador decide la tasa de entrada
+   */
+  public <C extends CarreteraConPlazo & CarreteraConsultable>
+    CarreteraRegulada(C carretera, int segmentos, int carriles, ControladorEntrada controlador) {
+    this.carretera = carretera;
+    this.consultas = carretera;
+    this.controlador = controlador;
+    this.segmentosMedidos = Math.min(segmentos, SEGMENTOS_MEDIDOS);
+    this.capacidadMedida = segmentosMedidos * carriles;
+    this.rafaga = carriles;
+    // Al principio la carretera esta vacia: se puede llenar el primer segmento
+    this.tasa = carriles;
+    permisos.release(rafaga);
+  }
+
+  /**
+   * El coche espera su permiso y entra en la carretera si hay hueco.
+   *
+   * @return La posicion en la que entra el coche.
+   */
+  public Pos entrar(String id, int tks) {
+    esperarPermiso();
+    return carretera.entrar(id, tks);
+  }
+
+  /**
+   * El coche entra solo si hay un permiso y hueco en este momento.
+   *
+   * @return La posicion en la que entra el coche, o null si no entra.
+   */
+  public Pos tryEntrar(String id, int tks) {
+    comprobarAbierta();
+    if (!permisos.tryAcquire()) {
+      return null;
+    }
+    comprobarPermiso();
+    return devolverSiNoEntra(carretera.tryEntrar(id, tks));
+  }
+
+  /**
+   * Como entrar, pero esperando (al permiso y al hueco) como mucho
+   * timeout milisegundos.
+   *
+   * @return La posicion en la que entra el coche, o null si se acaba el tiempo.
+   */
+  public Pos entrar(String id, int tks, long timeout) {
+    if (timeout <= 0) {
+      return tryEntrar(id, tks);
+    }
+    comprobarAbierta();
+    long plazo = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    boolean permiso;
+    try {
+      permiso = permisos.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    if (!permiso) {
+      return null;
+    }
+    comprobarPermiso();
+    long resto = TimeUnit.NANOSECONDS.toMillis(plazo - System.nanoTime());
+    return devolverSiNoEntra(carretera.entrar(id, tks, resto));
+  }
+
+  public Pos avanzar(String id, int tks) {
+    return carretera.avanzar(id, tks);
+  }
+
+  public void circulando(String id) {
+    carretera.circulando(id);
+  }
+
+  public void salir(String id) {
+    carretera.salir(id);
+    salidasTick.incrementAndGet();
+  }
+
+  public void tick() {
+    tick(1);
+  }
+
+  public void tick(int n) {
+    carretera.tick(n);
+    regular(n);
+  }
+
+  public String cocheEn(Pos pos) {
+    return consultas.cocheEn(pos);
+  }
+
+  public Pos posicion(String id) {
+    return consultas.posicion(id);
+  }
+
+  public int ocupacion(int segmento) {
+    return consultas.ocupacion(segmento);
+  }
+
+  /**
+   * Cierra la carretera regulada. Los coches que esperan su permiso lo
+   * reciben y fallan con CarreteraCerradaException. Cerrarla otra vez
+   * no hace nada.
+   */
+  public void close() {
+    if (!cerrada.compareAndSet(false, true)) {
+      return;
+    }
+    carretera.close();
+    // Un permiso por cada coche esperando; cada uno lo devuelve al ver
+    // la carretera cerrada (comprobarPermiso), asi que tambien despiertan
+    // los que se pongan a esperar justo ahora
+    permisos.release(permisos.getQueueLength() + rafaga);
+  }
+
+  /**
+   * @return La tasa de entrada actual, en coches por tick.
+   */
+  public double getTasa() {
+    return tasa;
+  }
+
+  /**
+   * @return La ocupacion de los primeros segmentos medida en el ultimo tick.
+   */
+  public double getOcupacion() {
+    return ocupacion;
+  }
+
+  /**
+   * @return Los coches que salen por tick (media de los ultimos ticks).
+   */
+  public double getSalidas() {
+    return salidas;
+  }
+
+  /**
+   * @return El numero de coches esperando su permiso para entrar.
+   */
+  public int getEsperando() {
+    return permisos.getQueueLength();
+  }
+
+  /**
+   * Mide la carretera despues de n ticks, calcula la nueva tasa y
+   * reparte los permisos de esos ticks.
+   */
+  private void regular(int n) {
+    if (n == 0) {
+      return;
+    }
+    int ocupados = 0;
+    for (int s = 1; s <= segmentosMedidos; s++) {
+      ocupados += consultas.ocupacion(s);
+    }
+    ocupacion = (double) ocupados / capacidadMedida;
+    double salidasPorTick = (double) salidasTick.getAndSet(0) / n;
+    salidas = salidas + PESO_SALIDAS * (salidasPorTick - salidas);
+
+    double nueva = controlador.tasa(tasa, ocupacion, salidas);
+    tasa = Math.max(TASA_MINIMA, Math.min(rafaga, nueva));
+
+    permisosParciales += tasa * n;
+    int nuevos = (int) permisosParciales;
+    permisosParciales -= nuevos;
+    nuevos = Math.min(nuevos, rafaga - permisos.availablePermits());
+    if (nuevos > 0) {
+      permisos.release(nuevos);
+    }
+  }
+
+  // Espera un permiso de entrada, fallando si la carretera se cierra
+  void esperarPermiso() {
+    comprobarAbierta();
+    permisos.acquireUninterruptibly();
+    comprobarPermiso();
+  }
+
+  private void comprobarAbierta() {
+    if (cerrada.get()) {
+      throw new CarreteraCerradaException();
+    }
+  }
+
+  // Con la carretera cerrada, el permiso recibido pasa al siguiente que
+  // espera y el coche falla
+  private void comprobarPermiso() {
+    if (cerrada.get()) {
+      permisos.release();
+      throw new CarreteraCerradaException();
+    }
+  }
+
+  // Devuelve el permiso de un coche que no ha entrado
+  private Pos devolverSiNoEntra(Pos posicion) {
+    if (posicion == null) {
+      permisos.release();
+    }
+    return posicion;
+  }
+
+  /**
+   * CarreteraRegulada para una carretera con prioridades, que tambien
+   * las ofrece. Los permisos se dan en orden de llegada, sin clases; ya
+   * con permiso el coche espera hueco en la cola de su clase.
+   */
+  public static class ConPrioridad extends CarreteraRegulada implements CarreteraConPrioridad {
+    // La carretera regulada, vista como carretera con prioridades
+    private final CarreteraConPrioridad prioridades;
+
+    /**
+     * Constructor.
+     *
+     * @param carretera carretera cuya entrada se regula
+     * @param segmentos numero de segmentos de la carretera
+     * @param carriles numero de carriles de la carretera
+     * @param controlador decide la tasa de entrada
+     */
+    public <C extends CarreteraConPlazo & CarreteraConsultable & CarreteraConPrioridad>
+      ConPrioridad(C carretera, int segmentos, int carriles, ControladorEntrada controlador) {
+      super(carretera, segmentos, carriles, controlador);
+      this.prioridades = carretera;
+    }
+
+    /**
+     * Como entrar, pero una vez con permiso el coche espera hueco en la
+     * cola de su clase de prioridad.
+     *
+     * @return La posicion en la que entra el coche.
+     */
+    public Pos entrar(String id, int tks, Prioridad prioridad) {
+      esperarPermiso();
+      return prioridades.entrar(id, tks, prioridad);
+    }
+
+    public Pos avanzar(String id, int tks, Prioridad prioridad) {
+      return prioridades.avanzar(id, tks, prioridad);
+    }
+  }
+}
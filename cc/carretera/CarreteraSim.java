@@ -9,28 +9,28 @@ import java.awt.EventQueue;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
 import javax.swing.JButton;
-import javax.swing.JTextArea;
+import javax.swing.JList;
+import javax.swing.Timer;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicBoolean;
-import javax.swing.border.LineBorder;
-import java.util.Map;
-import java.util.HashMap;
-import java.awt.Color;
 import javax.swing.GroupLayout;
 import javax.swing.GroupLayout.Alignment;
 import javax.swing.JTextField;
-import javax.swing.JLabel;
 import javax.swing.JScrollPane;
 import javax.swing.LayoutStyle.ComponentPlacement;
 import javax.swing.SwingWorker;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import java.util.function.Supplier;
+import java.io.IOException;
+import java.nio.file.Paths;
 
 
 public class CarreteraSim {
@@ -42,13 +42,14 @@ public class CarreteraSim {
   // Random number generation
   Random rnd;
 
+  // Milliseconds between two display frames
+  static final int FRAME_MS = 40;
+
   // GUI state
   private JFrame frmCarreterasim;
-  JTextArea callsTextArea;
-  JLabel[][] carretera;
-  int[][] tks;
-  String[][] cars;
-  
+  CallLog callLog;
+  RoadView road;
+
   // JLabel timeLab;
 
   // Current time
@@ -63,6 +64,9 @@ public class CarreteraSim {
   // Manually step ticks or not
   boolean stepTicks = false;
 
+  // Name of the Carretera implementation to simulate (see Implementations)
+  String implementation;
+
   // Current generation -- we keep a count of the number of times
   // the simulation was started to keep from displaying spurious messages
   int generation = 0;
@@ -95,19 +99,27 @@ public class CarreteraSim {
    * Setup the GUI.
    */
   private void initialize() {
-    rnd = new Random();
-    segmentos = 2+rnd.nextInt(4);
-    carriles = 2+rnd.nextInt(2);
+    // The seed can be fixed with -Dcarretera.seed=<n> to repeat a run
+    long seed = Long.getLong("carretera.seed", System.nanoTime());
+    System.out.println("CarreteraSim seed: "+seed);
+    rnd = new Random(seed);
+    // Dimensions can be fixed with -Dcarretera.segmentos and -Dcarretera.carriles
+    segmentos = Integer.getInteger("carretera.segmentos", 2+rnd.nextInt(4));
+    carriles = Integer.getInteger("carretera.carriles", 2+rnd.nextInt(2));
 
     frmCarreterasim = new JFrame();
     frmCarreterasim.setTitle("CarreteraSim");
-    frmCarreterasim.setBounds(100, 100, Math.max(500,200+100*segmentos), Math.max(500,300+carriles*100));
+    frmCarreterasim.setBounds(100, 100, Math.min(1200,Math.max(500,200+100*segmentos)), Math.min(900,Math.max(500,300+carriles*100)));
     frmCarreterasim.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 
     // JLabel lblTime = new JLabel("Time:");
     // JLabel timeLab = new JLabel("0"); this.timeLab = timeLab;
     JCheckBox stepTicksBox = new JCheckBox("Step ticks");
 
+    // The implementation can be preselected with -Dcarretera.impl=<name>
+    JComboBox<String> implBox = new JComboBox<>(Implementations.names().toArray(new String[0]));
+    implBox.setSelectedItem(System.getProperty("carretera.impl", Implementations.defaultName()));
+
     JButton btnDoTimeTick = new JButton("Tick");
     btnDoTimeTick.addActionListener(new ActionListener() {
         public void actionPerformed(ActionEvent e) {
@@ -120,32 +132,34 @@ public class CarreteraSim {
         }
       });
     btnDoTimeTick.setEnabled(false);
-    carretera = new JLabel[segmentos][carriles];
-    tks = new int[segmentos][carriles];
-    cars = new String[segmentos][carriles];
-    for (int segmento=0; segmento<segmentos; segmento++)
-      for (int carril=0; carril<carriles; carril++) {
-        carretera[segmento][carril] = new JLabel("--------");
-        tks[segmento][carril] = 0;
-        cars[segmento][carril] = null;
-      }
+    road = new RoadView(segmentos, carriles);
 
     JPanel panel_options = new JPanel();
-    JPanel panel_carretera = new JPanel();
-    panel_carretera.setBorder(new LineBorder(new Color(0, 0, 0)));
+    JScrollPane panel_carretera = new JScrollPane(road);
 
     JPanel panel_actions = new JPanel();
     JPanel panel_calls = new JPanel();
 
     JTextField txtCalls = new JTextField();
     txtCalls.setEditable(false);
-    txtCalls.setText("Calls:");
+    txtCalls.setText("Messages:");
     txtCalls.setColumns(10);
 
-    callsTextArea = new JTextArea();
-    callsTextArea.setColumns(20);
-    callsTextArea.setRows(20);
-    JScrollPane callsTextAreaSP = new JScrollPane(callsTextArea);
+    callLog = new CallLog();
+    JList<String> callsList = new JList<>(callLog);
+    callsList.setPrototypeCellValue("avanzar(porsche,3) returned <10,3>");
+    JScrollPane callsTextAreaSP = new JScrollPane(callsList);
+
+    // Simulation events only update the models, the GUI is refreshed
+    // once per frame with whatever changed in between
+    Timer frameTimer = new Timer(FRAME_MS, new ActionListener() {
+        public void actionPerformed(ActionEvent e) {
+          road.flush();
+          if (callLog.flush() && callLog.getSize() > 0)
+            callsList.ensureIndexIsVisible(callLog.getSize()-1);
+        }
+      });
+    frameTimer.start();
 
     JButton btnQuit = new JButton("Quit");
     btnQuit.addActionListener(new ActionListener() {
@@ -191,16 +205,15 @@ public class CarreteraSim {
           tickQueue = new LinkedBlockingQueue<Integer>();
           // time = 0;
           // timeLab.setText(Integer.valueOf(time).toString());
-          sim = new Sim(win,rnd,generation,tickQueue,segmentos,carriles);
+          sim = new Sim(win,rnd.nextLong(),generation,tickQueue,segmentos,carriles);
           stepTicks = stepTicksBox.isSelected();
+          implementation = (String) implBox.getSelectedItem();
           btnDoTimeTick.setEnabled(stepTicks);
           btnPauseSim.setEnabled(!stepTicks);
           btnPauseSim.setText("Pause simulation");
 
-          for (JLabel[] lblRow : carretera)
-            for (JLabel lbl : lblRow)
-              lbl.setText("--------");
-          callsTextArea.setText("");
+          road.clear();
+          callLog.clear();
 
           sim.execute();
         }
@@ -216,59 +229,19 @@ public class CarreteraSim {
        .addComponent(panel_calls)
        .addComponent(panel_actions)
        .addComponent(panel_options)
-       .addComponent(panel_carretera)
+       .addComponent(panel_carretera, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE, Short.MAX_VALUE)
        );
 
     gl_top.setVerticalGroup
       (
        gl_top.createSequentialGroup()
        .addComponent(panel_options)
-       .addComponent(panel_carretera)
+       .addComponent(panel_carretera, GroupLayout.DEFAULT_SIZE, GroupLayout.PREFERRED_SIZE, Short.MAX_VALUE)
        .addComponent(panel_calls)
        .addComponent(panel_actions)
        );
 
 
-    // Panel 1: carretera
-
-    GroupLayout gl_panel_carretera = new GroupLayout(panel_carretera);
-    GroupLayout.ParallelGroup[] horizontalGroups = new GroupLayout.ParallelGroup[segmentos];
-    GroupLayout.ParallelGroup[] verticalGroups = new GroupLayout.ParallelGroup[carriles];
-
-    for (int segmento=0; segmento<segmentos; segmento++) {
-      GroupLayout.ParallelGroup g =
-        gl_panel_carretera.createParallelGroup(Alignment.LEADING);
-      horizontalGroups[segmento] =
-        g;
-      for (int carril=0; carril<carriles; carril++)
-        g.addComponent(carretera[segmento][carril], GroupLayout.DEFAULT_SIZE, 100, Short.MAX_VALUE);
-    }
-
-    for (int carril=carriles-1; carril>=0; carril--) {
-      GroupLayout.ParallelGroup g =
-        gl_panel_carretera.createParallelGroup(Alignment.BASELINE);
-      verticalGroups[carril] =
-        g;
-      for (int segmento=0; segmento<segmentos; segmento++)
-        g.addComponent(carretera[segmento][carril], GroupLayout.DEFAULT_SIZE, 30, Short.MAX_VALUE);
-    }
-
-    gl_panel_carretera.setAutoCreateGaps(true);
-    gl_panel_carretera.setAutoCreateContainerGaps(true);
-    GroupLayout.SequentialGroup horizontalGroup =
-      gl_panel_carretera.createSequentialGroup();
-    for (int segmento=0; segmento<segmentos; segmento++)
-      horizontalGroup.addGroup(horizontalGroups[segmento]);
-    gl_panel_carretera.setHorizontalGroup(horizontalGroup);
-
-    GroupLayout.SequentialGroup verticalGroup =
-      gl_panel_carretera.createSequentialGroup();
-    for (int carril=carriles-1; carril>=0; carril--)
-      verticalGroup.addGroup(verticalGroups[carril]);
-    gl_panel_carretera.setVerticalGroup(verticalGroup);
-    panel_carretera.setLayout(gl_panel_carretera);
-
-
     // Panel time_options: time and time tick option
 
     GroupLayout gl_panel_options = new GroupLayout(panel_options);
@@ -282,6 +255,8 @@ public class CarreteraSim {
        //.addPreferredGap(ComponentPlacement.UNRELATED)
        .addGap(150)
        .addComponent(stepTicksBox)
+       .addPreferredGap(ComponentPlacement.UNRELATED)
+       .addComponent(implBox, GroupLayout.PREFERRED_SIZE, GroupLayout.PREFERRED_SIZE, GroupLayout.PREFERRED_SIZE)
        );
     gl_panel_options.setVerticalGroup
       (
@@ -289,6 +264,7 @@ public class CarreteraSim {
        //.addComponent(lblTime)
        //.addComponent(timeLab)
        .addComponent(stepTicksBox)
+       .addComponent(implBox, GroupLayout.PREFERRED_SIZE, GroupLayout.PREFERRED_SIZE, GroupLayout.PREFERRED_SIZE)
        );
     panel_options.setLayout(gl_panel_options);
 
@@ -358,12 +334,9 @@ public class CarreteraSim {
 
 class Sim extends SwingWorker<Void,Object> {
 
-  // Simulation cars
+  // Names of the first simulation cars, the rest are called car<n>
   String[] cars = {"vw", "seat", "volvo", "toyota", "fiat", "ford", "citroen", "porsche"};
 
-  // Car velocicities (lower is faster!)
-  Map<String,Integer> velocidades;
-
   // Main application state (including GUI)
   CarreteraSim cs;
 
@@ -374,37 +347,50 @@ class Sim extends SwingWorker<Void,Object> {
   BlockingQueue<Integer> tickQueue;
 
   // Random state
+  long seed;
   Random rnd;
 
   // Dimensions of carretera
   int segmentos;
   int carriles;
 
+  // Binary log of every call (see EventLog)
+  EventLog eventLog = EventLog.DISABLED;
+
+  // Number of ticks done so far, guarded by tickLock which is notified
+  // on every tick
+  volatile long ticks = 0;
+  final Object tickLock = new Object();
+
+
+  // Trace of the run (see TraceRecorder), null if not recording
+  TraceRecorder recorder = null;
+
+  // Checker of the invariants of the run (see InvariantChecker), null if not checking
+  InvariantChecker checker = null;
+
+  // Admission control: cars enter through limitada.admitir, which may
+  // turn them away (null if there is no backlog limit). entryTimeout is
+  // the longest wait to enter in milliseconds, negative to wait for ever
+  boolean admission = false;
+  CarreteraLimitada limitada = null;
+  long entryTimeout = -1;
+  final AtomicLong turnedAway = new AtomicLong(0);
+
+  // Set when the run is over and the carretera is closed: the cars still
+  // blocked in it fail with CarreteraCerradaException, which is not an
+  // error of the implementation
+  volatile boolean closed = false;
+
 
-  Sim(CarreteraSim cs, Random rnd, int generation, BlockingQueue<Integer> tickQueue, int segmentos, int carriles) {
+  Sim(CarreteraSim cs, long seed, int generation, BlockingQueue<Integer> tickQueue, int segmentos, int carriles) {
     this.cs = cs;
     this.generation = generation;
     this.tickQueue = tickQueue;
     this.segmentos = segmentos;
     this.carriles = carriles;
-    this.rnd = rnd;
-
-    // Set car velocities (vw is punished for "dieselgate"...)
-    this.velocidades = new HashMap<>();
-    velocidades.put("vw",4); velocidades.put("seat",3); velocidades.put("volvo",1);
-    velocidades.put("toyota",1); velocidades.put("fiat",2); velocidades.put("ford",1);
-    velocidades.put("citroen",2); velocidades.put("porsche",3);
-  }
-
-  // Remove a car from the GUI
-  static void removeCar(CarreteraSim cs, String car) {
-    for (int i=0; i<cs.carretera.length; i++)
-      for (int j=0; j<cs.carretera[0].length; j++)
-        if (cs.carretera[i][j].getText().startsWith(car)) {
-          cs.carretera[i][j].setText("--------");
-          cs.cars[i][j] = null;
-          cs.tks[i][j] = 0;
-        }
+    this.seed = seed;
+    this.rnd = new Random(seed);
   }
 
   // Handles the GUI updates resulting from simulation events
@@ -415,10 +401,13 @@ class Sim extends SwingWorker<Void,Object> {
       // A message sent?
       if (preMsg instanceof String) {
         String str = (String) preMsg;
-        cs.callsTextArea.append(str+"\n");
+        cs.callLog.add(str);
         System.out.println(str);
       }
 
+      // Normal calls are only in the event log, the GUI gets the ones
+      // that change the road view and the errors (see sendCallToGUI)
+
       // Else we must have been sent a call and a generation
       else if (preMsg instanceof CallAndGeneration) {
         CallAndGeneration msg = (CallAndGeneration) preMsg;
@@ -430,62 +419,34 @@ class Sim extends SwingWorker<Void,Object> {
             String str = "\n*** Error: exception thrown:\n"+call.exception;
             System.out.println(str);
             call.exception.printStackTrace();
-            cs.callsTextArea.append(str+"\n");
+            cs.callLog.add(str);
             for (StackTraceElement e : call.exception.getStackTrace()) {
-              cs.callsTextArea.append(e+"\n");
+              cs.callLog.add(e.toString());
             }
           }
 
           // Call failed?
           else if (call.failed) {
             String str = "\n*** Error: "+call.failMessage;
-            cs.callsTextArea.append(str+"\n");
+            cs.callLog.add(str);
             System.out.println(str);
           }
 
           // Call returned normally
           else {
-            String str =
-              //cs.time+": "+
-              call.toString();
-            cs.callsTextArea.append(str+"\n");
-            System.out.println(str);
-
-            if (call.name.equals("entrar") && call.returned) {
-              Pos pos = call.result;
-              int segmento = pos.getSegmento()-1;
-              int carril = pos.getCarril()-1;
-              cs.cars[segmento][carril] = call.car;
-              cs.tks[segmento][carril] = call.velocidad;
-              JLabel lbl = cs.carretera[segmento][carril];
-              lbl.setText(call.car+"@"+Integer.valueOf(call.velocidad));
-            } else if (call.name.equals("avanzar") && call.returned) {
-              Pos pos = call.result;
-              int segmento = pos.getSegmento()-1;
-              int carril = pos.getCarril()-1;
-              cs.cars[segmento][carril] = call.car;
-              cs.tks[segmento][carril] = call.velocidad;
-              removeCar(cs,call.car);
-              JLabel lbl = cs.carretera[segmento][carril];
-              lbl.setText(call.car+"@"+Integer.valueOf(call.velocidad));
+            if ((call.name.equals("entrar") || call.name.equals("avanzar")) && call.returned && call.result != null) {
+              cs.road.place(call.car, call.result, call.velocidad);
             } else if (call.name.equals("salir") && call.returned) {
-              removeCar(cs,call.car);
+              cs.road.remove(call.car);
             } else if (call.name.equals("tick") && call.returned) {
-              for (int segmento=0; segmento<segmentos; segmento++)
-                for (int carril=0; carril<carriles; carril++) {
-                  if (cs.tks[segmento][carril] > 0) {
-                    --cs.tks[segmento][carril];
-                    JLabel lbl = cs.carretera[segmento][carril];
-                    lbl.setText(cs.cars[segmento][carril]+"@"+Integer.valueOf(cs.tks[segmento][carril]));
-                  }
-                }
+              cs.road.tick();
             }
           }
         }
 
       } else {
         String str = "\n*** Internal error: unknown message "+preMsg+" received";
-        cs.callsTextArea.append(str+"\n");
+        cs.callLog.add(str);
         System.out.println(str);
       }
     }
@@ -497,7 +458,7 @@ class Sim extends SwingWorker<Void,Object> {
     boolean stepTicks = cs.stepTicks;
     AtomicBoolean terminated = new AtomicBoolean(false);
 
-    // Shuffle cars
+    // Shuffle car names
     for (int i=0; i<cars.length*5; i++) {
       int one = rnd.nextInt(cars.length);
       int two = rnd.nextInt(cars.length);
@@ -506,28 +467,146 @@ class Sim extends SwingWorker<Void,Object> {
       cars[two] = carOne;
     }
 
-    // Invoke the monitor
+    // Invoke the chosen implementation
+    String implementation = cs.implementation;
     Carretera crPre = null;
 
     try {
-      crPre = new CarreteraCSP(segmentos,carriles);
+      crPre = Implementations.create(implementation,segmentos,carriles);
     } catch (Throwable exc) {
       String str =
-        "\n*** Error: calling CarreteraMonitor("+segmentos+","+carriles+") raised the exception "+exc;
+        "\n*** Error: calling "+Implementations.className(implementation)+"("+segmentos+","+carriles+") raised the exception "+exc;
       for (StackTraceElement e : exc.getStackTrace())
         str += e.toString()+"\n";
       publish(str);
       return null;
     }
 
+    // Admission control: -Dcarretera.backlog=<n> bounds the cars waiting
+    // to enter (see CarreteraLimitada) and -Dcarretera.espera=<ms> bounds
+    // how long each one waits. A car that does not get in goes home.
+    Integer backlog = Integer.getInteger("carretera.backlog");
+    entryTimeout = Long.getLong("carretera.espera", -1);
+    admission = backlog != null || entryTimeout >= 0;
+
+    // -Dcarretera.regulacion=fija:<cars per tick>|ocupacion:<target>
+    // meters the entrance (see CarreteraRegulada). The backlog limit
+    // goes outside, so the cars waiting for a metering permit count too
+    String regulacion = System.getProperty("carretera.regulacion");
+    ControladorEntrada controlador = null;
+    if (regulacion != null) {
+      try {
+        controlador = ControladorEntrada.porNombre(regulacion);
+      } catch (IllegalArgumentException exc) {
+        publish("\n*** Warning: cannot meter with "+regulacion+": "+exc.getMessage());
+      }
+    }
+
+    // -Dcarretera.estrategia=bloquear|adaptativa|ceder chooses how the
+    // cars wait in circulando and avanzar (see EstrategiaEspera)
+    String estrategia = System.getProperty("carretera.estrategia");
+    if (estrategia != null) {
+      if (!(crPre instanceof CarreteraConEspera)) {
+        publish("\n*** Warning: cannot wait with "+estrategia+": the implementation has no waiting strategies");
+      } else {
+        try {
+          ((CarreteraConEspera) crPre).esperarCon(EstrategiaEspera.porNombre(estrategia));
+        } catch (IllegalArgumentException exc) {
+          publish("\n*** Warning: cannot wait with "+estrategia+": "+exc.getMessage());
+        }
+      }
+    }
+
+    // Open the event log, one file per generation
+    String logPrefix = System.getProperty("carretera.eventlog",
+                                          Paths.get(System.getProperty("java.io.tmpdir"),"carretera-events").toString());
+    try {
+      eventLog = new EventLog(Paths.get(logPrefix+"-"+generation+".bin"));
+      publish("Logging calls to "+eventLog.getPath()+" (java cc.carretera.EventLog "+eventLog.getPath()+" prints them)");
+    } catch (IOException exc) {
+      publish("\n*** Warning: cannot open the event log: "+exc);
+    }
+
+    // Record the grant order if asked to with -Dcarretera.trace=<prefix>
+    String tracePrefix = System.getProperty("carretera.trace");
+    if (tracePrefix != null) {
+      try {
+        recorder = new TraceRecorder(Paths.get(tracePrefix+"-"+generation+".trace"),segmentos,carriles,seed);
+        publish("Recording trace to "+recorder.getPath());
+      } catch (IOException exc) {
+        publish("\n*** Warning: cannot record the trace: "+exc);
+        recorder = null;
+      }
+    }
+
+    // Check the invariants of the carretera if asked to with -Dcarretera.check=true
+    if (Boolean.getBoolean("carretera.check")) {
+      checker = new InvariantChecker(segmentos,carriles);
+    }
+
+    if (recorder != null || checker != null) {
+      if (crPre instanceof CarreteraObservable) {
+        ((CarreteraObservable) crPre).observar(recorder == null ? checker
+                                               : checker == null ? recorder
+                                               : ObservadorCarretera.combinar(recorder,checker));
+      } else {
+        publish("\n*** Warning: cannot observe the carretera: the implementation has no observer");
+        if (recorder != null) recorder.close();
+        if (checker != null) checker.close();
+        recorder = null;
+        checker = null;
+      }
+      if (checker != null) publish("Checking the invariants of the carretera");
+    }
+
+    // The wrappers only offer entries with a timeout (and the metering
+    // one the consultas), so the rest is set up on crPre above
+    Carretera regulada = crPre;
+    if (controlador != null) {
+      // The ConPrioridad variants keep the priorities of the implementation
+      if (crPre instanceof CarreteraConPlazo && crPre instanceof CarreteraConsultable
+          && crPre instanceof CarreteraConPrioridad) {
+        regulada = new CarreteraRegulada.ConPrioridad((CarreteraConPlazo & CarreteraConsultable & CarreteraConPrioridad) crPre,
+                                                      segmentos, carriles, controlador);
+      } else if (crPre instanceof CarreteraConPlazo && crPre instanceof CarreteraConsultable) {
+        regulada = new CarreteraRegulada((CarreteraConPlazo & CarreteraConsultable) crPre,
+                                         segmentos, carriles, controlador);
+      } else {
+        publish("\n*** Warning: cannot meter with "+regulacion+": the implementation has no entries with a timeout or no consultas");
+      }
+    }
+    if (admission && !(regulada instanceof CarreteraConPlazo)) {
+      publish("\n*** Warning: no admission control: the implementation has no entries with a timeout");
+      backlog = null;
+      entryTimeout = -1;
+      admission = false;
+    }
+    limitada = backlog == null ? null
+      : regulada instanceof CarreteraConPrioridad
+      ? new CarreteraLimitada.ConPrioridad((CarreteraConPlazo & CarreteraConPrioridad) regulada, backlog)
+      : new CarreteraLimitada((CarreteraConPlazo) regulada, backlog);
+
     // This strange looking code is to pass a Java check that variables used in
     // lambda expressions must be final or effectively final. Since crPre is set
     // in the try it does not pass the test (even if we assign crPre also in the catch part)
-    Carretera cr = crPre;
-
-    // Number of cars to simulate
-    int numCars = rnd.nextInt(cars.length-1)+1;
-    AtomicInteger carsToExit = new AtomicInteger(numCars);
+    Carretera cr = limitada == null ? regulada : limitada;
+
+    // Traffic to simulate (see TrafficGenerator). By default a few cars
+    // arriving all at once; -Dcarretera.cars, -Dcarretera.arrivals and
+    // -Dcarretera.speeds give other workloads. Cars are generated as
+    // they arrive, never all in advance.
+    long numCars = Long.getLong("carretera.cars", rnd.nextInt(cars.length-1)+1);
+    TrafficGenerator traffic;
+    try {
+      traffic = new TrafficGenerator(rnd.nextLong(), numCars,
+                                     System.getProperty("carretera.arrivals", "all"),
+                                     System.getProperty("carretera.speeds", "weighted:3:2:2:1"),
+                                     cars, "car");
+    } catch (RuntimeException exc) {
+      publish("\n*** Error: wrong traffic options: "+exc);
+      return null;
+    }
+    AtomicLong carsToExit = new AtomicLong(numCars);
 
     if (segmentos < 1 || carriles < 1) {
       System.out.println
@@ -537,52 +616,37 @@ class Sim extends SwingWorker<Void,Object> {
 
     System.out.println
       ("Simulation of "+numCars+" cars moving in a carretera of segmentos "
-       +segmentos+" with "+carriles+" lanes");
-
-    for (int i=0; i<numCars; i++) {
-      String car = cars[i];
-      int velocidad = velocidades.get(car);
+       +segmentos+" with "+carriles+" lanes using "+Implementations.className(implementation)+" (seed "+seed+")");
 
-      // One thread per car executes the car protocol (entrar, circulando, [avanzar, circulando]*, salir)
-      Thread carTh = new Thread(car) {
-          public void run() {
-            Pos result = null;
-            int currX = 1;
-
-            // Do the car process
-            if (!terminated.get()) {
-              terminated.compareAndSet
-                (false,!doResultCall(() -> cr.entrar(car,velocidad), SimCall.entrar(car,velocidad), currX, carriles));
-            }
-
-            if (!terminated.get()) {
-              terminated.compareAndSet
-                (false,!doCall(() -> cr.circulando(car), SimCall.circulando(car)));
-            }
-
-            while (!terminated.get() && currX < segmentos) {
-
-              if (!terminated.get()) {
-                terminated.compareAndSet
-                  (false,!doResultCall(() -> cr.avanzar(car,velocidad), SimCall.avanzar(car,velocidad), ++currX, carriles));
-              }
-
-              if (!terminated.get()) {
-                terminated.compareAndSet
-                  (false,!doCall(() -> cr.circulando(car), SimCall.circulando(car)));
+    // Start each car when the clock reaches its arrival tick. At most
+    // TrafficGenerator.MAX_LIVE_CARS car threads exist at a time, later
+    // cars wait for a free one even if it makes them arrive late.
+    Semaphore liveCars = new Semaphore(TrafficGenerator.MAX_LIVE_CARS);
+    Thread trafficThread = new Thread("traffic") {
+        public void run() {
+          while (traffic.hasNext() && !terminated.get()) {
+            TrafficGenerator.CarDef def = traffic.next();
+            synchronized (tickLock) {
+              while (ticks < def.arrival && !terminated.get()) {
+                try {
+                  tickLock.wait();
+                } catch (InterruptedException e) {
+                  return;
+                }
               }
             }
-
-            if (!terminated.get()) {
-              terminated.compareAndSet
-                (false,!doCall(() -> cr.salir(car), SimCall.salir(car)));
+            try {
+              liveCars.acquire();
+            } catch (InterruptedException e) {
+              return;
             }
-
-            carsToExit.decrementAndGet();
+            if (terminated.get()) return;
+            startCar(cr, def.id, def.velocidad, terminated, carsToExit, liveCars);
           }
-        };
-      carTh.start();
-    }
+        }
+      };
+    trafficThread.setDaemon(true);
+    trafficThread.start();
 
 
     // Avance time -- either manualy (step ticks) or automatically.
@@ -621,27 +685,131 @@ class Sim extends SwingWorker<Void,Object> {
             if (!terminated.get()) {
               terminated.compareAndSet(false,!doCall(() -> cr.tick(), SimCall.tick()));
             }
+            synchronized (tickLock) {
+              ++ticks;
+              tickLock.notifyAll();
+            }
           } while (!terminated.get() && carsToExit.get() > 0);
+
+          // Release the cars still blocked and the threads of the carretera
+          closed = true;
+          cr.close();
+
+          try {
+            eventLog.close();
+            if (recorder != null) recorder.close();
+          } catch (IOException exc) {
+            publish("\n*** Warning: cannot close the logs: "+exc);
+          }
+          if (admission) {
+            publish(turnedAway.get()+" cars were turned away by the admission control");
+          }
+          if (checker != null) {
+            checker.close();
+            publish((checker.violations() > 0 ? "\n*** Error: " : "Invariants: ")+checker.report());
+          }
         }
       };
     timeThread.start();
     return null;
   }
 
-  // Send a message from the simulation to the GUI
-  SimCall sendCallToGUI(SimCall call) {
-    publish(new CallAndGeneration(call,generation));
-    return call;
+  // Entrance of a car, through the admission control if any
+  Pos entrar(Carretera cr, String car, int velocidad) {
+    if (limitada != null) {
+      return entryTimeout < 0 ? limitada.admitir(car,velocidad) : limitada.admitir(car,velocidad,entryTimeout);
+    }
+    return entryTimeout < 0 ? cr.entrar(car,velocidad) : ((CarreteraConPlazo) cr).entrar(car,velocidad,entryTimeout);
+  }
+
+  // One thread per car executes the car protocol (entrar, circulando, [avanzar, circulando]*, salir)
+  void startCar(Carretera cr, String car, int velocidad, AtomicBoolean terminated, AtomicLong carsToExit, Semaphore liveCars) {
+    Thread carTh = new Thread(car) {
+        public void run() {
+          int currX = 1;
+          Pos[] entrada = new Pos[1];
+
+          // Do the car process
+          if (!terminated.get()) {
+            terminated.compareAndSet
+              (false,!doResultCall(() -> entrada[0] = entrar(cr,car,velocidad),
+                                   SimCall.entrar(car,velocidad), currX, carriles, admission));
+          }
+
+          // Turned away by the admission control
+          if (!terminated.get() && entrada[0] == null) {
+            turnedAway.incrementAndGet();
+            carsToExit.decrementAndGet();
+            liveCars.release();
+            return;
+          }
+
+          if (!terminated.get()) {
+            terminated.compareAndSet
+              (false,!doCall(() -> cr.circulando(car), SimCall.circulando(car)));
+          }
+
+          while (!terminated.get() && currX < segmentos) {
+
+            if (!terminated.get()) {
+              terminated.compareAndSet
+                (false,!doResultCall(() -> cr.avanzar(car,velocidad), SimCall.avanzar(car,velocidad), ++currX, carriles));
+            }
+
+            if (!terminated.get()) {
+              terminated.compareAndSet
+                (false,!doCall(() -> cr.circulando(car), SimCall.circulando(car)));
+            }
+          }
+
+          if (!terminated.get()) {
+            terminated.compareAndSet
+              (false,!doCall(() -> cr.salir(car), SimCall.salir(car)));
+          }
+
+          carsToExit.decrementAndGet();
+          liveCars.release();
+        }
+      };
+    carTh.start();
+  }
+
+  // Send a finished call to the GUI if it changes the road view (a
+  // grant, an exit or a tick) or is an error. Every call is already in
+  // the event log, so the GUI neither gets the rest nor the calls as
+  // they start, which would double the messages for nothing to show
+  void sendCallToGUI(SimCall call) {
+    if (call.raisedException || call.failed
+        || (call.returned && (call.result != null || call.name.equals("salir") || call.name.equals("tick")))) {
+      publish(new CallAndGeneration(call,generation));
+    }
+  }
+
+  // Write a call to the event log
+  void logCall(SimCall call, int kind, int handle) {
+    int segmento = 0;
+    int carril = 0;
+    if (call.result != null) {
+      segmento = call.result.getSegmento();
+      carril = call.result.getCarril();
+    }
+    eventLog.log(call.op, kind, handle, segmento, carril, ticks);
   }
 
   boolean doCall(Runnable callCode, SimCall oldCall) {
-    sendCallToGUI(oldCall);
+    int handle = eventLog.handle(oldCall.car);
+    logCall(oldCall, EventLog.CALL, handle);
     SimCall call = new SimCall(oldCall);
 
     boolean callResult = true;
 
     try {
       callCode.run();
+    } catch (CarreteraCerradaException exc) {
+      if (closed) return false;
+      call.raisedException = true;
+      call.exception = exc;
+      callResult = false;
     } catch (Throwable exc) {
       call.raisedException = true;
       call.exception = exc;
@@ -652,18 +820,30 @@ class Sim extends SwingWorker<Void,Object> {
       call.returned();
     }
 
+    logCall(call, callResult ? EventLog.RETURN : EventLog.FAIL, handle);
     sendCallToGUI(call);
     return callResult;
   }
 
   boolean doResultCall(Supplier<Pos> callCode, SimCall oldCall, int expectedSegmento, int carriles) {
-    sendCallToGUI(oldCall);
+    return doResultCall(callCode, oldCall, expectedSegmento, carriles, false);
+  }
+
+  // With mayBeTurnedAway a null result is not an error: the car did not get in
+  boolean doResultCall(Supplier<Pos> callCode, SimCall oldCall, int expectedSegmento, int carriles, boolean mayBeTurnedAway) {
+    int handle = eventLog.handle(oldCall.car);
+    logCall(oldCall, EventLog.CALL, handle);
     SimCall call = new SimCall(oldCall);
     boolean callResult = true;
     Pos pos = null;
 
     try {
       pos = callCode.get();
+    } catch (CarreteraCerradaException exc) {
+      if (closed) return false;
+      call.raisedException = true;
+      call.exception = exc;
+      callResult = false;
     } catch (Throwable exc) {
       call.raisedException = true;
       call.exception = exc;
@@ -672,9 +852,12 @@ class Sim extends SwingWorker<Void,Object> {
 
     if (callResult) {
       call.returned(pos);
-      callResult = checkCall(call, expectedSegmento, carriles);
+      if (pos != null || !mayBeTurnedAway) {
+        callResult = checkCall(call, expectedSegmento, carriles);
+      }
     }
 
+    logCall(call, callResult ? EventLog.RETURN : EventLog.FAIL, handle);
     sendCallToGUI(call);
     return callResult;
   }
@@ -719,6 +902,7 @@ class CallAndGeneration {
 // A simulation event sent to the GUI
 class SimCall {
   String name;
+  int op;
   String car=null;
   Integer velocidad=null;
   boolean returned;
@@ -728,10 +912,11 @@ class SimCall {
   boolean raisedException=false;
   Throwable exception;
 
-  SimCall(String name) { this.name = name; this.returned = false; }
+  SimCall(String name, int op) { this.name = name; this.op = op; this.returned = false; }
 
   SimCall(SimCall call) {
     this.name = call.name;
+    this.op = call.op;
     this.car = call.car;
     this.velocidad = call.velocidad;
     this.returned = call.returned;
@@ -743,23 +928,23 @@ class SimCall {
   }
 
   static SimCall entrar(String car, int velocidad) {
-    SimCall call = new SimCall("entrar"); call.car = car; call.velocidad = velocidad; return call;
+    SimCall call = new SimCall("entrar",EventLog.ENTRAR); call.car = car; call.velocidad = velocidad; return call;
   }
 
   static SimCall avanzar(String car, int velocidad) {
-    SimCall call = new SimCall("avanzar"); call.car = car; call.velocidad = velocidad; return call;
+    SimCall call = new SimCall("avanzar",EventLog.AVANZAR); call.car = car; call.velocidad = velocidad; return call;
   }
 
   static SimCall salir(String car) {
-    SimCall call = new SimCall("salir"); call.car = car; return call;
+    SimCall call = new SimCall("salir",EventLog.SALIR); call.car = car; return call;
   }
 
   static SimCall circulando(String car) {
-    SimCall call = new SimCall("circulando"); call.car = car; return call;
+    SimCall call = new SimCall("circulando",EventLog.CIRCULANDO); call.car = car; return call;
   }
 
   static SimCall tick() {
-    SimCall call = new SimCall("tick"); return call;
+    SimCall call = new SimCall("tick",EventLog.TICK); return call;
   }
 
   public void returned() {
@@ -784,6 +969,7 @@ class SimCall {
     if (returned) {
       str += " returned";
       if (result != null) str += " "+result;
+      else if (name.equals("entrar")) str += " null, turned away";
     }
     return str;
   }
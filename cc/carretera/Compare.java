@@ -0,0 +1,315 @@
+/*
+ * Runs the same seeded workload against several Carretera
+ * implementations and compares them.
+ *
+ */
+package cc.carretera;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/*
+ * Usage:
+ *   java cc.carretera.Compare [-impls csp,monitor] [-seed n] [-cars n]
+ *                             [-segmentos n] [-carriles n]
+ *                             [-arrivals all] [-speeds uniform:1:4] [-check] [-skip]
+ *                             [-wait bloquear|adaptativa|ceder]
+ *
+ * The workload (cars, their velocidades and arrival ticks, see
+ * TrafficGenerator) is generated from the seed, so every
+ * implementation gets exactly the same one. The
+ * implementations are run one after the other in this process, each
+ * with one thread per car and a clock thread that ticks as fast as it
+ * can. As in the simulator, at most TrafficGenerator.MAX_LIVE_CARS car
+ * threads exist at a time and later cars wait for a free one, so memory
+ * does not grow with -cars: each car keeps only its own latencies and
+ * adds them to the run's histogram when it leaves. For each implementation it reports:
+ *
+ *   - throughput: cars that went through the carretera per second
+ *   - latency percentiles of the entrar/avanzar calls
+ *   - the first divergence from the positions of the first run, when
+ *     replaying its grant order
+ *
+ * Lanes and the order in which cars get each segment legitimately
+ * differ between free runs (the interleaving of the threads is not
+ * fixed), so each car only checks its own positions: one whose segments
+ * are not 1, 2, ..., segmentos, or whose carril is out of range, is
+ * reported as an error.
+ *
+ * To compare positions between implementations, the first observable
+ * run is recorded with a TraceRecorder (which slows that run down a
+ * little), and the other implementations
+ * replay its grant order with a TraceReplayer. Given the same order
+ * they must hand out the same positions; the first one that differs
+ * is reported. A replay that gets stuck is an error.
+ *
+ * With -check every run is watched by an InvariantChecker and its
+ * violations are reported as errors too.
+ *
+ * With -skip the clock jumps to the next expiry (tickHastaVencimiento)
+ * instead of ticking one by one, and falls back to a single tick when
+ * no car is circulando. Implementations that cannot jump tick one by
+ * one.
+ *
+ * With -wait the cars of every run wait with that EstrategiaEspera
+ * (each run gets its own adaptive one).
+ */
+class Compare {
+
+  // One run of the workload on one implementation
+  static class Run {
+    final String impl;
+    long elapsedNanos;
+    // Shared by the cars of the run, guarded by itself
+    final LatencyHistogram latencies = new LatencyHistogram();
+    volatile String error = null;
+    InvariantChecker checker = null;
+    TraceRecorder recorder = null;
+    boolean observable = true;
+    long ticks;
+
+    Run(String impl) {
+      this.impl = impl;
+    }
+  }
+
+  final long seed;
+  final int numCars;
+  final int segmentos;
+  final int carriles;
+  final String arrivals;
+  final String speeds;
+  final boolean check;
+  final boolean skip;
+  final String wait;
+
+  Compare(long seed, int numCars, int segmentos, int carriles, String arrivals, String speeds,
+          boolean check, boolean skip, String wait) {
+    this.seed = seed;
+    this.numCars = numCars;
+    this.segmentos = segmentos;
+    this.carriles = carriles;
+    this.arrivals = arrivals;
+    this.speeds = speeds;
+    this.check = check;
+    this.skip = skip;
+    this.wait = wait;
+  }
+
+  // Same seed and options, so every run gets the same cars
+  TrafficGenerator traffic() {
+    return new TrafficGenerator(seed, numCars, arrivals, speeds, new String[0], "car");
+  }
+
+  // Runs the workload on impl. If trace is not null and impl is
+  // observable, the grant order of the run is recorded into trace.
+  Run run(String impl, Path trace) throws InterruptedException, IOException {
+    Run run = new Run(impl);
+    Carretera cr = Implementations.create(impl, segmentos, carriles);
+    if (wait != null) {
+      if (!(cr instanceof CarreteraConEspera)) {
+        throw new IllegalArgumentException(impl+" has no waiting strategies, cannot wait with "+wait);
+      }
+      ((CarreteraConEspera) cr).esperarCon(EstrategiaEspera.porNombre(wait));
+    }
+    run.observable = cr instanceof CarreteraObservable;
+    if (run.observable) {
+      if (check) run.checker = new InvariantChecker(segmentos, carriles);
+      if (trace != null) run.recorder = new TraceRecorder(trace, segmentos, carriles, seed);
+      if (run.checker != null || run.recorder != null) {
+        ((CarreteraObservable) cr).observar(run.recorder == null ? run.checker
+                                            : run.checker == null ? run.recorder
+                                            : ObservadorCarretera.combinar(run.recorder, run.checker));
+      }
+    }
+    AtomicInteger carsToExit = new AtomicInteger(numCars);
+    AtomicLong ticks = new AtomicLong();
+    Semaphore liveCars = new Semaphore(TrafficGenerator.MAX_LIVE_CARS);
+
+    // Implementations that cannot jump to the next expiry tick one by one
+    CarreteraConSaltos saltos = skip && cr instanceof CarreteraConSaltos ? (CarreteraConSaltos) cr : null;
+
+    Thread clock = new Thread("compare-tick") {
+        public void run() {
+          while (carsToExit.get() > 0) {
+            int n = saltos != null ? saltos.tickHastaVencimiento() : 0;
+            if (n == 0) {
+              cr.tick();
+              n = 1;
+            }
+            ticks.addAndGet(n);
+          }
+        }
+      };
+    clock.setDaemon(true);
+
+    long start = System.nanoTime();
+    clock.start();
+    TrafficGenerator traffic = traffic();
+    while (traffic.hasNext()) {
+      TrafficGenerator.CarDef def = traffic.next();
+      Thread car = new Thread("compare-"+def.id) {
+          public void run() {
+            long[] latencies = new long[segmentos];
+            int steps = 0;
+            try {
+              String id = def.id;
+              int tks = def.velocidad;
+              long t0 = System.nanoTime();
+              Pos pos = cr.entrar(id, tks);
+              latencies[steps++] = System.nanoTime() - t0;
+              checkPosition(run, id, pos, 1);
+              cr.circulando(id);
+              for (int s = 1; s < segmentos; s++) {
+                t0 = System.nanoTime();
+                pos = cr.avanzar(id, tks);
+                latencies[steps++] = System.nanoTime() - t0;
+                checkPosition(run, id, pos, s+1);
+                cr.circulando(id);
+              }
+              cr.salir(id);
+            } finally {
+              synchronized (run.latencies) {
+                for (int s = 0; s < steps; s++) run.latencies.record(latencies[s]);
+              }
+              carsToExit.decrementAndGet();
+              liveCars.release();
+            }
+          }
+        };
+      car.setDaemon(true);
+      // The clock runs free, so waiting for an arrival is short
+      while (ticks.get() < def.arrival) Thread.yield();
+      liveCars.acquire();
+      car.start();
+    }
+    // Every car has left once all the permits are back
+    liveCars.acquire(TrafficGenerator.MAX_LIVE_CARS);
+    run.elapsedNanos = System.nanoTime() - start;
+    clock.join();
+    run.ticks = ticks.get();
+    cr.close();
+    if (run.checker != null) run.checker.close();
+    if (run.recorder != null) run.recorder.close();
+    return run;
+  }
+
+  // Replays the grant order of a recorded run on a new instance of impl
+  TraceReplayer replay(String impl, Trace trace) {
+    Carretera cr = Implementations.create(impl, segmentos, carriles);
+    TraceReplayer replayer = new TraceReplayer(trace, cr);
+    replayer.replay();
+    cr.close();
+    return replayer;
+  }
+
+  // Records the first wrong position of the run: step s must be in
+  // segmento s, on an existing carril
+  void checkPosition(Run run, String car, Pos pos, int step) {
+    if (pos == null || pos.getSegmento() != step || pos.getCarril() < 1 || pos.getCarril() > carriles) {
+      synchronized (run) {
+        if (run.error == null) run.error = car+" got position "+pos+" in step "+step;
+      }
+    }
+  }
+
+  public static void main(String[] args) throws InterruptedException, IOException {
+    List<String> impls = Implementations.names();
+    long seed = System.nanoTime();
+    int numCars = 1000;
+    int segmentos = 10;
+    int carriles = 3;
+    String arrivals = "all";
+    String speeds = "uniform:1:4";
+    boolean check = false;
+    boolean skip = false;
+    String wait = null;
+
+    for (int i = 0; i < args.length; i += 2) {
+      if (args[i].equals("-check") || args[i].equals("-skip")) {
+        if (args[i].equals("-check")) check = true;
+        else skip = true;
+        --i;
+        continue;
+      }
+      if (i+1 == args.length) {
+        System.err.println("Missing value of option "+args[i]);
+        System.exit(1);
+      }
+      switch (args[i]) {
+      case "-impls": impls = Arrays.asList(args[i+1].split(",")); break;
+      case "-seed": seed = Long.parseLong(args[i+1]); break;
+      case "-cars": numCars = Integer.parseInt(args[i+1]); break;
+      case "-segmentos": segmentos = Integer.parseInt(args[i+1]); break;
+      case "-carriles": carriles = Integer.parseInt(args[i+1]); break;
+      case "-arrivals": arrivals = args[i+1]; break;
+      case "-speeds": speeds = args[i+1]; break;
+      case "-wait": wait = args[i+1]; break;
+      default:
+        System.err.println("Unknown option "+args[i]);
+        System.exit(1);
+      }
+    }
+
+    System.out.println("Comparing "+impls+" with "+numCars+" cars on a carretera of "
+                       +segmentos+" segmentos and "+carriles+" carriles, arrivals "+arrivals
+                       +" and speeds "+speeds+" (seed "+seed+")"
+                       +(wait == null ? "" : ", cars wait with "+wait));
+    Compare compare = new Compare(seed, numCars, segmentos, carriles, arrivals, speeds, check, skip, wait);
+
+    boolean ok = true;
+    // Grant order of the first observable run, replayed by the others
+    String traced = null;
+    Trace trace = null;
+    for (String impl : impls) {
+      Path tracePath = trace == null ? Files.createTempFile("carretera-compare", ".trace") : null;
+      Run run;
+      try {
+        run = compare.run(impl, tracePath);
+        if (run.recorder != null) {
+          traced = impl;
+          trace = Trace.read(tracePath);
+        }
+      } finally {
+        if (tracePath != null) Files.delete(tracePath);
+      }
+      System.out.println();
+      System.out.println(Implementations.className(impl)+" ("+impl+"):");
+      System.out.printf("  throughput: %.0f cars/s (%d ms)%n",
+                        numCars*1e9/run.elapsedNanos, run.elapsedNanos/1_000_000);
+      System.out.println("  ticks: "+run.ticks);
+      System.out.println("  entrar/avanzar latency: "+run.latencies.summary());
+      if (run.error != null) {
+        System.out.println("  *** Error: "+run.error);
+        ok = false;
+      }
+      if (check && !run.observable) {
+        System.out.println("  invariants: not checked, the implementation has no observer");
+      }
+      if (trace != null && !impl.equals(traced)) {
+        TraceReplayer replayer = compare.replay(impl, trace);
+        if (replayer.stuck != null) {
+          System.out.println("  *** Error: replaying the "+traced+" run got stuck at "+replayer.stuck);
+          ok = false;
+        } else if (replayer.firstDivergence != null) {
+          System.out.println("  replay of the "+traced+" run: "+replayer.divergences+" divergences, first at "
+                             +replayer.firstDivergence);
+        } else {
+          System.out.println("  replay of the "+traced+" run: same positions");
+        }
+      }
+      if (run.checker != null) {
+        System.out.println("  invariants: "+run.checker.report().replace("\n", "\n  "));
+        if (run.checker.violations() > 0) ok = false;
+      }
+    }
+    System.exit(ok ? 0 : 1);
+  }
+}
@@ -0,0 +1,86 @@
+package cc.carretera;
+
+/**
+ * Decide a que ritmo deja entrar coches una CarreteraRegulada.
+ *
+ * Despues de cada tick la carretera le pasa lo que ha medido y el
+ * controlador devuelve la tasa de entrada (coches por tick) hasta el
+ * siguiente:
+ * - fija(tasa): siempre la misma tasa.
+ * - ocupacion(objetivo): realimentacion de la ocupacion, como ALINEA
+ *   en las rampas de las autopistas. Sube la tasa mientras la
+ *   ocupacion de los primeros segmentos esta por debajo del objetivo y
+ *   la baja cuando esta por encima, y entonces deja entrar menos
+ *   coches de los que salen.
+ */
+public interface ControladorEntrada {
+
+  /**
+   * @param tasa tasa de entrada actual, en coches por tick
+   * @param ocupacion fraccion de carriles ocupados de los primeros
+   *                  segmentos (de 0 a 1)
+   * @param salidas coches que salen de la carretera por tick (media de
+   *                los ultimos ticks)
+   *
+   * @return La tasa de entrada hasta el siguiente tick, en coches por
+   *         tick. La carretera la limita a un valor razonable.
+   */
+  double tasa(double tasa, double ocupacion, double salidas);
+
+  /**
+   * @return Un controlador que deja entrar siempre cochesPorTick coches
+   *         por tick.
+   */
+  static ControladorEntrada fija(double cochesPorTick) {
+    if (cochesPorTick <= 0) {
+      throw new IllegalArgumentException("La tasa debe ser positiva: "+cochesPorTick);
+    }
+    return (tasa, ocupacion, salidas) -> cochesPorTick;
+  }
+
+  /**
+   * @param objetivo ocupacion de los primeros segmentos que se busca (de 0 a 1)
+   *
+   * @return Un controlador que ajusta la tasa para mantener la ocupacion
+   *         en el objetivo.
+   */
+  static ControladorEntrada ocupacion(double objetivo) {
+    if (objetivo <= 0 || objetivo > 1) {
+      throw new IllegalArgumentException("La ocupacion objetivo debe estar entre 0 y 1: "+objetivo);
+    }
+    return (tasa, ocupacion, salidas) -> {
+      // La correccion es proporcional al error y a la propia tasa, para
+      // que sirva igual en carreteras de pocos y de muchos carriles. Por
+      // encima del objetivo se parte de los coches que salen, para que
+      // la carretera se vacie hasta el objetivo
+      double base = ocupacion > objetivo ? Math.min(tasa, salidas) : tasa;
+      return base * (1 + GANANCIA * (objetivo - ocupacion));
+    };
+  }
+
+  /**
+   * @param nombre fija:cochesPorTick u ocupacion:objetivo
+   *
+   * @return El controlador con ese nombre.
+   */
+  static ControladorEntrada porNombre(String nombre) {
+    String[] partes = nombre.split(":");
+    try {
+      if (partes.length == 2 && partes[0].equalsIgnoreCase("fija")) {
+        return fija(Double.parseDouble(partes[1]));
+      }
+      if (partes.length == 2 && partes[0].equalsIgnoreCase("ocupacion")) {
+        return ocupacion(Double.parseDouble(partes[1]));
+      }
+    } catch (NumberFormatException e) {
+      // Lo tratamos como un nombre desconocido
+    }
+    throw new IllegalArgumentException("Controlador de entrada desconocido "+nombre
+                                       +", use fija:<coches por tick> u ocupacion:<objetivo>");
+  }
+
+  /**
+   * Ganancia del controlador de ocupacion.
+   */
+  double GANANCIA = 1.0;
+}
@@ -0,0 +1,120 @@
+package cc.carretera;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Como espera un coche antes de bloquearse en circulando o avanzar.
+ *
+ * Antes de bloquearse, la carretera llama a esperar con la condicion
+ * por la que espera el coche (comprobable sin exclusion mutua). Si la
+ * estrategia ve que se cumple, el coche ya no se bloquea: se ahorra
+ * el cambio de contexto de despertarlo. Si no, se bloquea como
+ * siempre. La carretera vuelve a comprobar la condicion en cualquier
+ * caso, asi que la estrategia solo cambia cuanto tarda el coche en
+ * enterarse, nunca el resultado.
+ *
+ * - BLOQUEAR: se bloquea sin esperar. Es lo mejor si los ticks estan
+ *   separados (el reloj real de la simulacion).
+ * - adaptativa(): da unas vueltas comprobando la condicion antes de
+ *   bloquearse. Las vueltas se ajustan solas: se duplican cada vez que
+ *   la condicion se cumple dando vueltas y se reducen a la mitad cada
+ *   vez que no. Con un solo procesador no da vueltas (nadie puede
+ *   cumplir la condicion mientras las da).
+ * - CEDER: no se bloquea nunca, cede el procesador hasta que se cumple
+ *   la condicion. Solo tiene sentido si los ticks son muy seguidos.
+ */
+public interface EstrategiaEspera {
+
+  /**
+   * Espera a que se cumpla la condicion, o decide que el coche se
+   * bloquee.
+   *
+   * @param listo condicion por la que espera el coche
+   *
+   * @return Si se ha cumplido la condicion.
+   */
+  boolean esperar(BooleanSupplier listo);
+
+  /**
+   * Se bloquea sin esperar.
+   */
+  EstrategiaEspera BLOQUEAR = listo -> false;
+
+  /**
+   * Cede el procesador hasta que se cumple la condicion.
+   */
+  EstrategiaEspera CEDER = listo -> {
+    while (!listo.getAsBoolean()) {
+      Thread.yield();
+    }
+    return true;
+  };
+
+  /**
+   * @return Una estrategia que da vueltas antes de bloquearse, con su
+   *         propio numero de vueltas (se recomienda una por carretera).
+   */
+  static EstrategiaEspera adaptativa() {
+    return new Adaptativa();
+  }
+
+  /**
+   * @param nombre bloquear, adaptativa o ceder
+   *
+   * @return La estrategia con ese nombre.
+   */
+  static EstrategiaEspera porNombre(String nombre) {
+    switch (nombre.toLowerCase()) {
+      case "bloquear":
+        return BLOQUEAR;
+      case "adaptativa":
+        return adaptativa();
+      case "ceder":
+        return CEDER;
+      default:
+        throw new IllegalArgumentException("Estrategia de espera desconocida "+nombre
+                                           +", use bloquear, adaptativa o ceder");
+    }
+  }
+
+  /**
+   * Espera dando vueltas con un numero de vueltas adaptativo.
+   */
+  final class Adaptativa implements EstrategiaEspera {
+    // Limites del numero de vueltas
+    private static final int MIN_VUELTAS = 16;
+    private static final int MAX_VUELTAS = 1 << 14;
+
+    // Con un solo procesador no se dan vueltas
+    private static final boolean MULTIPROCESADOR = Runtime.getRuntime().availableProcessors() > 1;
+
+    // Vueltas que se dan antes de bloquearse. Lo actualizan todos los
+    // coches sin sincronizar: si se pierde alguna actualizacion da igual
+    private volatile int vueltas = 256;
+
+    private Adaptativa() { }
+
+    public boolean esperar(BooleanSupplier listo) {
+      if (!MULTIPROCESADOR) {
+        return false;
+      }
+      int limite = vueltas;
+      for (int i = 0; i < limite; i++) {
+        if (listo.getAsBoolean()) {
+          vueltas = Math.min(MAX_VUELTAS, limite * 2);
+          return true;
+        }
+        Thread.onSpinWait();
+      }
+      vueltas = Math.max(MIN_VUELTAS, limite / 2);
+      return false;
+    }
+
+    /**
+     * @return Las vueltas que se dan ahora antes de bloquearse.
+     */
+    public int getVueltas() {
+      return vueltas;
+    }
+  }
+}
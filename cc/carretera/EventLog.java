@@ -0,0 +1,312 @@
+/*
+ * Asynchronous binary log of the calls made during a simulation.
+ *
+ */
+package cc.carretera;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/*
+ * Every thread that logs gets its own single-producer ring of fixed
+ * size records, so logging a call is a handful of plain stores and
+ * one ordered store, with no locks and no allocation. A background
+ * writer thread drains the rings into a memory-mapped file.
+ *
+ * Record layout (32 bytes, little endian):
+ *   long  op<<56 | kind<<48 | car handle (32 bits)
+ *   long  segmento<<32 | carril
+ *   long  tick
+ *   long  System.nanoTime() when the record was written
+ *
+ * Cars are identified by an int handle; the names of the handles are
+ * written to a side file "<log>.names", one per line, on close().
+ * If a ring is full the record is dropped and counted, a car thread
+ * never waits for the writer.
+ *
+ * Run "java cc.carretera.EventLog <log>" to print a log as text.
+ */
+class EventLog implements AutoCloseable {
+
+  // Operations
+  static final int ENTRAR = 0;
+  static final int AVANZAR = 1;
+  static final int CIRCULANDO = 2;
+  static final int SALIR = 3;
+  static final int TICK = 4;
+  static final String[] OP_NAMES = {"entrar", "avanzar", "circulando", "salir", "tick"};
+
+  // Kinds of record
+  static final int CALL = 0;
+  static final int RETURN = 1;
+  static final int FAIL = 2;
+  static final String[] KIND_NAMES = {"call", "returned", "failed"};
+
+  static final int RECORD_BYTES = 32;
+  static final int RECORD_LONGS = RECORD_BYTES/8;
+
+  // Records per thread ring (a power of two). There is a ring per car
+  // thread, so it is kept small: 16KB
+  static final int RING_RECORDS = 1 << 9;
+
+  // Size of each mapped region of the file
+  static final long REGION_BYTES = 16L << 20;
+
+  // A log that does nothing
+  static final EventLog DISABLED = new EventLog();
+
+  private final boolean enabled;
+  private final Path path;
+  private final FileChannel channel;
+  private MappedByteBuffer region;
+  private long regionStart;
+  private long written = 0;
+
+  private final ThreadLocal<Ring> ring;
+  private final List<Ring> rings = new CopyOnWriteArrayList<>();
+
+  private final ConcurrentHashMap<String,Integer> handles = new ConcurrentHashMap<>();
+  private final AtomicInteger nextHandle = new AtomicInteger(0);
+  private final AtomicLong dropped = new AtomicLong(0);
+
+  private final Thread writer;
+  private volatile boolean closing = false;
+
+  private EventLog() {
+    this.enabled = false;
+    this.path = null;
+    this.channel = null;
+    this.ring = null;
+    this.writer = null;
+  }
+
+  EventLog(Path path) throws IOException {
+    this.enabled = true;
+    this.path = path;
+    this.channel = new RandomAccessFile(path.toFile(), "rw").getChannel();
+    this.channel.truncate(0);
+    this.regionStart = 0;
+    this.region = map(0);
+    this.ring = ThreadLocal.withInitial(() -> {
+        Ring r = new Ring(Thread.currentThread());
+        rings.add(r);
+        return r;
+      });
+    this.writer = new Thread("eventlog-writer") {
+        public void run() {
+          writerLoop();
+        }
+      };
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  Path getPath() {
+    return path;
+  }
+
+  // Number of records lost because a ring was full
+  long dropped() {
+    long total = dropped.get();
+    for (Ring r : rings) total += r.dropped;
+    return total;
+  }
+
+  // Handle of a car, assigned on first use
+  int handle(String car) {
+    if (!enabled || car == null) return -1;
+    Integer h = handles.get(car);
+    if (h == null) {
+      h = handles.computeIfAbsent(car, k -> nextHandle.getAndIncrement());
+    }
+    return h;
+  }
+
+  // Log a record from the calling thread
+  void log(int op, int kind, int car, int segmento, int carril, long tick) {
+    if (!enabled || closing) return;
+    ring.get().offer(((long) op << 56) | ((long) kind << 48) | (car & 0xFFFFFFFFL),
+                     ((long) segmento << 32) | (carril & 0xFFFFFFFFL),
+                     tick,
+                     System.nanoTime());
+  }
+
+  // Flush everything logged so far, stop the writer and write the names
+  @Override
+  public void close() throws IOException {
+    if (!enabled || closing) return;
+    closing = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    region.force();
+    channel.truncate(written);
+    channel.close();
+
+    String[] names = new String[nextHandle.get()];
+    handles.forEach((name, h) -> names[h] = name);
+    List<String> lines = new ArrayList<>();
+    for (String name : names) lines.add(name == null ? "" : name);
+    Files.write(namesPath(path), lines, StandardCharsets.UTF_8);
+  }
+
+  private void writerLoop() {
+    while (true) {
+      boolean stop = closing;
+      int moved = 0;
+      for (Ring r : rings) {
+        moved += drain(r);
+        if (r.isEmpty() && !r.owner.isAlive()) {
+          dropped.addAndGet(r.dropped);
+          rings.remove(r);
+        }
+      }
+      if (stop) return;
+      if (moved == 0) LockSupport.parkNanos(1_000_000L);
+    }
+  }
+
+  private int drain(Ring r) {
+    int moved = 0;
+    long tail = r.tail;
+    long head = r.head.get();
+    while (tail < head) {
+      if (!region.hasRemaining()) {
+        try {
+          regionStart += region.position();
+          region = map(regionStart);
+        } catch (IOException e) {
+          // The log is best effort: give up on this ring's records
+          dropped.addAndGet(head - tail);
+          tail = head;
+          break;
+        }
+      }
+      int base = (int) (tail & (RING_RECORDS-1)) * RECORD_LONGS;
+      for (int i = 0; i < RECORD_LONGS; i++) region.putLong(r.records[base+i]);
+      written += RECORD_BYTES;
+      ++tail;
+      ++moved;
+    }
+    r.tail = tail;
+    r.tailPublished.lazySet(tail);
+    return moved;
+  }
+
+  private MappedByteBuffer map(long position) throws IOException {
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, REGION_BYTES);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    return buffer;
+  }
+
+  static Path namesPath(Path log) {
+    return Paths.get(log.toString()+".names");
+  }
+
+
+  /*
+   * Single producer / single consumer ring. The owner thread writes the
+   * slots and publishes them with an ordered store of head; the writer
+   * thread reads up to head and hands the slots back through tail.
+   */
+  private static final class Ring {
+    final Thread owner;
+    final long[] records = new long[RING_RECORDS*RECORD_LONGS];
+    final AtomicLong head = new AtomicLong(0);
+    final AtomicLong tailPublished = new AtomicLong(0);
+
+    // Producer side copy of the consumer position
+    long cachedTail = 0;
+
+    // Consumer side position, only used by the writer thread
+    long tail = 0;
+
+    // Records lost because the ring was full (only written by the owner)
+    volatile long dropped = 0;
+
+    Ring(Thread owner) {
+      this.owner = owner;
+    }
+
+    boolean offer(long w0, long w1, long w2, long w3) {
+      long h = head.get();
+      if (h - cachedTail >= RING_RECORDS) {
+        cachedTail = tailPublished.get();
+        if (h - cachedTail >= RING_RECORDS) {
+          dropped = dropped+1;
+          return false;
+        }
+      }
+      int base = (int) (h & (RING_RECORDS-1)) * RECORD_LONGS;
+      records[base] = w0;
+      records[base+1] = w1;
+      records[base+2] = w2;
+      records[base+3] = w3;
+      head.lazySet(h+1);
+      return true;
+    }
+
+    boolean isEmpty() {
+      return tail == head.get();
+    }
+  }
+
+
+  // Print a log as text
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
+      System.err.println("Usage: java cc.carretera.EventLog <log>");
+      System.exit(1);
+    }
+    Path log = Paths.get(args[0]);
+    List<String> names = Files.exists(namesPath(log))
+      ? Files.readAllLines(namesPath(log), StandardCharsets.UTF_8)
+      : new ArrayList<>();
+    print(log, names, System.out);
+  }
+
+  static void print(Path log, List<String> names, PrintStream out) throws IOException {
+    try (FileChannel ch = FileChannel.open(log)) {
+      MappedByteBuffer buffer = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      while (buffer.remaining() >= RECORD_BYTES) {
+        long w0 = buffer.getLong();
+        long w1 = buffer.getLong();
+        long tick = buffer.getLong();
+        long nanos = buffer.getLong();
+        int op = (int) (w0 >>> 56);
+        int kind = (int) (w0 >>> 48) & 0xFF;
+        int car = (int) w0;
+        int segmento = (int) (w1 >>> 32);
+        int carril = (int) w1;
+        String carName = car >= 0 && car < names.size() ? names.get(car) : (car < 0 ? "" : "#"+car);
+        String str = nanos+" t="+tick+" "+OP_NAMES[op]+"("+carName+") "+KIND_NAMES[kind];
+        if (kind == RETURN && segmento > 0) str += " <"+segmento+","+carril+">";
+        out.println(str);
+      }
+    }
+  }
+}
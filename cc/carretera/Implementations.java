@@ -0,0 +1,76 @@
+/*
+ * Registry of the Carretera implementations the tools can run.
+ *
+ */
+package cc.carretera;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+
+/*
+ * Maps a short name to a constructor (segmentos, carriles) of an
+ * implementation. CarreteraSim, Compare and TraceReplayer choose the
+ * implementation at runtime by name, the first one is the default.
+ * Public so the linearizability harness can check them all.
+ */
+public class Implementations {
+
+  private static final Map<String,Impl> IMPLS = new LinkedHashMap<>();
+
+  static {
+    IMPLS.put("csp", new Impl(CarreteraCSP.class, CarreteraCSP::new));
+    IMPLS.put("monitor", new Impl(CarreteraMonitor.class, CarreteraMonitor::new));
+    IMPLS.put("lockfree", new Impl(CarreteraLockFree.class, CarreteraLockFree::new));
+    IMPLS.put("combinada", new Impl(CarreteraCombinada.class, CarreteraCombinada::new));
+    // The same ones with the sparse representation of the segmentos,
+    // which the long carreteras use anyway
+    IMPLS.put("csp-dispersa", new Impl(CarreteraCSP.class, (s, c) -> new CarreteraCSP(s, c, true)));
+    IMPLS.put("monitor-dispersa", new Impl(CarreteraMonitor.class, (s, c) -> new CarreteraMonitor(s, c, true)));
+  }
+
+  // Names of the implementations, the default one first
+  public static List<String> names() {
+    return new ArrayList<>(IMPLS.keySet());
+  }
+
+  public static String defaultName() {
+    return IMPLS.keySet().iterator().next();
+  }
+
+  // Class name of an implementation, for messages
+  public static String className(String name) {
+    return get(name).type.getSimpleName();
+  }
+
+  // Whether an implementation offers an optional part of Carretera
+  // (CarreteraConPlazo, CarreteraObservable...), without creating one
+  public static boolean supports(String name, Class<? extends Carretera> capability) {
+    return capability.isAssignableFrom(get(name).type);
+  }
+
+  public static Carretera create(String name, int segmentos, int carriles) {
+    return get(name).constructor.apply(segmentos, carriles);
+  }
+
+  private static Impl get(String name) {
+    Impl impl = IMPLS.get(name.toLowerCase());
+    if (impl == null) {
+      throw new IllegalArgumentException("Unknown implementation "+name+", use one of "+names());
+    }
+    return impl;
+  }
+
+  private static class Impl {
+    final Class<? extends Carretera> type;
+    final BiFunction<Integer,Integer,Carretera> constructor;
+
+    Impl(Class<? extends Carretera> type, BiFunction<Integer,Integer,Carretera> constructor) {
+      this.type = type;
+      this.constructor = constructor;
+    }
+  }
+}
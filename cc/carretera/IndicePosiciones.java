@@ -0,0 +1,140 @@
+package cc.carretera;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Indice de las posiciones de los coches de una carretera, en los dos
+ * sentidos: la posicion de cada coche y el coche de cada carril.
+ *
+ * Las implementaciones lo actualizan a la vez que marcan los carriles
+ * ocupados, y las consultas (cocheEn, posicion, ocupacion) lo leen sin
+ * cerrojos: nunca esperan a la zona de exclusion mutua ni al servidor,
+ * y nunca les hacen esperar. Cada consulta ve un estado valido, pero dos
+ * consultas seguidas pueden ver estados distintos, y mientras un coche
+ * avanza se le puede ver un momento en los dos segmentos.
+ *
+ * Solo guarda los segmentos con algun coche, asi que sirve tambien para
+ * las carreteras muy largas.
+ */
+class IndicePosiciones {
+  private final int segmentos;
+  private final int carriles;
+
+  // Posicion de cada coche
+  private final ConcurrentHashMap<String, Pos> posiciones = new ConcurrentHashMap<>();
+
+  // Coches de cada segmento con algun coche
+  private final ConcurrentHashMap<Integer, Carriles> ocupados = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor.
+   *
+   * @param segmentos numero de segmentos de la carretera
+   * @param carriles numero de carriles de la carretera
+   */
+  IndicePosiciones(int segmentos, int carriles) {
+    this.segmentos = segmentos;
+    this.carriles = carriles;
+  }
+
+  /**
+   * Un coche entra en la carretera.
+   */
+  void ocupar(String id, Pos pos) {
+    posiciones.put(id, pos);
+    ponerEnCarril(id, pos);
+  }
+
+  /**
+   * Un coche cambia de posicion. Primero aparece en la nueva y despues
+   * desaparece de la anterior, asi que nunca deja de verse.
+   */
+  void mover(String id, Pos anterior, Pos nueva) {
+    ponerEnCarril(id, nueva);
+    posiciones.put(id, nueva);
+    quitarDeCarril(id, anterior);
+  }
+
+  /**
+   * Un coche sale de la carretera.
+   */
+  void liberar(String id, Pos pos) {
+    posiciones.remove(id);
+    quitarDeCarril(id, pos);
+  }
+
+  /**
+   * @return El coche que ocupa la posicion, o null si esta libre.
+   */
+  String cocheEn(Pos pos) {
+    comprobar(pos.getSegmento());
+    if (pos.getCarril() < 1 || pos.getCarril() > carriles) {
+      throw new IllegalArgumentException("El carril debe estar entre 1 y "+carriles+": "+pos.getCarril());
+    }
+    Carriles segmento = ocupados.get(pos.getSegmento());
+    return segmento == null ? null : segmento.coches.get(pos.getCarril() - 1);
+  }
+
+  /**
+   * @return La posicion del coche, o null si no esta en la carretera.
+   */
+  Pos posicion(String id) {
+    return posiciones.get(id);
+  }
+
+  /**
+   * @return El numero de carriles ocupados del segmento.
+   */
+  int ocupacion(int segmento) {
+    comprobar(segmento);
+    Carriles estado = ocupados.get(segmento);
+    return estado == null ? 0 : estado.ocupacion;
+  }
+
+  // Los cambios en un segmento se hacen dentro de compute, de forma que
+  // uno que lo retira al quedarse vacio no pierde el de otro que entra a
+  // la vez (solo se bloquean entre si los escritores del mismo segmento)
+
+  private void ponerEnCarril(String id, Pos pos) {
+    ocupados.compute(pos.getSegmento(), (s, segmento) -> {
+        if (segmento == null) {
+          segmento = new Carriles(carriles);
+        }
+        if (segmento.coches.getAndSet(pos.getCarril() - 1, id) == null) {
+          segmento.ocupacion++;
+        }
+        return segmento;
+      });
+  }
+
+  private void quitarDeCarril(String id, Pos pos) {
+    ocupados.computeIfPresent(pos.getSegmento(), (s, segmento) -> {
+        // Si el carril ya es de otro coche no lo tocamos
+        if (segmento.coches.compareAndSet(pos.getCarril() - 1, id, null)) {
+          segmento.ocupacion--;
+        }
+        return segmento.ocupacion == 0 ? null : segmento;
+      });
+  }
+
+  private void comprobar(int segmento) {
+    if (segmento < 1 || segmento > segmentos) {
+      throw new IllegalArgumentException("El segmento debe estar entre 1 y "+segmentos+": "+segmento);
+    }
+  }
+
+  /**
+   * Clase que guarda los coches de un segmento:
+   * - Coches: coche de cada carril (null si esta libre), desde el carril 1
+   * - Ocupacion: numero de carriles ocupados
+   */
+  private static class Carriles {
+    private final AtomicReferenceArray<String> coches;
+    private volatile int ocupacion;
+
+    Carriles(int carriles) {
+      this.coches = new AtomicReferenceArray<>(carriles);
+    }
+  }
+}
@@ -0,0 +1,411 @@
+/*
+ * Checks the global invariants of a Carretera while it runs.
+ *
+ */
+package cc.carretera;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/*
+ * Observer that validates, event by event, the state changes reported
+ * by a carretera:
+ *
+ *   - no double occupancy: a lane is granted only if no car is in it,
+ *     and a car leaves the lane it was really in
+ *   - no overtaking: the grants of a segment go to the cars that asked
+ *     for it in the order they asked (FIFO), and a car only moves to
+ *     the next segment once it reached the end of its own. A car that
+ *     gives up waiting (abandono) leaves the queue
+ *   - no lost wake-ups: when a tick comes no car is still waiting for
+ *     a segment with a free lane
+ *   - exactly one release per expiring tick: between a tick and the
+ *     next one, every car whose ticks reached 0 gets one liberacion,
+ *     and no other car gets any
+ *
+ * The observer methods run inside the critical section of the
+ * carretera, so they only publish the event in a lock-free
+ * multi-producer ring (a slot is claimed with one getAndIncrement,
+ * written with plain stores and published with an ordered store). The
+ * checks are done by a separate consumer thread. Since the events are
+ * published from the critical section they are claimed in the order
+ * they happened. When the ring is full producers wait for the checker
+ * instead of dropping events, so a slow checker slows the carretera
+ * down but never misses a violation.
+ *
+ * close() drains the ring, stops the checker and does the final checks.
+ * Run "java cc.carretera.InvariantChecker [events]" to measure how
+ * many events per second the checker can take.
+ */
+class InvariantChecker implements ObservadorCarretera, AutoCloseable {
+
+  // Kinds of event
+  private static final int SOLICITUD = 0;
+  private static final int CONCESION = 1;
+  private static final int SALIDA = 2;
+  private static final int TICK = 3;
+  private static final int LIBERACION = 4;
+  private static final int ABANDONO = 5;
+
+  // Slots of the ring (a power of two)
+  static final int CAPACITY = 1 << 16;
+  private static final int MASK = CAPACITY - 1;
+
+  // Violations whose description is kept
+  static final int MAX_REPORTED = 20;
+
+  // Spins of the checker with nothing to do before it parks
+  private static final int IDLE_SPINS = 64;
+  private static final long IDLE_PARK_NANOS = 50_000;
+
+  private final int segmentos;
+  private final int carriles;
+
+  // The ring: slot i holds an event while sequence[i] == claimed+1 and
+  // is free for the producer that claims number n while sequence[i] == n
+  private final AtomicLongArray sequence = new AtomicLongArray(CAPACITY);
+  private final long[] words = new long[CAPACITY];
+  private final int[] tks = new int[CAPACITY];
+  private final String[] ids = new String[CAPACITY];
+  private final AtomicLong tail = new AtomicLong(0);
+  private long head = 0;
+
+  private final Thread checker;
+  private volatile boolean closing = false;
+
+  // State as seen by the checker, only used by the checker thread
+  private final Map<String,CarState> cars = new HashMap<>();
+  private final String[][] cells;
+  private final int[] occupied;
+  // Cars waiting for each segment, in arrival order (index 0 unused)
+  private final List<ArrayDeque<String>> waiting;
+  private final Set<String> expiring = new HashSet<>();
+  private long ticks = 0;
+
+  // Results, written by the checker thread and read after close()
+  private volatile long events = 0;
+  private volatile long violations = 0;
+  private final List<String> reported = new ArrayList<>();
+
+  private static class CarState {
+    int segmento;
+    int carril;
+    int tks;
+  }
+
+  InvariantChecker(int segmentos, int carriles) {
+    this.segmentos = segmentos;
+    this.carriles = carriles;
+    this.cells = new String[segmentos + 1][carriles + 1];
+    this.occupied = new int[segmentos + 1];
+    this.waiting = new ArrayList<>(segmentos + 1);
+    for (int s = 0; s <= segmentos; s++) waiting.add(new ArrayDeque<>());
+    for (int i = 0; i < CAPACITY; i++) sequence.set(i, i);
+
+    this.checker = new Thread("invariant-checker") {
+        public void run() {
+          checkLoop();
+        }
+      };
+    this.checker.setDaemon(true);
+    this.checker.start();
+  }
+
+
+  // Producers: called from the critical section of the carretera
+
+  @Override
+  public void solicitud(String id, int segmento) {
+    publish(SOLICITUD, id, segmento, 0, 0);
+  }
+
+  @Override
+  public void concesion(String id, Pos pos, int tks) {
+    publish(CONCESION, id, pos.getSegmento(), pos.getCarril(), tks);
+  }
+
+  @Override
+  public void abandono(String id, int segmento) {
+    publish(ABANDONO, id, segmento, 0, 0);
+  }
+
+  @Override
+  public void salida(String id, Pos pos) {
+    publish(SALIDA, id, pos.getSegmento(), pos.getCarril(), 0);
+  }
+
+  @Override
+  public void tick() {
+    publish(TICK, null, 0, 0, 0);
+  }
+
+  @Override
+  public void liberacion(String id) {
+    publish(LIBERACION, id, 0, 0, 0);
+  }
+
+  private void publish(int type, String id, int segmento, int carril, int t) {
+    long n = tail.getAndIncrement();
+    int i = (int) n & MASK;
+    // The checker is a whole ring behind: wait for it
+    while (sequence.get(i) != n) Thread.yield();
+    words[i] = (long) type << 56 | (long) (segmento & 0xFFFFFF) << 32 | (carril & 0xFFFFFFFFL);
+    tks[i] = t;
+    ids[i] = id;
+    sequence.lazySet(i, n + 1);
+  }
+
+
+  // Consumer
+
+  private void checkLoop() {
+    int idle = 0;
+    while (true) {
+      int i = (int) head & MASK;
+      if (sequence.get(i) != head + 1) {
+        if (closing && tail.get() == head) return;
+        if (++idle < IDLE_SPINS) {
+          Thread.onSpinWait();
+        } else {
+          LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+        continue;
+      }
+      idle = 0;
+      long word = words[i];
+      int t = tks[i];
+      String id = ids[i];
+      ids[i] = null;
+      sequence.lazySet(i, head + CAPACITY);
+      ++head;
+
+      check((int) (word >>> 56), id, (int) (word >>> 32) & 0xFFFFFF, (int) word, t);
+      events = head;
+    }
+  }
+
+  private void check(int type, String id, int segmento, int carril, int t) {
+    switch (type) {
+    case SOLICITUD: checkSolicitud(id, segmento); break;
+    case CONCESION: checkConcesion(id, segmento, carril, t); break;
+    case SALIDA: checkSalida(id, segmento, carril); break;
+    case TICK: checkTick(); break;
+    case LIBERACION: checkLiberacion(id); break;
+    case ABANDONO: checkAbandono(id, segmento); break;
+    }
+  }
+
+  private void checkSolicitud(String id, int segmento) {
+    CarState car = cars.get(id);
+    int expected = car == null ? 1 : car.segmento + 1;
+    if (segmento != expected) {
+      violation(id+" asked for segmento "+segmento+" instead of "+expected);
+    } else if (car != null && car.tks > 0) {
+      violation(id+" asked for segmento "+segmento+" with "+car.tks+" ticks left in segmento "+car.segmento);
+    }
+    if (segmento < 1 || segmento > segmentos) return;
+    if (waiting.get(segmento).contains(id)) {
+      violation(id+" asked twice for segmento "+segmento);
+      return;
+    }
+    waiting.get(segmento).addLast(id);
+  }
+
+  private void checkConcesion(String id, int segmento, int carril, int t) {
+    if (segmento < 1 || segmento > segmentos || carril < 1 || carril > carriles) {
+      violation(id+" got position <"+segmento+","+carril+"> out of the carretera");
+      return;
+    }
+
+    // FIFO: the grant goes to the first car waiting for the segment
+    String first = waiting.get(segmento).peekFirst();
+    if (first == null || !waiting.get(segmento).contains(id)) {
+      violation(id+" got segmento "+segmento+" without asking for it");
+    } else if (!first.equals(id)) {
+      violation(id+" overtook "+first+" in the queue of segmento "+segmento);
+      waiting.get(segmento).remove(id);
+    } else {
+      waiting.get(segmento).pollFirst();
+    }
+
+    String other = cells[segmento][carril];
+    if (other != null) {
+      violation(id+" got <"+segmento+","+carril+"> which is occupied by "+other);
+    }
+
+    CarState car = cars.get(id);
+    if (car == null) {
+      car = new CarState();
+      cars.put(id, car);
+    } else {
+      free(id, car);
+    }
+    car.segmento = segmento;
+    car.carril = carril;
+    car.tks = t;
+    cells[segmento][carril] = id;
+    ++occupied[segmento];
+  }
+
+  private void checkAbandono(String id, int segmento) {
+    if (segmento < 1 || segmento > segmentos || !waiting.get(segmento).remove(id)) {
+      violation(id+" gave up waiting for segmento "+segmento+" without asking for it");
+    }
+  }
+
+  private void checkSalida(String id, int segmento, int carril) {
+    CarState car = cars.remove(id);
+    if (car == null) {
+      violation(id+" left without being in the carretera");
+      return;
+    }
+    if (car.segmento != segmento || car.carril != carril) {
+      violation(id+" left from <"+segmento+","+carril+"> but was in <"+car.segmento+","+car.carril+">");
+    }
+    if (car.segmento != segmentos) {
+      violation(id+" left from segmento "+car.segmento+" which is not the last one");
+    }
+    if (car.tks > 0) {
+      violation(id+" left with "+car.tks+" ticks left");
+    }
+    free(id, car);
+  }
+
+  private void checkTick() {
+    // Every car that expired in the previous tick must have been released
+    for (String id : expiring) {
+      violation(id+" reached 0 ticks in tick "+ticks+" but was not released");
+    }
+    expiring.clear();
+
+    // No car may be waiting for a segment with a free lane
+    for (int s = 1; s <= segmentos; s++) {
+      if (!waiting.get(s).isEmpty() && occupied[s] < carriles) {
+        violation(waiting.get(s).peekFirst()+" is still waiting for segmento "+s+" which has "
+                  +(carriles - occupied[s])+" free carriles (lost wake-up)");
+      }
+    }
+
+    ++ticks;
+    for (Map.Entry<String,CarState> e : cars.entrySet()) {
+      CarState car = e.getValue();
+      if (car.tks > 0 && --car.tks == 0) expiring.add(e.getKey());
+    }
+  }
+
+  private void checkLiberacion(String id) {
+    if (!expiring.remove(id)) {
+      CarState car = cars.get(id);
+      violation(id+" was released in tick "+ticks+" "
+                +(car == null ? "without being in the carretera"
+                  : car.tks > 0 ? "with "+car.tks+" ticks left" : "but it had already been"));
+    }
+  }
+
+  private void free(String id, CarState car) {
+    if (id.equals(cells[car.segmento][car.carril])) {
+      cells[car.segmento][car.carril] = null;
+      --occupied[car.segmento];
+    }
+  }
+
+  private void violation(String description) {
+    if (violations < MAX_REPORTED) {
+      synchronized (reported) {
+        reported.add("event "+head+": "+description);
+      }
+    }
+    ++violations;
+  }
+
+
+  // Results
+
+  /**
+   * Waits until every event published so far has been checked, stops
+   * the checker and does the checks left for the end. The carretera
+   * must not be used any more.
+   */
+  @Override
+  public void close() {
+    if (closing) return;
+    closing = true;
+    LockSupport.unpark(checker);
+    try {
+      checker.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    for (String id : expiring) {
+      violation(id+" reached 0 ticks in tick "+ticks+" but was not released");
+    }
+    expiring.clear();
+  }
+
+  long events() {
+    return events;
+  }
+
+  long violations() {
+    return violations;
+  }
+
+  // Descriptions of the first MAX_REPORTED violations
+  List<String> reported() {
+    synchronized (reported) {
+      return new ArrayList<>(reported);
+    }
+  }
+
+  String report() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(events).append(" events checked, ").append(violations).append(" violations");
+    for (String r : reported()) sb.append("\n  ").append(r);
+    if (violations > MAX_REPORTED) sb.append("\n  ...");
+    return sb.toString();
+  }
+
+
+  // Throughput of the checker: one producer publishes a valid stream of
+  // events as fast as it can, cars go one by one through the carretera
+  public static void main(String[] args) {
+    long numEvents = args.length > 0 ? Long.parseLong(args[0]) : 20_000_000L;
+    int segmentos = 10;
+    String[] names = new String[1024];
+    for (int i = 0; i < names.length; i++) names[i] = "car"+i;
+    Pos[] positions = new Pos[segmentos + 1];
+    for (int s = 1; s <= segmentos; s++) positions[s] = new Pos(s, 1);
+
+    InvariantChecker checker = new InvariantChecker(segmentos, 1);
+    long published = 0;
+    long start = System.nanoTime();
+    for (int c = 0; published < numEvents; c++) {
+      String id = names[c % names.length];
+      for (int s = 1; s <= segmentos; s++) {
+        checker.solicitud(id, s);
+        checker.concesion(id, positions[s], 1);
+        checker.tick();
+        checker.liberacion(id);
+        published += 4;
+      }
+      checker.salida(id, positions[segmentos]);
+      ++published;
+    }
+    checker.close();
+    long elapsed = System.nanoTime() - start;
+
+    System.out.println(checker.report());
+    System.out.printf("%.1f million events/s%n", checker.events()*1e3/elapsed);
+    System.exit(checker.violations() == 0 ? 0 : 1);
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Histogram of latencies in nanoseconds.
+ *
+ */
+package cc.carretera;
+
+
+/*
+ * Log-linear histogram: values are grouped by their power of two and
+ * each power of two is split in SUB_BUCKETS linear buckets, so any
+ * percentile is reported with a relative error below 1/SUB_BUCKETS.
+ * Recording is a few arithmetic operations and one array increment.
+ *
+ * Not thread safe: each thread records into its own histogram and the
+ * histograms are merged at the end.
+ */
+class LatencyHistogram {
+
+  private static final int SUB_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  private final long[] counts = new long[64*SUB_BUCKETS];
+  private long count = 0;
+  private long max = 0;
+  private long sum = 0;
+
+  void record(long nanos) {
+    if (nanos < 0) nanos = 0;
+    ++counts[bucket(nanos)];
+    ++count;
+    sum += nanos;
+    if (nanos > max) max = nanos;
+  }
+
+  void merge(LatencyHistogram other) {
+    for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+    count += other.count;
+    sum += other.sum;
+    if (other.max > max) max = other.max;
+  }
+
+  long count() {
+    return count;
+  }
+
+  long max() {
+    return max;
+  }
+
+  double mean() {
+    return count == 0 ? 0 : (double) sum/count;
+  }
+
+  // Value below which a fraction p (0..1) of the recorded values lie
+  long percentile(double p) {
+    if (count == 0) return 0;
+    long rank = (long) Math.ceil(p*count);
+    if (rank < 1) rank = 1;
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) return Math.min(upperBound(i), max);
+    }
+    return max;
+  }
+
+  // "p50=.. p90=.. p99=.. max=.." in microseconds
+  String summary() {
+    return String.format("p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+                         percentile(0.50)/1e3, percentile(0.90)/1e3, percentile(0.99)/1e3,
+                         percentile(0.999)/1e3, max/1e3);
+  }
+
+  private static int bucket(long v) {
+    if (v < SUB_BUCKETS) return (int) v;
+    int magnitude = 63 - Long.numberOfLeadingZeros(v);
+    int sub = (int) (v >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS-1);
+    return (magnitude - SUB_BITS + 1)*SUB_BUCKETS + sub;
+  }
+
+  private static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) return bucket;
+    int magnitude = bucket/SUB_BUCKETS + SUB_BITS - 1;
+    long sub = bucket % SUB_BUCKETS;
+    return ((SUB_BUCKETS + sub + 1) << (magnitude - SUB_BITS)) - 1;
+  }
+}
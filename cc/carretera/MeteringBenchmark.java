@@ -0,0 +1,163 @@
+/*
+ * Measures how many cars leave a carretera per tick when far more cars
+ * arrive than it can hold, with and without regulating the entrance.
+ *
+ */
+package cc.carretera;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/*
+ * Usage:
+ *   java cc.carretera.MeteringBenchmark [-impls monitor,csp]
+ *                                       [-policies none,fija:1,ocupacion:0.8]
+ *                                       [-cars n] [-segmentos n] [-carriles n]
+ *                                       [-speeds spec] [-tick us] [-seed n]
+ *
+ * Every car arrives at once (the overload), with velocidades drawn as
+ * in TrafficGenerator, and a clock thread ticks every -tick
+ * microseconds until all of them have left. Policy none uses the
+ * carretera as is, any other policy wraps it in a CarreteraRegulada
+ * with ControladorEntrada.porNombre(policy).
+ *
+ * For each implementation and policy it reports:
+ *   cars/tick   cars that left per tick over the whole run
+ *   steady      cars that left per tick between the first 10% and the
+ *               first 90% of the exits
+ *   on road     mean ticks from entering to leaving the carretera
+ *   waiting     mean ticks from arriving to entering
+ */
+class MeteringBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    List<String> impls = Arrays.asList("monitor", "csp");
+    List<String> policies = Arrays.asList("none", "fija:1", "ocupacion:0.8");
+    int cars = 300;
+    int segmentos = 4;
+    int carriles = 3;
+    String speeds = "uniform:1:4";
+    long tickMicros = 2000;
+    long seed = 1;
+
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "-impls": impls = Arrays.asList(args[++i].split(",")); break;
+        case "-policies": policies = Arrays.asList(args[++i].split(",")); break;
+        case "-cars": cars = Integer.parseInt(args[++i]); break;
+        case "-segmentos": segmentos = Integer.parseInt(args[++i]); break;
+        case "-carriles": carriles = Integer.parseInt(args[++i]); break;
+        case "-speeds": speeds = args[++i]; break;
+        case "-tick": tickMicros = Long.parseLong(args[++i]); break;
+        case "-seed": seed = Long.parseLong(args[++i]); break;
+        default:
+          System.err.println("Unknown option "+args[i]);
+          System.exit(1);
+      }
+    }
+
+    List<TrafficGenerator.CarDef> defs = new ArrayList<>();
+    new TrafficGenerator(seed, cars, "all", speeds, new String[0], "car").forEachRemaining(defs::add);
+
+    System.out.println(cars+" cars at once on "+segmentos+" segmentos of "+carriles+" carriles, "
+                       +speeds+", one tick every "+tickMicros+" us");
+    System.out.printf("%-10s %-15s %9s %9s %9s %9s%n", "impl", "policy", "cars/tick", "steady", "on road", "waiting");
+
+    for (String impl : impls) {
+      for (String policy : policies) {
+        Carretera cr = Implementations.create(impl, segmentos, carriles);
+        if (!policy.equals("none")) {
+          // Metering needs entries with a timeout and the occupancy of the segmentos
+          if (!(cr instanceof CarreteraConPlazo && cr instanceof CarreteraConsultable)) {
+            System.out.printf("%-10s %-15s not supported%n", impl, policy);
+            cr.close();
+            continue;
+          }
+          cr = new CarreteraRegulada((CarreteraConPlazo & CarreteraConsultable) cr,
+                                     segmentos, carriles, ControladorEntrada.porNombre(policy));
+        }
+        Result r = run(cr, defs, segmentos, tickMicros);
+        cr.close();
+        System.out.printf("%-10s %-15s %9.3f %9.3f %9.1f %9.1f%n",
+                          impl, policy, r.perTick, r.steady, r.onRoad, r.waiting);
+      }
+    }
+  }
+
+  // Outcome of one run
+  private static class Result {
+    double perTick;
+    double steady;
+    double onRoad;
+    double waiting;
+  }
+
+  private static Result run(Carretera cr, List<TrafficGenerator.CarDef> defs,
+                            int segmentos, long tickMicros) throws InterruptedException {
+    int cars = defs.size();
+    AtomicLong now = new AtomicLong(0);
+    long[] entered = new long[cars];
+    long[] left = new long[cars];
+    CountDownLatch done = new CountDownLatch(cars);
+
+    Thread clock = new Thread(() -> {
+        long next = System.nanoTime();
+        while (done.getCount() > 0) {
+          next += tickMicros * 1000;
+          LockSupport.parkNanos(next - System.nanoTime());
+          cr.tick();
+          now.incrementAndGet();
+        }
+      }, "clock");
+    clock.setDaemon(true);
+
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < cars; i++) {
+      TrafficGenerator.CarDef def = defs.get(i);
+      int k = i;
+      Thread t = new Thread(() -> {
+          cr.entrar(def.id, def.velocidad);
+          entered[k] = now.get();
+          cr.circulando(def.id);
+          for (int s = 1; s < segmentos; s++) {
+            cr.avanzar(def.id, def.velocidad);
+            cr.circulando(def.id);
+          }
+          cr.salir(def.id);
+          left[k] = now.get();
+          done.countDown();
+        }, def.id);
+      t.setDaemon(true);
+      threads.add(t);
+    }
+
+    clock.start();
+    for (Thread t : threads) t.start();
+    done.await();
+    clock.join();
+
+    long[] exitTick = left.clone();
+    Arrays.sort(exitTick);
+    Result r = new Result();
+    long total = Math.max(1, exitTick[cars - 1]);
+    r.perTick = (double) cars / total;
+    int from = cars / 10;
+    int to = cars * 9 / 10;
+    long window = exitTick[to] - exitTick[from];
+    r.steady = window > 0 ? (double) (to - from) / window : r.perTick;
+    long road = 0;
+    long wait = 0;
+    for (int i = 0; i < cars; i++) {
+      road += left[i] - entered[i];
+      wait += entered[i];
+    }
+    r.onRoad = (double) road / cars;
+    r.waiting = (double) wait / cars;
+    return r;
+  }
+}
@@ -0,0 +1,100 @@
+package cc.carretera;
+
+/**
+ * Observador de los cambios de estado de una Carretera.
+ *
+ * Las implementaciones invocan estos métodos desde dentro de su zona
+ * de exclusión mutua (o desde el servidor), de modo que el orden en
+ * que llegan los eventos es el orden real en que se han producido los
+ * cambios. Por ese mismo motivo los métodos deben ser muy rápidos y no
+ * bloquearse nunca.
+ *
+ * Todos los métodos tienen una implementación vacía, cada observador
+ * redefine solo los que le interesan.
+ */
+public interface ObservadorCarretera {
+  /**
+   * Un coche ha pedido entrar en un segmento (el 1 si quiere entrar en
+   * la carretera). La petición puede quedar a la espera.
+   *
+   * @param id identificador del coche
+   * @param segmento segmento al que quiere entrar el coche
+   */
+  default void solicitud(String id, int segmento) { }
+
+  /**
+   * Se ha concedido a un coche un carril de un segmento (entrar o
+   * avanzar).
+   *
+   * @param id identificador del coche
+   * @param pos posición que ocupa el coche
+   * @param tks ticks necesarios para atravesar el segmento
+   */
+  default void concesion(String id, Pos pos, int tks) { }
+
+  /**
+   * Un coche ha dejado de esperar a un segmento sin conseguirlo (se le
+   * ha acabado el plazo de una entrada con timeout). Su solicitud ya no
+   * está pendiente.
+   *
+   * @param id identificador del coche
+   * @param segmento segmento al que quería entrar el coche
+   */
+  default void abandono(String id, int segmento) { }
+
+  /**
+   * Un coche ha abandonado la carretera.
+   *
+   * @param id identificador del coche
+   * @param pos última posición que ocupaba el coche
+   */
+  default void salida(String id, Pos pos) { }
+
+  /**
+   * Ha transcurrido un tick.
+   */
+  default void tick() { }
+
+  /**
+   * A un coche le han llegado a 0 sus ticks y deja de estar circulando.
+   *
+   * @param id identificador del coche
+   */
+  default void liberacion(String id) { }
+
+  /**
+   * Observador que reenvía cada evento, en orden, a varios
+   * observadores.
+   *
+   * @param observadores observadores a los que se reenvían los eventos
+   *
+   * @return el observador combinado
+   */
+  static ObservadorCarretera combinar(ObservadorCarretera... observadores) {
+    return new ObservadorCarretera() {
+      public void solicitud(String id, int segmento) {
+        for (ObservadorCarretera o : observadores) o.solicitud(id, segmento);
+      }
+
+      public void concesion(String id, Pos pos, int tks) {
+        for (ObservadorCarretera o : observadores) o.concesion(id, pos, tks);
+      }
+
+      public void abandono(String id, int segmento) {
+        for (ObservadorCarretera o : observadores) o.abandono(id, segmento);
+      }
+
+      public void salida(String id, Pos pos) {
+        for (ObservadorCarretera o : observadores) o.salida(id, pos);
+      }
+
+      public void tick() {
+        for (ObservadorCarretera o : observadores) o.tick();
+      }
+
+      public void liberacion(String id) {
+        for (ObservadorCarretera o : observadores) o.liberacion(id);
+      }
+    };
+  }
+}
@@ -0,0 +1,137 @@
+package cc.carretera;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Cola de los coches que esperan hueco en un segmento, con una cola
+ * FIFO por clase de prioridad.
+ *
+ * poll elige la clase con un reparto ponderado suave (el de nginx): en
+ * cada eleccion cada clase con coches suma su peso a su credito, se
+ * sirve la de mas credito y se le resta la suma de los pesos de las
+ * clases con coches. Las clases reciben los huecos en proporcion a su
+ * peso y repartidos de forma uniforme, asi que la espera de un coche
+ * esta acotada por los coches de su clase que tiene delante, nunca por
+ * todos los de las demas. Una clase que se queda sin coches pierde su
+ * credito, para que no lo acumule mientras no espera nadie.
+ *
+ * No es thread-safe: se usa desde dentro de la zona de exclusion mutua
+ * o desde el servidor.
+ */
+class Planificador<T> implements Iterable<T> {
+  private static final Prioridad[] CLASES = Prioridad.values();
+
+  // Cola de cada clase, en el orden de Prioridad
+  private final List<ArrayDeque<T>> colas = new ArrayList<>();
+
+  // Credito de cada clase
+  private final int[] creditos = new int[CLASES.length];
+
+  // Numero de elementos en todas las colas
+  private int tamano = 0;
+
+  /**
+   * Constructor.
+   */
+  Planificador() {
+    for (int i = 0; i < CLASES.length; i++) {
+      colas.add(new ArrayDeque<>());
+    }
+  }
+
+  /**
+   * Anade un elemento al final de la cola de su clase.
+   */
+  void add(Prioridad prioridad, T elemento) {
+    colas.get(prioridad.ordinal()).addLast(elemento);
+    tamano++;
+  }
+
+  /**
+   * Saca el primer elemento de la clase a la que le toca.
+   *
+   * @return El elemento, o null si no hay ninguno.
+   */
+  T poll() {
+    if (tamano == 0) {
+      return null;
+    }
+    int elegida = -1;
+    int pesos = 0;
+    for (int i = 0; i < CLASES.length; i++) {
+      if (colas.get(i).isEmpty()) {
+        continue;
+      }
+      creditos[i] += CLASES[i].peso;
+      pesos += CLASES[i].peso;
+      if (elegida < 0 || creditos[i] > creditos[elegida]) {
+        elegida = i;
+      }
+    }
+    creditos[elegida] -= pesos;
+    return sacar(elegida);
+  }
+
+  /**
+   * Retira un elemento, esté en la cola que esté.
+   *
+   * @return Si estaba en alguna cola.
+   */
+  boolean remove(T elemento) {
+    for (int i = 0; i < CLASES.length; i++) {
+      if (colas.get(i).removeFirstOccurrence(elemento)) {
+        tamano--;
+        olvidarSiVacia(i);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  boolean isEmpty() {
+    return tamano == 0;
+  }
+
+  int size() {
+    return tamano;
+  }
+
+  /**
+   * Vacia todas las colas.
+   */
+  void clear() {
+    for (int i = 0; i < CLASES.length; i++) {
+      colas.get(i).clear();
+      creditos[i] = 0;
+    }
+    tamano = 0;
+  }
+
+  /**
+   * Recorre una copia de los elementos, por clases de mayor a menor
+   * prioridad.
+   */
+  public Iterator<T> iterator() {
+    List<T> todos = new ArrayList<>(tamano);
+    for (ArrayDeque<T> cola : colas) {
+      todos.addAll(cola);
+    }
+    return todos.iterator();
+  }
+
+  private T sacar(int clase) {
+    T elemento = colas.get(clase).pollFirst();
+    tamano--;
+    olvidarSiVacia(clase);
+    return elemento;
+  }
+
+  private void olvidarSiVacia(int clase) {
+    if (colas.get(clase).isEmpty()) {
+      creditos[clase] = 0;
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package cc.carretera;
+
+/**
+ * Clase de prioridad de un coche al entrar o avanzar.
+ *
+ * Los coches que esperan hueco en un segmento forman una cola por
+ * clase, y cada carril que se libra se reparte entre las clases con
+ * coches esperando en proporcion a su peso (ver Planificador). Con los
+ * pesos 4, 2 y 1, entre dos coches ALTA servidos seguidos pasan como
+ * mucho 3 de las otras clases, y ninguna clase se queda sin servir:
+ * BAJA recibe al menos uno de cada 7 huecos.
+ */
+public enum Prioridad {
+  ALTA(4),
+  NORMAL(2),
+  BAJA(1);
+
+  // Peso de la clase en el reparto de los huecos
+  final int peso;
+
+  Prioridad(int peso) {
+    this.peso = peso;
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Measures how long cars of each priority class wait in entrar and
+ * avanzar on a congested carretera.
+ *
+ */
+package cc.carretera;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+
+/*
+ * Usage:
+ *   java cc.carretera.PrioridadBenchmark [-impls monitor,csp] [-cars n]
+ *                                        [-segmentos n] [-carriles n]
+ *                                        [-mix alta:normal:baja] [-speeds spec]
+ *                                        [-tick us] [-slo us] [-seed n]
+ *
+ * Every car arrives at once, so the segmentos are always full and the
+ * cars queue in every entrar and avanzar. Each car gets a class at
+ * random in the proportions of -mix (default 1:3:6) and a velocidad
+ * drawn as in TrafficGenerator. A clock thread ticks every -tick
+ * microseconds until all the cars have left.
+ *
+ * Each implementation runs twice with the same cars: "fifo" calls the
+ * plain entrar and avanzar (one queue per segmento), "classes" passes
+ * each car's Prioridad. For every class it prints the histogram of the
+ * time spent in entrar and avanzar, and whether the p99 of the ALTA
+ * cars is within -slo microseconds (if given). BAJA cars must still
+ * get through: the run ends only when every car has left.
+ */
+class PrioridadBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    List<String> impls = Arrays.asList("monitor", "csp");
+    int cars = 300;
+    int segmentos = 4;
+    int carriles = 3;
+    int[] mix = { 1, 3, 6 };
+    String speeds = "uniform:1:4";
+    long tickMicros = 2000;
+    long slo = -1;
+    long seed = 1;
+
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "-impls": impls = Arrays.asList(args[++i].split(",")); break;
+        case "-cars": cars = Integer.parseInt(args[++i]); break;
+        case "-segmentos": segmentos = Integer.parseInt(args[++i]); break;
+        case "-carriles": carriles = Integer.parseInt(args[++i]); break;
+        case "-mix": mix = Arrays.stream(args[++i].split(":")).mapToInt(Integer::parseInt).toArray(); break;
+        case "-speeds": speeds = args[++i]; break;
+        case "-tick": tickMicros = Long.parseLong(args[++i]); break;
+        case "-slo": slo = Long.parseLong(args[++i]); break;
+        case "-seed": seed = Long.parseLong(args[++i]); break;
+        default:
+          System.err.println("Unknown option "+args[i]);
+          System.exit(1);
+      }
+    }
+    if (mix.length != Prioridad.values().length) {
+      System.err.println("-mix needs one share per class: alta:normal:baja");
+      System.exit(1);
+    }
+
+    List<TrafficGenerator.CarDef> defs = new ArrayList<>();
+    new TrafficGenerator(seed, cars, "all", speeds, new String[0], "car").forEachRemaining(defs::add);
+    Prioridad[] classes = assignClasses(cars, mix, new Random(seed));
+
+    System.out.println(cars+" cars at once on "+segmentos+" segmentos of "+carriles+" carriles, "
+                       +speeds+", mix "+mix[0]+":"+mix[1]+":"+mix[2]+", one tick every "+tickMicros+" us");
+
+    for (String impl : impls) {
+      for (boolean withClasses : new boolean[] { false, true }) {
+        Carretera cr = Implementations.create(impl, segmentos, carriles);
+        if (withClasses && !(cr instanceof CarreteraConPrioridad)) {
+          System.out.printf("%-10s classes  not supported, %s has no priorities%n", impl, Implementations.className(impl));
+          cr.close();
+          continue;
+        }
+        LatencyHistogram[] waits = run(cr, defs, classes, withClasses, segmentos, tickMicros);
+        cr.close();
+        String mode = withClasses ? "classes" : "fifo";
+        for (Prioridad p : Prioridad.values()) {
+          LatencyHistogram h = waits[p.ordinal()];
+          System.out.printf("%-10s %-8s %-7s %5d waits  %s%n", impl, mode, p, h.count(), h.summary());
+        }
+        if (slo >= 0) {
+          long p99 = waits[Prioridad.ALTA.ordinal()].percentile(0.99) / 1000;
+          System.out.printf("%-10s %-8s ALTA p99 %d us: SLO of %d us %s%n",
+                            impl, mode, p99, slo, p99 <= slo ? "met" : "MISSED");
+        }
+      }
+    }
+  }
+
+  // A class for each car, at random in the given shares
+  private static Prioridad[] assignClasses(int cars, int[] mix, Random rnd) {
+    int total = Arrays.stream(mix).sum();
+    Prioridad[] classes = new Prioridad[cars];
+    for (int i = 0; i < cars; i++) {
+      int r = rnd.nextInt(total);
+      int c = 0;
+      while (r >= mix[c]) {
+        r -= mix[c++];
+      }
+      classes[i] = Prioridad.values()[c];
+    }
+    return classes;
+  }
+
+  // Histogram of the time in entrar and avanzar of each class
+  private static LatencyHistogram[] run(Carretera cr, List<TrafficGenerator.CarDef> defs, Prioridad[] classes,
+                                        boolean withClasses, int segmentos, long tickMicros)
+    throws InterruptedException {
+    int cars = defs.size();
+
+    LatencyHistogram[] perCar = new LatencyHistogram[cars];
+    CountDownLatch done = new CountDownLatch(cars);
+
+    Thread clock = new Thread(() -> {
+        long next = System.nanoTime();
+        while (done.getCount() > 0) {
+          next += tickMicros * 1000;
+          LockSupport.parkNanos(next - System.nanoTime());
+          cr.tick();
+        }
+      }, "clock");
+    clock.setDaemon(true);
+
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < cars; i++) {
+      TrafficGenerator.CarDef def = defs.get(i);
+      Prioridad p = withClasses ? classes[i] : Prioridad.NORMAL;
+      LatencyHistogram h = perCar[i] = new LatencyHistogram();
+      Thread t = new Thread(() -> {
+          drive(cr, def, p, withClasses, segmentos, h);
+          done.countDown();
+        }, def.id);
+      t.setDaemon(true);
+      threads.add(t);
+    }
+
+    clock.start();
+    for (Thread t : threads) t.start();
+    done.await();
+    clock.join();
+
+    // Both runs are reported by the class the car would have had
+    LatencyHistogram[] waits = new LatencyHistogram[Prioridad.values().length];
+    for (int c = 0; c < waits.length; c++) waits[c] = new LatencyHistogram();
+    for (int i = 0; i < cars; i++) waits[classes[i].ordinal()].merge(perCar[i]);
+    return waits;
+  }
+
+  // One car through the whole carretera, recording its waits
+  private static void drive(Carretera cr, TrafficGenerator.CarDef def, Prioridad p, boolean withClasses,
+                            int segmentos, LatencyHistogram h) {
+    long start = System.nanoTime();
+    if (withClasses) ((CarreteraConPrioridad) cr).entrar(def.id, def.velocidad, p); else cr.entrar(def.id, def.velocidad);
+    h.record(System.nanoTime() - start);
+    cr.circulando(def.id);
+    for (int s = 1; s < segmentos; s++) {
+      start = System.nanoTime();
+      if (withClasses) ((CarreteraConPrioridad) cr).avanzar(def.id, def.velocidad, p); else cr.avanzar(def.id, def.velocidad);
+      h.record(System.nanoTime() - start);
+      cr.circulando(def.id);
+    }
+    cr.salir(def.id);
+  }
+}
@@ -4,16 +4,25 @@ public class Reloj extends Thread {
   private static int MS_POR_TICK
     = 1000;
   private Carretera cr;
+  private volatile boolean parado = false;
 
   public Reloj(Carretera carretera) {
     this.cr = carretera;
   }
 
   public void run() {
-    while (true) {
+    while (!parado) {
       try { sleep(MS_POR_TICK); }
       catch (Exception e) { }
-      cr.tick();
+      if (parado) break;
+      try { cr.tick(); }
+      catch (CarreteraCerradaException e) { break; }
     }
   }
+
+  // Para el reloj: no hace mas ticks (el que este en curso termina)
+  public void parar() {
+    parado = true;
+    interrupt();
+  }
 }
@@ -0,0 +1,189 @@
+/*
+ * Custom-painted view of the carretera used by CarreteraSim.
+ *
+ */
+package cc.carretera;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.util.HashMap;
+import java.util.Map;
+import javax.swing.JComponent;
+import javax.swing.Scrollable;
+import javax.swing.SwingConstants;
+
+
+/*
+ * The whole carretera is drawn by a single component. Cells are kept
+ * in flat arrays (cell = segmento*carriles + carril, both zero based)
+ * and an index from car to cell makes moving or removing a car O(1).
+ *
+ * The model is only touched from the event dispatch thread. Updates
+ * mark a dirty region, and the region is repainted once per display
+ * frame when flush() is called, so many events arriving between two
+ * frames cost a single repaint.
+ */
+class RoadView extends JComponent implements Scrollable {
+
+  private static final long serialVersionUID = 1L;
+
+  // Size of a painted cell
+  static final int CELL_WIDTH = 100;
+  static final int CELL_HEIGHT = 30;
+
+  // Text of an empty cell
+  static final String EMPTY = "--------";
+
+  // Dimensions
+  private final int segmentos;
+  private final int carriles;
+
+  // Cell contents
+  private final String[] cars;
+  private final int[] tks;
+
+  // Index from car to the cell it occupies
+  private final Map<String,Integer> carCell;
+
+  // Bounding box (in cells) of the changes since the last frame
+  private int dirtyMin = Integer.MAX_VALUE;
+  private int dirtyMax = -1;
+  private boolean allDirty = false;
+
+  RoadView(int segmentos, int carriles) {
+    this.segmentos = segmentos;
+    this.carriles = carriles;
+    this.cars = new String[segmentos*carriles];
+    this.tks = new int[segmentos*carriles];
+    this.carCell = new HashMap<>();
+    setOpaque(true);
+    setBackground(Color.WHITE);
+  }
+
+  // Place a car at a position (1 based, as returned by Carretera),
+  // removing it from its previous cell if it had one
+  void place(String car, Pos pos, int velocidad) {
+    remove(car);
+    int cell = (pos.getSegmento()-1)*carriles + (pos.getCarril()-1);
+    if (cell < 0 || cell >= cars.length) return;
+    cars[cell] = car;
+    tks[cell] = velocidad;
+    carCell.put(car,cell);
+    markDirty(cell);
+  }
+
+  // Remove a car from the view
+  void remove(String car) {
+    Integer cell = carCell.remove(car);
+    if (cell != null) {
+      cars[cell] = null;
+      tks[cell] = 0;
+      markDirty(cell);
+    }
+  }
+
+  // One tick less for every car on the carretera
+  void tick() {
+    for (int cell : carCell.values())
+      if (tks[cell] > 0) --tks[cell];
+    if (!carCell.isEmpty()) allDirty = true;
+  }
+
+  // Empty the carretera
+  void clear() {
+    for (int cell : carCell.values()) {
+      cars[cell] = null;
+      tks[cell] = 0;
+    }
+    carCell.clear();
+    allDirty = true;
+  }
+
+  // Repaint what changed since the last frame
+  void flush() {
+    if (allDirty) {
+      repaint();
+    } else if (dirtyMax >= 0) {
+      // Segments are painted left to right, so the dirty cells lie
+      // between the columns of the first and the last one
+      int x0 = (dirtyMin/carriles)*CELL_WIDTH;
+      int x1 = (dirtyMax/carriles+1)*CELL_WIDTH;
+      repaint(x0, 0, x1-x0, carriles*CELL_HEIGHT);
+    }
+    allDirty = false;
+    dirtyMin = Integer.MAX_VALUE;
+    dirtyMax = -1;
+  }
+
+  private void markDirty(int cell) {
+    if (cell < dirtyMin) dirtyMin = cell;
+    if (cell > dirtyMax) dirtyMax = cell;
+  }
+
+  @Override
+  protected void paintComponent(Graphics g) {
+    Rectangle clip = g.getClipBounds();
+    if (clip == null) clip = new Rectangle(0, 0, getWidth(), getHeight());
+
+    g.setColor(getBackground());
+    g.fillRect(clip.x, clip.y, clip.width, clip.height);
+
+    // Only the visible cells are painted
+    int firstSeg = Math.max(0, clip.x/CELL_WIDTH);
+    int lastSeg = Math.min(segmentos-1, (clip.x+clip.width)/CELL_WIDTH);
+    int firstRow = Math.max(0, clip.y/CELL_HEIGHT);
+    int lastRow = Math.min(carriles-1, (clip.y+clip.height)/CELL_HEIGHT);
+
+    FontMetrics fm = g.getFontMetrics();
+    int textY = (CELL_HEIGHT + fm.getAscent() - fm.getDescent())/2;
+
+    for (int segmento=firstSeg; segmento<=lastSeg; segmento++) {
+      for (int row=firstRow; row<=lastRow; row++) {
+        // The last lane is drawn at the top, as in the original layout
+        int carril = carriles-1-row;
+        int cell = segmento*carriles + carril;
+        int x = segmento*CELL_WIDTH;
+        int y = row*CELL_HEIGHT;
+
+        g.setColor(Color.LIGHT_GRAY);
+        g.drawRect(x, y, CELL_WIDTH-1, CELL_HEIGHT-1);
+        g.setColor(Color.BLACK);
+        String text = cars[cell] == null ? EMPTY : cars[cell]+"@"+tks[cell];
+        g.drawString(text, x+4, y+textY);
+      }
+    }
+  }
+
+  @Override
+  public Dimension getPreferredSize() {
+    return new Dimension(segmentos*CELL_WIDTH, carriles*CELL_HEIGHT);
+  }
+
+  @Override
+  public Dimension getPreferredScrollableViewportSize() {
+    return new Dimension(Math.min(segmentos,8)*CELL_WIDTH, Math.min(carriles,8)*CELL_HEIGHT);
+  }
+
+  @Override
+  public int getScrollableUnitIncrement(Rectangle visible, int orientation, int direction) {
+    return orientation == SwingConstants.HORIZONTAL ? CELL_WIDTH : CELL_HEIGHT;
+  }
+
+  @Override
+  public int getScrollableBlockIncrement(Rectangle visible, int orientation, int direction) {
+    return orientation == SwingConstants.HORIZONTAL ? visible.width : visible.height;
+  }
+
+  @Override
+  public boolean getScrollableTracksViewportWidth() {
+    return false;
+  }
+
+  @Override
+  public boolean getScrollableTracksViewportHeight() {
+    return false;
+  }
+}
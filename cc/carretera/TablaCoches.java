@@ -0,0 +1,368 @@
+package cc.carretera;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Estado de los coches de una carretera guardado por columnas: el
+ * segmento, el carril y los ticks de cada coche estan en arrays de
+ * enteros, en la posicion del coche (su manejador). Los manejadores de
+ * los coches que salen se reutilizan para los que entran. Cada
+ * implementacion puede guardar ademas un dato propio por coche, de tipo
+ * E (por ejemplo, la condicion en la que se bloquea).
+ *
+ * Un tick recorre el array de ticks por bloques. De cada bloque se
+ * guarda una cota inferior de los ticks de sus coches que circulan: si
+ * es mayor que el numero de ticks aplicados, ningun coche del bloque
+ * vence y los ticks se restan con un bucle sin saltos, que el JIT puede
+ * vectorizar. Solo los bloques en los que vence algun coche se recorren
+ * coche a coche para apuntarlos.
+ *
+ * Si se le da un ForkJoinPool y hay muchos coches, los bloques se
+ * reparten en paralelo entre los hilos del pool y solo se juntan los
+ * coches que vencen.
+ *
+ * No es thread-safe: se usa desde dentro de la zona de exclusion mutua
+ * o desde el servidor. Durante aplicarTicks los hilos del pool solo
+ * tocan los coches de sus bloques, y el que llama espera a que acaben.
+ * La unica lectura admitida fuera es getTksVolatil: las escrituras que
+ * dejan un coche con 0 ticks (al vencer o con setTks) se publican con
+ * setRelease para que la vea. El resto de escrituras son normales, y
+ * fuera de la zona de exclusion mutua pueden verse tarde; el coche que
+ * espera solo mira si sus ticks son 0 y luego lo comprueba dentro.
+ */
+class TablaCoches<E> {
+  // Numero de coches a partir del cual los ticks se aplican en paralelo
+  static final int UMBRAL_PARALELO = 1 << 13;
+
+  // Manejador de un coche que no esta en la carretera
+  static final int NINGUNO = -1;
+
+  // Coches por bloque (potencia de 2)
+  private static final int BLOQUE = 1 << 10;
+  private static final int BITS_BLOQUE = 10;
+
+  // Bloques que recorre cada tarea del pool como minimo
+  private static final int BLOQUES_TAREA = UMBRAL_PARALELO / BLOQUE;
+
+  // Cota de un bloque sin coches circulando
+  private static final int SIN_COTA = Integer.MAX_VALUE;
+
+  // Acceso a los ticks para los coches que esperan fuera del monitor:
+  // getVolatile al leer, setRelease al dejarlos a 0
+  private static final VarHandle TKS = MethodHandles.arrayElementVarHandle(int[].class);
+
+  // Manejador de cada coche en la carretera
+  private final Map<String, Integer> manejadores = new HashMap<>();
+
+  // Columnas, por manejador
+  private String[] ids;
+  private int[] segmentos;
+  private int[] carriles;
+  // Volatile para que getTksVolatil vea el array despues de crecer
+  private volatile int[] tks;
+  private Object[] datos;
+
+  // Cota inferior de los ticks mayores que 0 de cada bloque
+  private int[] cotas;
+
+  // Manejadores libres para reutilizar
+  private int[] libres;
+  private int numLibres = 0;
+
+  // Manejadores usados alguna vez: [0, limite)
+  private int limite = 0;
+
+  /**
+   * Clase que guarda un coche que se queda con 0 ticks:
+   * - Id: nombre del coche
+   * - Dato: dato propio del coche
+   * - Tick: cual de los ticks aplicados le deja con 0 ticks (desde 1)
+   */
+  static final class Vencido<E> {
+    final String id;
+    final E dato;
+    final int tick;
+
+    Vencido(String id, E dato, int tick) {
+      this.id = id;
+      this.dato = dato;
+      this.tick = tick;
+    }
+  }
+
+  /**
+   * Constructor.
+   */
+  TablaCoches() {
+    crecer(BLOQUE);
+  }
+
+  /**
+   * Introduce un coche en la carretera.
+   *
+   * @return Su manejador.
+   */
+  int alta(String id, int segmento, int carril, int ticks, E dato) {
+    int coche;
+    if (numLibres > 0) {
+      coche = libres[--numLibres];
+    } else {
+      if (limite == ids.length) {
+        crecer(ids.length * 2);
+      }
+      coche = limite++;
+    }
+    manejadores.put(id, coche);
+    ids[coche] = id;
+    datos[coche] = dato;
+    mover(coche, segmento, carril, ticks);
+    return coche;
+  }
+
+  /**
+   * Saca un coche de la carretera. Su manejador queda libre para otro.
+   */
+  void baja(int coche) {
+    manejadores.remove(ids[coche]);
+    ids[coche] = null;
+    datos[coche] = null;
+    segmentos[coche] = 0;
+    carriles[coche] = 0;
+    tks[coche] = 0;
+    libres[numLibres++] = coche;
+  }
+
+  /**
+   * @return El manejador del coche, o NINGUNO si no esta en la carretera.
+   */
+  int manejador(String id) {
+    Integer coche = manejadores.get(id);
+    return coche == null ? NINGUNO : coche;
+  }
+
+  /**
+   * Cambia la posicion y los ticks de un coche.
+   */
+  void mover(int coche, int segmento, int carril, int ticks) {
+    segmentos[coche] = segmento;
+    carriles[coche] = carril;
+    setTks(coche, ticks);
+  }
+
+  /**
+   * Cambia los ticks de un coche.
+   */
+  void setTks(int coche, int ticks) {
+    if (ticks == 0) {
+      TKS.setRelease(tks, coche, 0);
+    } else {
+      tks[coche] = ticks;
+    }
+    int bloque = coche >>> BITS_BLOQUE;
+    if (ticks > 0 && ticks < cotas[bloque]) {
+      cotas[bloque] = ticks;
+    }
+  }
+
+  String getId(int coche) {
+    return ids[coche];
+  }
+
+  int getSegmento(int coche) {
+    return segmentos[coche];
+  }
+
+  int getCarril(int coche) {
+    return carriles[coche];
+  }
+
+  Pos getPosicion(int coche) {
+    return new Pos(segmentos[coche], carriles[coche]);
+  }
+
+  int getTks(int coche) {
+    return tks[coche];
+  }
+
+  /**
+   * Como getTks, pero se puede llamar fuera de la zona de exclusion
+   * mutua mientras el coche siga en la carretera.
+   */
+  int getTksVolatil(int coche) {
+    return (int) TKS.getVolatile(tks, coche);
+  }
+
+  @SuppressWarnings("unchecked")
+  E getDato(int coche) {
+    return (E) datos[coche];
+  }
+
+  void setDato(int coche, E dato) {
+    datos[coche] = dato;
+  }
+
+  /**
+   * @return El numero de coches.
+   */
+  int size() {
+    return manejadores.size();
+  }
+
+  /**
+   * @return Limite (exclusivo) de los manejadores en uso: los coches
+   *         son los manejadores menores con getId distinto de null.
+   */
+  int limite() {
+    return limite;
+  }
+
+  /**
+   * @return Los ticks que le quedan al coche que menos tiene de los
+   *         que estan circulando (0 si no circula ninguno).
+   */
+  int primerVencimiento() {
+    int minimo = SIN_COTA;
+    int[] tks = this.tks;
+    for (int i = 0; i < limite; i++) {
+      int t = tks[i];
+      if (t > 0 && t < minimo) {
+        minimo = t;
+      }
+    }
+    return minimo == SIN_COTA ? 0 : minimo;
+  }
+
+  /**
+   * Aplica n ticks a todos los coches (hasta 0).
+   *
+   * @param n numero de ticks
+   * @param pool pool en el que se recorren los bloques en paralelo
+   *             (null para recorrerlos en el hilo que llama)
+   *
+   * @return Los coches que se quedan con 0 ticks, sin ningun orden.
+   */
+  List<Vencido<E>> aplicarTicks(int n, ForkJoinPool pool) {
+    int bloques = (limite + BLOQUE - 1) >>> BITS_BLOQUE;
+    if (n == 0 || bloques == 0) {
+      return new ArrayList<>();
+    }
+    if (pool == null || size() < UMBRAL_PARALELO) {
+      List<Vencido<E>> vencidos = new ArrayList<>();
+      aplicarTicks(0, bloques, n, vencidos);
+      return vencidos;
+    }
+    return pool.invoke(new Reparto(0, bloques, n));
+  }
+
+  // Aplica los ticks a los bloques [desde, hasta), apuntando los que vencen
+  private void aplicarTicks(int desde, int hasta, int n, List<Vencido<E>> vencidos) {
+    int[] tks = this.tks;
+    for (int bloque = desde; bloque < hasta; bloque++) {
+      int inicio = bloque << BITS_BLOQUE;
+      int fin = Math.min(inicio + BLOQUE, limite);
+      int cota = cotas[bloque];
+
+      if (cota == SIN_COTA) {
+        // Ningun coche circula en el bloque
+        continue;
+      }
+
+      if (cota > n) {
+        // Ningun coche vence: los que tienen 0 ticks se quedan en 0, y
+        // ninguno llega a 0, asi que no hace falta publicar nada
+        for (int i = inicio; i < fin; i++) {
+          tks[i] = Math.max(tks[i] - n, 0);
+        }
+        cotas[bloque] = cota - n;
+        continue;
+      }
+
+      // Vence algun coche: recorremos el bloque apuntandolos y
+      // calculando la cota exacta
+      cota = SIN_COTA;
+      for (int i = inicio; i < fin; i++) {
+        int t = tks[i];
+        if (t > 0) {
+          if (t <= n) {
+            TKS.setRelease(tks, i, 0);
+            vencidos.add(new Vencido<>(ids[i], getDato(i), t));
+          } else {
+            tks[i] = t - n;
+            cota = Math.min(cota, t - n);
+          }
+        }
+      }
+      cotas[bloque] = cota;
+    }
+  }
+
+  private void crecer(int capacidad) {
+    int bloques = capacidad >>> BITS_BLOQUE;
+    if (ids == null) {
+      ids = new String[capacidad];
+      segmentos = new int[capacidad];
+      carriles = new int[capacidad];
+      datos = new Object[capacidad];
+      libres = new int[capacidad];
+      cotas = new int[bloques];
+      Arrays.fill(cotas, SIN_COTA);
+      tks = new int[capacidad];
+      return;
+    }
+    int anteriores = cotas.length;
+    ids = Arrays.copyOf(ids, capacidad);
+    segmentos = Arrays.copyOf(segmentos, capacidad);
+    carriles = Arrays.copyOf(carriles, capacidad);
+    datos = Arrays.copyOf(datos, capacidad);
+    libres = Arrays.copyOf(libres, capacidad);
+    cotas = Arrays.copyOf(cotas, bloques);
+    Arrays.fill(cotas, anteriores, bloques, SIN_COTA);
+    tks = Arrays.copyOf(tks, capacidad);
+  }
+
+  /**
+   * Aplica los ticks a los bloques [desde, hasta), dividiendo el rango
+   * por la mitad hasta llegar a BLOQUES_TAREA bloques.
+   */
+  private final class Reparto extends RecursiveTask<List<Vencido<E>>> {
+    private static final long serialVersionUID = 1L;
+
+    private final int desde;
+    private final int hasta;
+    private final int n;
+
+    Reparto(int desde, int hasta, int n) {
+      this.desde = desde;
+      this.hasta = hasta;
+      this.n = n;
+    }
+
+    protected List<Vencido<E>> compute() {
+      if (hasta - desde <= BLOQUES_TAREA) {
+        List<Vencido<E>> vencidos = new ArrayList<>();
+        aplicarTicks(desde, hasta, n, vencidos);
+        return vencidos;
+      }
+      int mitad = (desde + hasta) >>> 1;
+      Reparto izquierda = new Reparto(desde, mitad, n);
+      izquierda.fork();
+      List<Vencido<E>> vencidos = new Reparto(mitad, hasta, n).compute();
+      List<Vencido<E>> otros = izquierda.join();
+      if (vencidos.size() < otros.size()) {
+        List<Vencido<E>> aux = vencidos;
+        vencidos = otros;
+        otros = aux;
+      }
+      vencidos.addAll(otros);
+      return vencidos;
+    }
+  }
+}
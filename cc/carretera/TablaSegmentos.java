@@ -0,0 +1,133 @@
+package cc.carretera;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Estado de cada segmento de una carretera (carriles ocupados, coches
+ * esperando), que guardan las implementaciones en su propio tipo S.
+ *
+ * Hay dos representaciones:
+ * - Densa: un array con el estado de todos los segmentos, creado al
+ *   construir la tabla. Es la mas rapida para carreteras cortas.
+ * - Dispersa: solo existe el estado de los segmentos que tienen coches
+ *   o esperas. Cuando un segmento se vacia se retira de la tabla y su
+ *   estado se guarda para reutilizarlo en otro segmento, asi que la
+ *   memoria es proporcional al trafico y no a la longitud de la
+ *   carretera.
+ *
+ * No es thread-safe: se usa desde dentro de la zona de exclusion mutua
+ * o desde el servidor.
+ */
+class TablaSegmentos<S> {
+  // Numero de segmentos a partir del cual las carreteras usan por
+  // defecto la representacion dispersa
+  static final int UMBRAL_DISPERSA = 1 << 16;
+
+  // Maximo de estados vacios que se guardan para reutilizarlos
+  private static final int MAX_LIBRES = 1024;
+
+  // Crea el estado de un segmento vacio
+  private final Supplier<S> crear;
+
+  // Representacion densa (null si es dispersa), ignorando la posicion 0
+  private final S[] densa;
+
+  // Representacion dispersa (null si es densa)
+  private final Map<Integer, S> dispersa;
+
+  // Estados vacios para reutilizar (solo en la dispersa)
+  private final ArrayDeque<S> libres;
+
+  /**
+   * Constructor.
+   *
+   * @param segmentos numero de segmentos de la carretera
+   * @param dispersa si se usa la representacion dispersa
+   * @param crear crea el estado de un segmento vacio
+   */
+  @SuppressWarnings("unchecked")
+  TablaSegmentos(int segmentos, boolean dispersa, Supplier<S> crear) {
+    this.crear = crear;
+    if (dispersa) {
+      this.densa = null;
+      this.dispersa = new HashMap<>();
+      this.libres = new ArrayDeque<>();
+    } else {
+      this.densa = (S[]) new Object[segmentos + 1];
+      for (int i = 1; i <= segmentos; i++) {
+        densa[i] = crear.get();
+      }
+      this.dispersa = null;
+      this.libres = null;
+    }
+  }
+
+  /**
+   * @return Si la representacion es dispersa.
+   */
+  boolean esDispersa() {
+    return dispersa != null;
+  }
+
+  /**
+   * @return El estado del segmento, o null si no tiene coches ni esperas
+   *         (solo en la representacion dispersa).
+   */
+  S get(int segmento) {
+    return densa != null ? densa[segmento] : dispersa.get(segmento);
+  }
+
+  /**
+   * @return El estado del segmento, que se crea (o reutiliza) si no lo
+   *         tenia.
+   */
+  S obtener(int segmento) {
+    if (densa != null) {
+      return densa[segmento];
+    }
+    S estado = dispersa.get(segmento);
+    if (estado == null) {
+      estado = libres.isEmpty() ? crear.get() : libres.pop();
+      dispersa.put(segmento, estado);
+    }
+    return estado;
+  }
+
+  /**
+   * Retira el estado de un segmento que se ha quedado sin coches ni
+   * esperas. En la representacion densa no hace nada.
+   */
+  void liberar(int segmento) {
+    if (dispersa != null) {
+      S estado = dispersa.remove(segmento);
+      if (estado != null && libres.size() < MAX_LIBRES) {
+        libres.push(estado);
+      }
+    }
+  }
+
+  /**
+   * @return Los estados de los segmentos que tienen coches o esperas (en
+   *         la densa, todos).
+   */
+  Collection<S> activos() {
+    if (densa != null) {
+      return Collections.unmodifiableList(Arrays.asList(densa).subList(1, densa.length));
+    }
+    return new ArrayList<>(dispersa.values());
+  }
+
+  /**
+   * @return El numero de segmentos con estado.
+   */
+  int size() {
+    return densa != null ? densa.length - 1 : dispersa.size();
+  }
+}
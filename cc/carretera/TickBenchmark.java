@@ -0,0 +1,102 @@
+/*
+ * Measures how long a tick takes on a carretera with many cars, with
+ * and without a ForkJoinPool to spread it.
+ *
+ */
+package cc.carretera;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+
+/*
+ * Usage:
+ *   java cc.carretera.TickBenchmark [-impls monitor,csp,lockfree] [-cars n]
+ *                                   [-segmentos n] [-threads 0,1,2,4] [-ticks n]
+ *
+ * Fills each implementation with -cars cars, spread evenly over the
+ * segmentos, from a single thread (the cars never call circulando, so
+ * no car thread is needed). Their velocidades are large enough for no
+ * car to reach 0 ticks during the run. Then it times -ticks ticks with
+ * each of the -threads values: 0 is the plain serial tick, any other
+ * value ticks through tickParalelo with a ForkJoinPool of that many
+ * threads. It reports the mean time per tick.
+ *
+ * The default is 100000 cars; on a machine with several cores the
+ * tick time should fall as the number of threads grows, up to the
+ * number of cores.
+ */
+class TickBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    List<String> impls = Arrays.asList("monitor", "csp", "lockfree");
+    int cars = 100_000;
+    int segmentos = 10;
+    int[] threads = { 0, 1, 2, Runtime.getRuntime().availableProcessors() };
+    int ticks = 200;
+
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "-impls": impls = Arrays.asList(args[++i].split(",")); break;
+        case "-cars": cars = Integer.parseInt(args[++i]); break;
+        case "-segmentos": segmentos = Integer.parseInt(args[++i]); break;
+        case "-threads": threads = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray(); break;
+        case "-ticks": ticks = Integer.parseInt(args[++i]); break;
+        default:
+          System.err.println("Unknown option "+args[i]);
+          System.exit(1);
+      }
+    }
+    threads = Arrays.stream(threads).distinct().toArray();
+
+    int carriles = (cars + segmentos - 1) / segmentos;
+    System.out.println(cars+" cars on "+segmentos+" segmentos of "+carriles+" carriles, "
+                       +ticks+" ticks, "+Runtime.getRuntime().availableProcessors()+" processors");
+
+    for (String impl : impls) {
+      Carretera cr = Implementations.create(impl, segmentos, carriles);
+      long start = System.nanoTime();
+      fill(cr, cars, segmentos, carriles);
+      System.out.printf("%-10s filled in %d ms%n", impl, (System.nanoTime() - start) / 1_000_000);
+
+      List<ForkJoinPool> pools = new ArrayList<>();
+      for (int t : threads) {
+        ForkJoinPool pool = t == 0 ? null : new ForkJoinPool(t);
+        if (pool != null) pools.add(pool);
+        if (!(cr instanceof CarreteraParalela)) {
+          System.out.printf("%-10s threads %2d: not supported%n", impl, t);
+          continue;
+        }
+        ((CarreteraParalela) cr).tickParalelo(pool);
+        // Warm up, then measure
+        cr.tick(1);
+        for (int k = 0; k < ticks / 10; k++) cr.tick();
+        start = System.nanoTime();
+        for (int k = 0; k < ticks; k++) cr.tick();
+        long perTick = (System.nanoTime() - start) / ticks;
+        System.out.printf("%-10s threads %2d: %8.1f us/tick%n", impl, t, perTick / 1000.0);
+      }
+      cr.close();
+      for (ForkJoinPool pool : pools) pool.shutdown();
+    }
+  }
+
+  // Fills the last segmento first, so every car only goes through
+  // segmentos that still have free carriles
+  private static void fill(Carretera cr, int cars, int segmentos, int carriles) {
+    // Far more than all the ticks of the run
+    int tks = Integer.MAX_VALUE / 2;
+    int car = 0;
+    for (int s = segmentos; s >= 1 && car < cars; s--) {
+      for (int c = 0; c < carriles && car < cars; c++, car++) {
+        String id = "car"+car;
+        cr.entrar(id, tks);
+        for (int k = 1; k < s; k++) {
+          cr.avanzar(id, tks);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * File format of the traces written by TraceRecorder and read by
+ * TraceReplayer.
+ *
+ */
+package cc.carretera;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/*
+ * A trace is the sequence of state changes of a carretera in the order
+ * the implementation made them (see ObservadorCarretera):
+ *
+ *   int   MAGIC
+ *   int   segmentos
+ *   int   carriles
+ *   long  seed of the run
+ *   event*
+ *   byte  END
+ *
+ * Each event is a type byte followed by its fields as unsigned varints.
+ * Cars are numbered in order of appearance; a CAR event with the name
+ * of the car precedes its first use.
+ *
+ *   CAR          name (modified UTF-8)
+ *   SOLICITUD    car segmento
+ *   CONCESION    car segmento carril tks
+ *   SALIDA       car
+ *   TICK
+ *   LIBERACION   car
+ */
+class Trace {
+
+  static final int MAGIC = 0x43545231;   // "CTR1"
+
+  // Event types
+  static final int CAR = 0;
+  static final int SOLICITUD = 1;
+  static final int CONCESION = 2;
+  static final int SALIDA = 3;
+  static final int TICK = 4;
+  static final int LIBERACION = 5;
+  static final int END = 0xFF;
+
+  // Header
+  int segmentos;
+  int carriles;
+  long seed;
+
+  // Car names, indexed by car number
+  List<String> cars = new ArrayList<>();
+
+  // Events, one entry per event in each column (CAR events are not kept)
+  int size = 0;
+  byte[] type = new byte[1024];
+  int[] car = new int[1024];
+  int[] segmento = new int[1024];
+  int[] carril = new int[1024];
+  int[] tks = new int[1024];
+
+  // Read a whole trace
+  static Trace read(Path path) throws IOException {
+    try (InputStream in = Files.newInputStream(path)) {
+      return read(new DataInputStream(new BufferedInputStream(in, 1 << 16)));
+    }
+  }
+
+  static Trace read(DataInputStream in) throws IOException {
+    Trace trace = new Trace();
+    if (in.readInt() != MAGIC) throw new IOException("Not a carretera trace");
+    trace.segmentos = in.readInt();
+    trace.carriles = in.readInt();
+    trace.seed = in.readLong();
+
+    while (true) {
+      int t;
+      try {
+        t = in.readUnsignedByte();
+      } catch (EOFException e) {
+        // Truncated trace (the run did not finish): keep what we have
+        break;
+      }
+      if (t == END) break;
+      if (t == CAR) {
+        trace.cars.add(in.readUTF());
+        continue;
+      }
+      trace.grow();
+      int i = trace.size++;
+      trace.type[i] = (byte) t;
+      switch (t) {
+      case SOLICITUD:
+        trace.car[i] = readVarint(in);
+        trace.segmento[i] = readVarint(in);
+        break;
+      case CONCESION:
+        trace.car[i] = readVarint(in);
+        trace.segmento[i] = readVarint(in);
+        trace.carril[i] = readVarint(in);
+        trace.tks[i] = readVarint(in);
+        break;
+      case SALIDA:
+      case LIBERACION:
+        trace.car[i] = readVarint(in);
+        break;
+      case TICK:
+        break;
+      default:
+        throw new IOException("Unknown event type "+t+" in trace");
+      }
+    }
+    return trace;
+  }
+
+  private void grow() {
+    if (size < type.length) return;
+    int n = type.length*2;
+    type = Arrays.copyOf(type, n);
+    car = Arrays.copyOf(car, n);
+    segmento = Arrays.copyOf(segmento, n);
+    carril = Arrays.copyOf(carril, n);
+    tks = Arrays.copyOf(tks, n);
+  }
+
+  static void writeVarint(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7F) != 0) {
+      out.writeByte((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  static int readVarint(DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return value;
+    }
+    throw new IOException("Malformed varint in trace");
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Records the state changes of a carretera into a trace file.
+ *
+ */
+package cc.carretera;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/*
+ * Observer that writes every event it receives to a trace (see Trace).
+ * Since the events arrive in the order the implementation made the
+ * changes, the trace holds the real grant order: which car got which
+ * lane, and between which ticks.
+ *
+ * The events are called from inside the critical section of the
+ * implementation, so they only append to a buffered stream. An I/O
+ * error stops the recording and is thrown by close().
+ */
+class TraceRecorder implements ObservadorCarretera, AutoCloseable {
+
+  private final Path path;
+  private final DataOutputStream out;
+  private final Map<String,Integer> cars = new HashMap<>();
+  private IOException error = null;
+  private boolean closed = false;
+
+  TraceRecorder(Path path, int segmentos, int carriles, long seed) throws IOException {
+    this.path = path;
+    this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+    out.writeInt(Trace.MAGIC);
+    out.writeInt(segmentos);
+    out.writeInt(carriles);
+    out.writeLong(seed);
+  }
+
+  Path getPath() {
+    return path;
+  }
+
+  @Override
+  public synchronized void solicitud(String id, int segmento) {
+    if (closed || error != null) return;
+    try {
+      int car = car(id);
+      out.writeByte(Trace.SOLICITUD);
+      Trace.writeVarint(out, car);
+      Trace.writeVarint(out, segmento);
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  @Override
+  public synchronized void concesion(String id, Pos pos, int tks) {
+    if (closed || error != null) return;
+    try {
+      int car = car(id);
+      out.writeByte(Trace.CONCESION);
+      Trace.writeVarint(out, car);
+      Trace.writeVarint(out, pos.getSegmento());
+      Trace.writeVarint(out, pos.getCarril());
+      Trace.writeVarint(out, tks);
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  @Override
+  public synchronized void salida(String id, Pos pos) {
+    if (closed || error != null) return;
+    try {
+      int car = car(id);
+      out.writeByte(Trace.SALIDA);
+      Trace.writeVarint(out, car);
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  @Override
+  public synchronized void tick() {
+    if (closed || error != null) return;
+    try {
+      out.writeByte(Trace.TICK);
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  @Override
+  public synchronized void liberacion(String id) {
+    if (closed || error != null) return;
+    try {
+      int car = car(id);
+      out.writeByte(Trace.LIBERACION);
+      Trace.writeVarint(out, car);
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    try {
+      if (error == null) {
+        out.writeByte(Trace.END);
+        out.flush();
+      }
+    } finally {
+      out.close();
+    }
+    if (error != null) throw error;
+  }
+
+  // Number of a car, defining it in the trace the first time it is seen
+  private int car(String id) throws IOException {
+    Integer car = cars.get(id);
+    if (car == null) {
+      car = cars.size();
+      cars.put(id, car);
+      out.writeByte(Trace.CAR);
+      out.writeUTF(id);
+    }
+    return car;
+  }
+
+  private void fail(IOException e) {
+    error = e;
+  }
+}
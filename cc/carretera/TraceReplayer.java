@@ -0,0 +1,179 @@
+/*
+ * Replays a trace recorded by TraceRecorder against a Carretera.
+ *
+ */
+package cc.carretera;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+
+/*
+ * Re-drives a carretera through exactly the grant order of a trace, at
+ * full speed and without sleeps.
+ *
+ * The replayer thread walks the trace and is the only one deciding
+ * what happens next: a TICK is done by the replayer itself, and an
+ * entrar/avanzar/salir is handed to the thread of its car, waiting
+ * for the call to return before moving on. Each car thread calls
+ * circulando on its own right after every grant, as a Coche does.
+ *
+ * Since every call is issued only once the events before it in the
+ * trace have happened, it never has to wait for a lane, and a
+ * deterministic implementation must return the recorded positions.
+ * Positions that differ are reported as divergences. A call that does
+ * not return within STUCK_NANOS is reported and stops the replay.
+ */
+class TraceReplayer {
+
+  static final long STUCK_NANOS = 10_000_000_000L;
+
+  private final Trace trace;
+  private final Carretera cr;
+  private final Thread replayer;
+
+  // Results
+  long events = 0;
+  long divergences = 0;
+  String firstDivergence = null;
+  String stuck = null;
+  long elapsedNanos = 0;
+
+  TraceReplayer(Trace trace, Carretera cr) {
+    this.trace = trace;
+    this.cr = cr;
+    this.replayer = Thread.currentThread();
+  }
+
+  // Replay the whole trace. Returns true if it got to the end.
+  boolean replay() {
+    Map<Integer,CarThread> threads = new HashMap<>();
+    long start = System.nanoTime();
+
+    for (int i = 0; i < trace.size; i++) {
+      int type = trace.type[i];
+      if (type == Trace.TICK) {
+        cr.tick();
+        ++events;
+      } else if (type == Trace.CONCESION || type == Trace.SALIDA) {
+        int car = trace.car[i];
+        CarThread th = threads.get(car);
+        if (th == null) {
+          th = new CarThread(trace.cars.get(car));
+          threads.put(car, th);
+          th.start();
+        }
+        th.assign(i);
+        if (!awaitDone(th)) {
+          stuck = "event "+i+": "+describe(i)+" did not return";
+          break;
+        }
+        if (type == Trace.SALIDA) threads.remove(car);
+        ++events;
+      }
+      // SOLICITUD and LIBERACION are consequences of the other events
+    }
+
+    elapsedNanos = System.nanoTime() - start;
+    for (CarThread th : threads.values()) th.interrupt();
+    return stuck == null;
+  }
+
+  private boolean awaitDone(CarThread th) {
+    long deadline = System.nanoTime() + STUCK_NANOS;
+    while (!th.done) {
+      long left = deadline - System.nanoTime();
+      if (left <= 0) return false;
+      LockSupport.parkNanos(this, left);
+    }
+    return true;
+  }
+
+  private synchronized void diverged(int i, Pos result) {
+    ++divergences;
+    if (firstDivergence == null) {
+      firstDivergence = "event "+i+": "+describe(i)+" returned "+result;
+    }
+  }
+
+  private String describe(int i) {
+    String car = trace.cars.get(trace.car[i]);
+    if (trace.type[i] == Trace.SALIDA) return "salir("+car+")";
+    String op = trace.segmento[i] == 1 ? "entrar" : "avanzar";
+    return op+"("+car+","+trace.tks[i]+") expected <"+trace.segmento[i]+","+trace.carril[i]+">";
+  }
+
+
+  // Thread of a car: executes the events handed to it by the replayer
+  private class CarThread extends Thread {
+    final String id;
+    volatile int event = -1;
+    volatile boolean done = false;
+
+    CarThread(String id) {
+      super("replay-"+id);
+      this.id = id;
+      setDaemon(true);
+    }
+
+    void assign(int i) {
+      done = false;
+      event = i;
+      LockSupport.unpark(this);
+    }
+
+    public void run() {
+      while (true) {
+        int i;
+        while ((i = event) < 0) {
+          if (isInterrupted()) return;
+          LockSupport.park(this);
+        }
+        event = -1;
+
+        if (trace.type[i] == Trace.SALIDA) {
+          cr.salir(id);
+          done = true;
+          LockSupport.unpark(replayer);
+          return;
+        }
+
+        Pos expected = new Pos(trace.segmento[i], trace.carril[i]);
+        Pos result = trace.segmento[i] == 1
+          ? cr.entrar(id, trace.tks[i])
+          : cr.avanzar(id, trace.tks[i]);
+        if (!expected.equals(result)) diverged(i, result);
+        done = true;
+        LockSupport.unpark(replayer);
+
+        cr.circulando(id);
+      }
+    }
+  }
+
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: java cc.carretera.TraceReplayer <trace> <implementation>");
+      System.err.println("Implementations: "+Implementations.names());
+      System.exit(1);
+    }
+    Trace trace = Trace.read(Paths.get(args[0]));
+    Carretera cr = Implementations.create(args[1], trace.segmentos, trace.carriles);
+
+    System.out.println("Replaying "+trace.size+" events of "+trace.cars.size()+" cars on a carretera of "
+                       +trace.segmentos+" segmentos and "+trace.carriles+" carriles (seed "+trace.seed+")");
+    TraceReplayer replayer = new TraceReplayer(trace, cr);
+    boolean finished = replayer.replay();
+
+    System.out.println(replayer.events+" events replayed in "+replayer.elapsedNanos/1_000_000+" ms ("
+                       +(long) (replayer.events*1e9/Math.max(1,replayer.elapsedNanos))+" events/s)");
+    System.out.println(replayer.divergences+" divergences");
+    if (replayer.firstDivergence != null) System.out.println("First divergence at "+replayer.firstDivergence);
+    if (!finished) System.out.println("*** Replay stuck at "+replayer.stuck);
+    System.exit(finished && replayer.divergences == 0 ? 0 : 1);
+  }
+}
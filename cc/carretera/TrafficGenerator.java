@@ -0,0 +1,197 @@
+/*
+ * Seeded generator of synthetic traffic for the simulations.
+ *
+ */
+package cc.carretera;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+
+/*
+ * Streams car definitions (id, velocidad and arrival tick) one at a
+ * time, so a workload of millions of cars needs no more memory than a
+ * single car. The same seed and options always give the same cars.
+ *
+ * Arrival processes (in ticks, arrivals are non decreasing):
+ *   all            every car arrives at tick 0
+ *   poisson:r      Poisson arrivals with a mean of r cars per tick
+ *   burst:b:p      bursts of b cars every p ticks
+ *   platoon:k:r    platoons of k cars with the same velocidad; the
+ *                  platoons arrive as a Poisson process of r per tick
+ *
+ * Velocidad distributions (ticks per segment, lower is faster):
+ *   fixed:v        every car has velocidad v
+ *   uniform:a:b    uniform between a and b (both included)
+ *   weighted:w1:w2:...  velocidad i has weight wi
+ */
+class TrafficGenerator implements Iterator<TrafficGenerator.CarDef> {
+
+  // Maximum number of car threads alive at the same time when driving
+  // the generated cars (CarreteraSim and Compare): later cars wait for
+  // a free one
+  static final int MAX_LIVE_CARS = 10_000;
+
+  // Definition of a car
+  static class CarDef {
+    final String id;
+    final int velocidad;
+    final long arrival;
+
+    CarDef(String id, int velocidad, long arrival) {
+      this.id = id;
+      this.velocidad = velocidad;
+      this.arrival = arrival;
+    }
+
+    public String toString() {
+      return id+"@"+velocidad+" t="+arrival;
+    }
+  }
+
+  private final Random rnd;
+  private final long numCars;
+  private final String[] names;
+  private final String prefix;
+
+  // Arrival process
+  private final String arrivals;
+  private final double rate;
+  private final int group;
+  private final int period;
+
+  // Velocidad distribution
+  private final String speeds;
+  private final int[] speedParams;
+  private final int totalWeight;
+
+  // Generation state
+  private long generated = 0;
+  private double time = 0;
+  private int inGroup = 0;
+  private int groupSpeed = 0;
+
+  /*
+   * numCars cars with the given arrival process and velocidad
+   * distribution. The first cars take their ids from names (may be
+   * empty), the rest are called prefix+number.
+   */
+  TrafficGenerator(long seed, long numCars, String arrivals, String speeds, String[] names, String prefix) {
+    this.rnd = new Random(seed);
+    this.numCars = numCars;
+    this.names = names;
+    this.prefix = prefix;
+
+    String[] a = arrivals.split(":");
+    this.arrivals = a[0];
+    switch (this.arrivals) {
+    case "all":
+      rate = 0; group = 0; period = 0;
+      break;
+    case "poisson":
+      rate = Double.parseDouble(a[1]); group = 1; period = 0;
+      break;
+    case "burst":
+      rate = 0; group = Integer.parseInt(a[1]); period = Integer.parseInt(a[2]);
+      break;
+    case "platoon":
+      group = Integer.parseInt(a[1]); rate = Double.parseDouble(a[2]); period = 0;
+      break;
+    default:
+      throw new IllegalArgumentException("Unknown arrival process "+arrivals);
+    }
+    if ((this.arrivals.equals("poisson") || this.arrivals.equals("platoon")) && rate <= 0)
+      throw new IllegalArgumentException("The arrival rate must be positive: "+arrivals);
+    if ((this.arrivals.equals("burst") || this.arrivals.equals("platoon")) && group < 1)
+      throw new IllegalArgumentException("Groups must have at least one car: "+arrivals);
+
+    String[] s = speeds.split(":");
+    this.speeds = s[0];
+    this.speedParams = new int[s.length-1];
+    for (int i = 1; i < s.length; i++) speedParams[i-1] = Integer.parseInt(s[i]);
+    int total = 0;
+    switch (this.speeds) {
+    case "fixed":
+      check(speedParams.length == 1 && speedParams[0] >= 1, speeds);
+      break;
+    case "uniform":
+      check(speedParams.length == 2 && 1 <= speedParams[0] && speedParams[0] <= speedParams[1], speeds);
+      break;
+    case "weighted":
+      for (int w : speedParams) {
+        check(w >= 0, speeds);
+        total += w;
+      }
+      check(total > 0, speeds);
+      break;
+    default:
+      throw new IllegalArgumentException("Unknown velocidad distribution "+speeds);
+    }
+    this.totalWeight = total;
+  }
+
+  private static void check(boolean ok, String spec) {
+    if (!ok) throw new IllegalArgumentException("Wrong velocidad distribution "+spec);
+  }
+
+  @Override
+  public boolean hasNext() {
+    return generated < numCars;
+  }
+
+  @Override
+  public CarDef next() {
+    if (!hasNext()) throw new NoSuchElementException();
+    long n = generated++;
+    String id = n < names.length ? names[(int) n] : prefix+n;
+
+    long arrival;
+    int velocidad;
+    switch (arrivals) {
+    case "poisson":
+      time += exponential(rate);
+      arrival = (long) time;
+      velocidad = speed();
+      break;
+    case "burst":
+      arrival = (n / group) * period;
+      velocidad = speed();
+      break;
+    case "platoon":
+      if (inGroup == 0) {
+        time += exponential(rate);
+        groupSpeed = speed();
+        inGroup = group;
+      }
+      --inGroup;
+      arrival = (long) time;
+      velocidad = groupSpeed;
+      break;
+    default:
+      arrival = 0;
+      velocidad = speed();
+    }
+    return new CarDef(id, velocidad, arrival);
+  }
+
+  private double exponential(double rate) {
+    return -Math.log(1.0 - rnd.nextDouble()) / rate;
+  }
+
+  private int speed() {
+    switch (speeds) {
+    case "fixed":
+      return speedParams[0];
+    case "uniform":
+      return speedParams[0] + rnd.nextInt(speedParams[1] - speedParams[0] + 1);
+    default:
+      int r = rnd.nextInt(totalWeight);
+      for (int i = 0; i < speedParams.length; i++) {
+        r -= speedParams[i];
+        if (r < 0) return i+1;
+      }
+      return speedParams.length;
+    }
+  }
+}
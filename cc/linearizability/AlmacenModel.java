@@ -0,0 +1,56 @@
+/*
+ * Sequential model of es.upm.babel.cclib.Almacen.
+ *
+ */
+package cc.linearizability;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/*
+ * C-TAD Almacen (FIFO of at most capacidad productos):
+ *
+ *   CPRE: Longitud(self) < capacidad
+ *     almacenar(p)
+ *   POST: self = self-pre + <p>
+ *
+ *   CPRE: Longitud(self) > 0
+ *     extraer(p)
+ *   POST: self-pre = <p> + self
+ *
+ * The state is the list of productos stored, productos are compared
+ * by identity.
+ */
+final class AlmacenModel implements Model<List<Object>> {
+
+  private final int capacidad;
+
+  AlmacenModel(int capacidad) {
+    this.capacidad = capacidad;
+  }
+
+  public List<Object> initial() {
+    return new ArrayList<>();
+  }
+
+  public List<Object> apply(List<Object> state, Operation op) {
+    if (op.exception != null) return null;
+    switch (op.name) {
+    case "almacenar":
+      if (state.size() >= capacidad) return null;
+      List<Object> next = new ArrayList<>(state);
+      next.add(op.arg(0));
+      return next;
+    case "extraer":
+      if (state.isEmpty() || state.get(0) != op.result) return null;
+      return new ArrayList<>(state.subList(1, state.size()));
+    default:
+      throw new IllegalArgumentException("Unknown operation "+op.name);
+    }
+  }
+
+  public boolean enabled(List<Object> state, Operation op) {
+    return op.name.equals("almacenar") ? state.size() < capacidad : !state.isEmpty();
+  }
+}
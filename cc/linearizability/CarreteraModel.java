@@ -0,0 +1,191 @@
+/*
+ * Sequential model of cc.carretera.Carretera.
+ *
+ */
+package cc.linearizability;
+
+import cc.carretera.Pos;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+
+/*
+ * C-TAD Carretera: self is a partial function from car ids to
+ * (position, ticks left), and no two cars share a position.
+ *
+ *   CPRE: some carril of segmento 1 is free
+ *     entrar(id, tks, p)
+ *   POST: p is a free position of segmento 1, self(id) = (p, tks)
+ *
+ *   tryEntrar(id, tks, p)
+ *   POST: as entrar if some carril of segmento 1 is free, else p = null
+ *
+ *   entrarPlazo(id, tks, timeout, p)
+ *   POST: as entrar, or p = null and nothing changes (the timeout may
+ *         expire whenever the car is waiting)
+ *
+ *   CPRE: some carril of segmento self(id).p.s + 1 is free
+ *     avanzar(id, tks, p)
+ *   POST: p is a free position of the next segmento, self(id) = (p, tks)
+ *
+ *   CPRE: self(id).t = 0
+ *     circulando(id)
+ *
+ *   salir(id)
+ *   POST: id not in dom self
+ *
+ *   tick()
+ *   POST: every car with ticks left has one less
+ *
+ *   tickN(n)
+ *   POST: as n ticks in a row
+ *
+ *   tickHastaVencimiento(n)
+ *   POST: n is the fewest ticks left of a car with some left (0 if
+ *         none), and the state is as after n ticks in a row
+ *
+ * The carril is chosen by the implementation, so the model takes the
+ * returned position and only checks that it was a free one.
+ */
+final class CarreteraModel implements Model<Map<String,CarreteraModel.Coche>> {
+
+  // Position and ticks left of a car
+  static final class Coche {
+    final int segmento;
+    final int carril;
+    final int tks;
+
+    Coche(int segmento, int carril, int tks) {
+      this.segmento = segmento;
+      this.carril = carril;
+      this.tks = tks;
+    }
+
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Coche)) return false;
+      Coche c = (Coche) obj;
+      return segmento == c.segmento && carril == c.carril && tks == c.tks;
+    }
+
+    public int hashCode() {
+      return Objects.hash(segmento, carril, tks);
+    }
+  }
+
+  private final int segmentos;
+  private final int carriles;
+
+  CarreteraModel(int segmentos, int carriles) {
+    this.segmentos = segmentos;
+    this.carriles = carriles;
+  }
+
+  public Map<String,Coche> initial() {
+    return new HashMap<>();
+  }
+
+  public Map<String,Coche> apply(Map<String,Coche> state, Operation op) {
+    if (op.exception != null) return null;
+    String id = op.name.startsWith("tick") ? null : (String) op.arg(0);
+    Coche coche = id == null ? null : state.get(id);
+    Map<String,Coche> next;
+
+    switch (op.name) {
+    case "tryEntrar":
+    case "entrarPlazo":
+      if (op.result == null) {
+        return coche == null && (op.name.equals("entrarPlazo") || !freeCarril(state, 1)) ? state : null;
+      }
+      return ocupar(state, op, id, coche, false);
+
+    case "entrar":
+      return ocupar(state, op, id, coche, false);
+
+    case "avanzar":
+      return ocupar(state, op, id, coche, true);
+
+    case "circulando":
+      return coche != null && coche.tks == 0 ? state : null;
+
+    case "salir":
+      if (coche == null || coche.segmento != segmentos) return null;
+      next = new HashMap<>(state);
+      next.remove(id);
+      return next;
+
+    case "tick":
+      return ticks(state, 1);
+
+    case "tickN":
+      return ticks(state, (Integer) op.arg(0));
+
+    case "tickHastaVencimiento":
+      int n = 0;
+      for (Coche c : state.values()) {
+        if (c.tks > 0 && (n == 0 || c.tks < n)) n = c.tks;
+      }
+      return op.result.equals(n) ? ticks(state, n) : null;
+
+    default:
+      throw new IllegalArgumentException("Unknown operation "+op.name);
+    }
+  }
+
+  public boolean enabled(Map<String,Coche> state, Operation op) {
+    Coche coche = op.name.startsWith("tick") ? null : state.get((String) op.arg(0));
+    switch (op.name) {
+    case "entrar":
+      return freeCarril(state, 1);
+    case "tryEntrar":
+    case "entrarPlazo":
+      return true;
+    case "avanzar":
+      return coche != null && coche.segmento < segmentos && freeCarril(state, coche.segmento + 1);
+    case "circulando":
+      return coche != null && coche.tks == 0;
+    default:
+      return true;
+    }
+  }
+
+  // The car takes the position returned by op: the first segmento if it
+  // enters, the next one if it avanza
+  private Map<String,Coche> ocupar(Map<String,Coche> state, Operation op, String id, Coche coche,
+                                   boolean avanzar) {
+    if (avanzar == (coche == null)) return null;
+    int segmento = coche == null ? 1 : coche.segmento + 1;
+    Pos pos = (Pos) op.result;
+    if (pos == null || segmento > segmentos || pos.getSegmento() != segmento
+        || !free(state, segmento, pos.getCarril())) {
+      return null;
+    }
+    Map<String,Coche> next = new HashMap<>(state);
+    next.put(id, new Coche(segmento, pos.getCarril(), (Integer) op.arg(1)));
+    return next;
+  }
+
+  private static Map<String,Coche> ticks(Map<String,Coche> state, int n) {
+    Map<String,Coche> next = new HashMap<>();
+    for (Map.Entry<String,Coche> e : state.entrySet()) {
+      Coche c = e.getValue();
+      next.put(e.getKey(), c.tks > 0 ? new Coche(c.segmento, c.carril, Math.max(0, c.tks - n)) : c);
+    }
+    return next;
+  }
+
+  private boolean free(Map<String,Coche> state, int segmento, int carril) {
+    if (carril < 1 || carril > carriles) return false;
+    for (Coche c : state.values()) {
+      if (c.segmento == segmento && c.carril == carril) return false;
+    }
+    return true;
+  }
+
+  private boolean freeCarril(Map<String,Coche> state, int segmento) {
+    for (int carril = 1; carril <= carriles; carril++) {
+      if (free(state, segmento, carril)) return true;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Linearizability checker.
+ *
+ */
+package cc.linearizability;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+
+/*
+ * Decides whether a history is linearizable with respect to a model:
+ * whether the returned operations can be put in a sequential order
+ * that respects real time (an operation that returned before another
+ * one was invoked goes first) and in which every operation has the
+ * outcome the model gives it.
+ *
+ * The search is the one of Wing and Gong with the memoisation of Lowe:
+ * at each step any operation invoked before the earliest response of
+ * the remaining ones may be linearized next, and a (set of linearized
+ * operations, state) pair already explored is not explored again.
+ *
+ * Pending operations are blocked calls of the implementation, so they
+ * are taken as not having happened. But once every other operation
+ * has been linearized their CPRE must be false: if some pending
+ * operation could complete in every final state, it is blocked for no
+ * reason (a missed wake-up).
+ */
+final class Checker {
+
+  enum Verdict {
+    LINEARIZABLE,
+    NOT_LINEARIZABLE,
+    LOST_WAKEUP,
+    UNDECIDED
+  }
+
+  // States explored before giving up
+  static final int BUDGET = 1_000_000;
+
+  private final Model<Object> model;
+  private final Operation[] completed;
+  private final List<Operation> pending = new ArrayList<>();
+  private final Set<Key> explored = new HashSet<>();
+  private boolean linearized = false;
+  private int nodes = 0;
+
+  @SuppressWarnings("unchecked")
+  private Checker(Model<?> model, List<Operation> history) {
+    this.model = (Model<Object>) model;
+    List<Operation> done = new ArrayList<>();
+    for (Operation op : history) {
+      if (op.isPending()) pending.add(op);
+      else done.add(op);
+    }
+    done.sort(Comparator.comparingLong(op -> op.invoke));
+    this.completed = done.toArray(new Operation[0]);
+  }
+
+  static Verdict check(Model<?> model, List<Operation> history) {
+    Checker checker = new Checker(model, history);
+    try {
+      if (checker.search(new BitSet(checker.completed.length), 0, checker.model.initial())) {
+        return Verdict.LINEARIZABLE;
+      }
+    } catch (BudgetExceeded exc) {
+      return Verdict.UNDECIDED;
+    }
+    return checker.linearized ? Verdict.LOST_WAKEUP : Verdict.NOT_LINEARIZABLE;
+  }
+
+  private boolean search(BitSet done, int count, Object state) {
+    if (count == completed.length) {
+      linearized = true;
+      for (Operation op : pending) {
+        if (model.enabled(state, op)) return false;
+      }
+      return true;
+    }
+    if (!explored.add(new Key((BitSet) done.clone(), state))) return false;
+    if (++nodes > BUDGET) throw new BudgetExceeded();
+
+    long earliestResponse = Long.MAX_VALUE;
+    for (int i = done.nextClearBit(0); i < completed.length; i = done.nextClearBit(i+1)) {
+      earliestResponse = Math.min(earliestResponse, completed[i].response);
+    }
+
+    // Operations are sorted by invoke, so the candidates are a prefix
+    for (int i = done.nextClearBit(0); i < completed.length; i = done.nextClearBit(i+1)) {
+      Operation op = completed[i];
+      if (op.invoke > earliestResponse) break;
+      Object next = model.apply(state, op);
+      if (next != null) {
+        done.set(i);
+        boolean found = search(done, count+1, next);
+        done.clear(i);
+        if (found) return true;
+      }
+    }
+    return false;
+  }
+
+  private static final class Key {
+    final BitSet done;
+    final Object state;
+
+    Key(BitSet done, Object state) {
+      this.done = done;
+      this.state = state;
+    }
+
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) return false;
+      Key k = (Key) obj;
+      return done.equals(k.done) && state.equals(k.state);
+    }
+
+    public int hashCode() {
+      return Objects.hash(done, state);
+    }
+  }
+
+  private static final class BudgetExceeded extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    BudgetExceeded() {
+      super(null, null, false, false);
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Runs the scenarios of the catalogue and checks their histories.
+ *
+ */
+package cc.linearizability;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/*
+ * Usage:
+ *   java cc.linearizability.Harness [-iterations n] [-timeout ms] [filter...]
+ *
+ * Runs every scenario of Scenarios (or those whose name contains one
+ * of the filters) many times, and checks each history with Checker.
+ * A scenario stops at its first failing run, whose history is printed:
+ * threads that are still blocked when it times out are left behind
+ * (they are daemons), so there is no point in going on.
+ *
+ * The exit status is 1 if some scenario failed.
+ */
+public class Harness {
+
+  // Outcome of the runs of one scenario
+  static class Result {
+    int runs = 0;
+    int undecided = 0;
+    Checker.Verdict failure = null;
+    List<Operation> history = null;
+  }
+
+  private final int iterations;
+  private final long timeoutMillis;
+
+  Harness(int iterations, long timeoutMillis) {
+    this.iterations = iterations;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  <T> Result run(Scenario<T> scenario) throws InterruptedException {
+    Result result = new Result();
+    for (int i = 0; i < iterations && result.failure == null; i++) {
+      List<Operation> history = runOnce(scenario);
+      Checker.Verdict verdict = Checker.check(scenario.model, history);
+      ++result.runs;
+      if (verdict == Checker.Verdict.UNDECIDED) {
+        ++result.undecided;
+      } else if (verdict != Checker.Verdict.LINEARIZABLE) {
+        result.failure = verdict;
+        result.history = history;
+      }
+    }
+    return result;
+  }
+
+  private <T> List<Operation> runOnce(Scenario<T> scenario) throws InterruptedException {
+    T subject = scenario.subject.get();
+    int n = scenario.scripts.size();
+    AtomicLong clock = new AtomicLong();
+    AtomicInteger running = new AtomicInteger(n);
+    CountDownLatch start = new CountDownLatch(1);
+    Recorder[] recorders = new Recorder[n];
+    Thread[] threads = new Thread[n];
+
+    for (int i = 0; i < n; i++) {
+      Recorder recorder = new Recorder(i, clock, running);
+      Scenario.Script<T> script = scenario.scripts.get(i);
+      recorders[i] = recorder;
+      threads[i] = new Thread(scenario.name+"-T"+i) {
+          public void run() {
+            try {
+              start.await();
+              script.run(subject, recorder);
+            } catch (InterruptedException e) {
+              // Not started, the history just has no operations of this thread
+            } finally {
+              running.decrementAndGet();
+            }
+          }
+        };
+      threads[i].setDaemon(true);
+      threads[i].start();
+    }
+    start.countDown();
+
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    for (Thread th : threads) {
+      th.join(Math.max(1, deadline - System.currentTimeMillis()));
+    }
+
+    List<Operation> history = new ArrayList<>();
+    for (Recorder r : recorders) history.addAll(r.snapshot());
+
+    // Release the threads of the subject (and any still blocked in it),
+    // so that they do not pile up over the runs
+    if (subject instanceof AutoCloseable) {
+      try {
+        ((AutoCloseable) subject).close();
+      } catch (Exception e) {
+        // A failing close does not change the history
+      }
+    }
+    return history;
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int iterations = 200;
+    long timeout = 2000;
+    List<String> filters = new ArrayList<>();
+
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+      case "-iterations": iterations = Integer.parseInt(args[++i]); break;
+      case "-timeout": timeout = Long.parseLong(args[++i]); break;
+      default: filters.add(args[i]);
+      }
+    }
+
+    Harness harness = new Harness(iterations, timeout);
+    boolean ok = true;
+    for (Scenario<?> scenario : Scenarios.all()) {
+      if (!filters.isEmpty() && filters.stream().noneMatch(scenario.name::contains)) continue;
+
+      Result result = harness.run(scenario);
+      System.out.printf("%-45s %4d runs %4d undecided  %s%n", scenario.name, result.runs, result.undecided,
+                        result.failure == null ? "OK" : "*** "+result.failure);
+      if (result.failure != null) {
+        ok = false;
+        System.out.println("  "+scenario.description);
+        result.history.sort(Comparator.comparingLong(op -> op.invoke));
+        for (Operation op : result.history) System.out.println("    "+op);
+      }
+    }
+    System.exit(ok ? 0 : 1);
+  }
+}
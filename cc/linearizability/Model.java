@@ -0,0 +1,30 @@
+/*
+ * Sequential specification of a shared resource.
+ *
+ */
+package cc.linearizability;
+
+
+/*
+ * A model executes the operations of a history one at a time, as the
+ * C-TAD of the resource says. States must be immutable values (with
+ * equals and hashCode), the checker keeps and compares them.
+ */
+interface Model<S> {
+
+  S initial();
+
+  /*
+   * State after executing op in state, or null if op cannot happen in
+   * state with the outcome it had: its CPRE does not hold, or its
+   * result or exception is not the one the specification gives.
+   */
+  S apply(S state, Operation op);
+
+  /*
+   * Whether the pending operation op could complete in state, that is
+   * whether its CPRE holds. A pending operation that could complete
+   * when everything else has finished is a missed wake-up.
+   */
+  boolean enabled(S state, Operation op);
+}
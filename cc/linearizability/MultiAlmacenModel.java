@@ -0,0 +1,75 @@
+/*
+ * Sequential model of es.upm.babel.cclib.MultiAlmacen.
+ *
+ */
+package cc.linearizability;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/*
+ * C-TAD MultiBuffer (see tareas.tarea8.MultiAlmacenSync), with
+ * MAX = capacidad:
+ *
+ *   PRE: Longitud(s) <= MAX/2
+ *   CPRE: Longitud(self + s) <= MAX
+ *     almacenar(s)
+ *   POST: self = self-pre + s
+ *
+ *   PRE: n <= MAX/2
+ *   CPRE: Longitud(self) >= n
+ *     extraer(n, s)
+ *   POST: n = Longitud(s) y self-pre = s + self
+ *
+ * A call that breaks its PRE must throw IllegalArgumentException and
+ * leave the multibuffer as it was. Productos are compared by identity.
+ */
+final class MultiAlmacenModel implements Model<List<Object>> {
+
+  private final int capacidad;
+
+  MultiAlmacenModel(int capacidad) {
+    this.capacidad = capacidad;
+  }
+
+  public List<Object> initial() {
+    return new ArrayList<>();
+  }
+
+  public List<Object> apply(List<Object> state, Operation op) {
+    int n = size(op);
+    if (n > capacidad/2) {
+      return op.exception instanceof IllegalArgumentException ? state : null;
+    }
+    if (op.exception != null) return null;
+
+    switch (op.name) {
+    case "almacenar":
+      if (state.size() + n > capacidad) return null;
+      List<Object> next = new ArrayList<>(state);
+      for (Object p : (Object[]) op.arg(0)) next.add(p);
+      return next;
+    case "extraer":
+      if (state.size() < n) return null;
+      Object[] result = (Object[]) op.result;
+      if (result == null || result.length != n) return null;
+      for (int i = 0; i < n; i++) {
+        if (result[i] != state.get(i)) return null;
+      }
+      return new ArrayList<>(state.subList(n, state.size()));
+    default:
+      throw new IllegalArgumentException("Unknown operation "+op.name);
+    }
+  }
+
+  public boolean enabled(List<Object> state, Operation op) {
+    int n = size(op);
+    if (n > capacidad/2) return true;
+    return op.name.equals("almacenar") ? state.size() + n <= capacidad : state.size() >= n;
+  }
+
+  private static int size(Operation op) {
+    return op.name.equals("almacenar") ? ((Object[]) op.arg(0)).length : (Integer) op.arg(0);
+  }
+}
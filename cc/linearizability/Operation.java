@@ -0,0 +1,66 @@
+/*
+ * One call of a concurrent history.
+ *
+ */
+package cc.linearizability;
+
+import java.util.Arrays;
+
+
+/*
+ * A call made by a thread of a scenario: its name and arguments, and
+ * its outcome (result or exception) once it has returned. invoke and
+ * response are ticks of a clock shared by the threads of the run, so
+ * an operation happened before another one iff its response is smaller
+ * than the invoke of the other one. An operation that did not return
+ * is pending.
+ */
+final class Operation {
+
+  static final long PENDING = Long.MAX_VALUE;
+
+  final int thread;
+  final String name;
+  final Object[] args;
+  final long invoke;
+  long response = PENDING;
+  Object result = null;
+  Throwable exception = null;
+
+  Operation(int thread, String name, Object[] args, long invoke) {
+    this.thread = thread;
+    this.name = name;
+    this.args = args;
+    this.invoke = invoke;
+  }
+
+  boolean isPending() {
+    return response == PENDING;
+  }
+
+  Object arg(int i) {
+    return args[i];
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append('T').append(thread).append(' ').append(name).append('(');
+    for (int i = 0; i < args.length; i++) {
+      if (i > 0) sb.append(',');
+      sb.append(show(args[i]));
+    }
+    sb.append(')');
+    if (isPending()) {
+      sb.append(" pending [").append(invoke).append(",-]");
+    } else {
+      if (exception != null) sb.append(" threw ").append(exception);
+      else if (result != null) sb.append(" -> ").append(show(result));
+      sb.append(" [").append(invoke).append(',').append(response).append(']');
+    }
+    return sb.toString();
+  }
+
+  private static String show(Object o) {
+    return o instanceof Object[] ? Arrays.toString((Object[]) o) : String.valueOf(o);
+  }
+}
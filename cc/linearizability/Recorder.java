@@ -0,0 +1,74 @@
+/*
+ * Records the calls of one thread of a scenario.
+ *
+ */
+package cc.linearizability;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/*
+ * Each thread of a run has its own recorder, so recording only takes
+ * the (uncontended) lock of the recorder and two increments of the
+ * shared clock. The harness takes a snapshot when the run is over,
+ * or when it gives up waiting for a stuck one.
+ */
+final class Recorder {
+
+  private final int thread;
+  private final AtomicLong clock;
+  private final AtomicInteger running;
+  private final List<Operation> operations = new ArrayList<>();
+
+  Recorder(int thread, AtomicLong clock, AtomicInteger running) {
+    this.thread = thread;
+    this.clock = clock;
+    this.running = running;
+  }
+
+  /*
+   * Calls body as operation name(args) and records it. An exception
+   * thrown by body is recorded as the outcome and the script goes on.
+   */
+  Object call(String name, Callable<?> body, Object... args) {
+    Operation op = new Operation(thread, name, args, clock.incrementAndGet());
+    synchronized (this) {
+      operations.add(op);
+    }
+    Object result = null;
+    Throwable exception = null;
+    try {
+      result = body.call();
+    } catch (Throwable exc) {
+      exception = exc;
+    }
+    long response = clock.incrementAndGet();
+    synchronized (this) {
+      op.result = result;
+      op.exception = exception;
+      op.response = response;
+    }
+    return result;
+  }
+
+  // Same as call, for operations without result
+  void run(String name, Runnable body, Object... args) {
+    call(name, () -> {
+        body.run();
+        return null;
+      }, args);
+  }
+
+  // True when every other thread of the run has finished its script
+  boolean othersFinished() {
+    return running.get() <= 1;
+  }
+
+  synchronized List<Operation> snapshot() {
+    return new ArrayList<>(operations);
+  }
+}
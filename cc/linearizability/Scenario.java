@@ -0,0 +1,46 @@
+/*
+ * A small concurrent test of a shared resource.
+ *
+ */
+package cc.linearizability;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+
+/*
+ * A scenario creates a fresh resource for every run and runs one
+ * script per thread on it, all threads starting at the same time. The
+ * scripts make their calls through a Recorder, and the history of the
+ * run is checked against the model.
+ *
+ * Scripts should be balanced (a correct resource lets every thread
+ * finish), so a thread still blocked when the run times out is a
+ * failure, not a slow run.
+ */
+final class Scenario<T> {
+
+  interface Script<T> {
+    void run(T subject, Recorder recorder);
+  }
+
+  final String name;
+  final String description;
+  final Supplier<T> subject;
+  final Model<?> model;
+  final List<Script<T>> scripts = new ArrayList<>();
+
+  Scenario(String name, String description, Supplier<T> subject, Model<?> model) {
+    this.name = name;
+    this.description = description;
+    this.subject = subject;
+    this.model = model;
+  }
+
+  // Adds a thread that runs script
+  Scenario<T> thread(Script<T> script) {
+    scripts.add(script);
+    return this;
+  }
+}
@@ -0,0 +1,322 @@
+/*
+ * Catalogue of the scenarios run by the harness.
+ *
+ */
+package cc.linearizability;
+
+import cc.carretera.Carretera;
+import cc.carretera.CarreteraConEspera;
+import cc.carretera.CarreteraConPlazo;
+import cc.carretera.CarreteraConSaltos;
+import cc.carretera.EstrategiaEspera;
+import cc.carretera.Implementations;
+import es.upm.babel.cclib.Almacen;
+import es.upm.babel.cclib.MultiAlmacen;
+import es.upm.babel.cclib.Producto;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+import tareas.tarea6.AlmacenLockFree;
+import tareas.tarea6.AlmacenN;
+import tareas.tarea8.MultiAlmacenLock;
+import tareas.tarea8.MultiAlmacenLockFree;
+import tareas.tarea8.MultiAlmacenRangos;
+import tareas.tarea8.MultiAlmacenSync;
+import tareas.tarea9.MultiAlmacenMon;
+
+
+/*
+ * Every scenario is run on every implementation of its interface. The
+ * scenarios are small and contended on purpose: each one drives the
+ * resource into a state where some threads must block, and then into
+ * one where exactly those threads must be woken up.
+ *
+ * New implementations are added to the maps below (the Carretera ones
+ * come from cc.carretera.Implementations).
+ */
+final class Scenarios {
+
+  // Almacen implementations, by name, built from their capacity
+  static final Map<String,IntFunction<Almacen>> ALMACENES = new LinkedHashMap<>();
+
+  // MultiAlmacen implementations, by name, built from their capacity
+  static final Map<String,IntFunction<MultiAlmacen>> MULTIALMACENES = new LinkedHashMap<>();
+
+  static {
+    ALMACENES.put("AlmacenN", AlmacenN::new);
+    ALMACENES.put("AlmacenLockFree", AlmacenLockFree::new);
+    MULTIALMACENES.put("MultiAlmacenSync", MultiAlmacenSync::new);
+    MULTIALMACENES.put("MultiAlmacenLock", MultiAlmacenLock::new);
+    MULTIALMACENES.put("MultiAlmacenMon", MultiAlmacenMon::new);
+    MULTIALMACENES.put("MultiAlmacenLockFree", MultiAlmacenLockFree::new);
+  }
+
+  // Ticks of the reloj of a Carretera scenario before giving up
+  static final int MAX_TICKS = 50;
+
+  static List<Scenario<?>> all() {
+    List<Scenario<?>> all = new ArrayList<>();
+
+    for (Map.Entry<String,IntFunction<Almacen>> e : ALMACENES.entrySet()) {
+      String impl = e.getKey();
+      IntFunction<Almacen> create = e.getValue();
+
+      all.add(new Scenario<Almacen>("almacen-lleno["+impl+"]",
+                                    "the productor fills a 1 place almacen and waits for the consumidor",
+                                    () -> create.apply(1), new AlmacenModel(1))
+              .thread(productor(3))
+              .thread(consumidor(3)));
+
+      all.add(new Scenario<Almacen>("almacen-vacio["+impl+"]",
+                                    "three consumidores wait on the empty almacen, one productor wakes them",
+                                    () -> create.apply(2), new AlmacenModel(2))
+              .thread(consumidor(1))
+              .thread(consumidor(1))
+              .thread(consumidor(1))
+              .thread(productor(3)));
+
+      all.add(new Scenario<Almacen>("almacen-2p2c["+impl+"]",
+                                    "two productores and two consumidores on a 2 places almacen",
+                                    () -> create.apply(2), new AlmacenModel(2))
+              .thread(productor(2))
+              .thread(productor(2))
+              .thread(consumidor(2))
+              .thread(consumidor(2)));
+    }
+
+    for (Map.Entry<String,IntFunction<MultiAlmacen>> e : MULTIALMACENES.entrySet()) {
+      String impl = e.getKey();
+      IntFunction<MultiAlmacen> create = e.getValue();
+
+      all.add(new Scenario<MultiAlmacen>("multi-extraer-espera["+impl+"]",
+                                         "extraer(2) waits until two productores have stored one producto each",
+                                         () -> create.apply(4), new MultiAlmacenModel(4))
+              .thread(extraer(2))
+              .thread(almacenar(1))
+              .thread(almacenar(1)));
+
+      all.add(new Scenario<MultiAlmacen>("multi-almacenar-espera["+impl+"]",
+                                         "three almacenar(2) on a capacity 4 multialmacen, the last one waits for space",
+                                         () -> create.apply(4), new MultiAlmacenModel(4))
+              .thread(almacenar(2))
+              .thread(almacenar(2))
+              .thread(almacenar(2))
+              .thread(extraer(1, 1))
+              .thread(extraer(2, 2)));
+
+      all.add(new Scenario<MultiAlmacen>("multi-tamanos["+impl+"]",
+                                         "producers and consumers of different sizes, a small one must not starve a big one",
+                                         () -> create.apply(4), new MultiAlmacenModel(4))
+              .thread(almacenar(1, 2))
+              .thread(almacenar(1))
+              .thread(extraer(2))
+              .thread(extraer(1, 1)));
+
+      all.add(new Scenario<MultiAlmacen>("multi-pre["+impl+"]",
+                                         "calls that break the PRE throw and leave the multialmacen as it was",
+                                         () -> create.apply(4), new MultiAlmacenModel(4))
+              .thread(almacenar(3, 1))
+              .thread(extraer(3, 1)));
+
+      if (create.apply(4) instanceof MultiAlmacenRangos) {
+        all.add(new Scenario<MultiAlmacen>("multi-rangos["+impl+"]",
+                                           "almacenar slices of bigger arrays and extraer into a reused array",
+                                           () -> create.apply(4), new MultiAlmacenModel(4))
+                .thread(almacenarTrozos(1, 2))
+                .thread(almacenarTrozos(2))
+                .thread(extraerEn(2, 1))
+                .thread(extraerEn(2)));
+      }
+    }
+
+    for (String impl : Implementations.names()) {
+      all.add(carretera("carretera-un-carril["+impl+"]",
+                        "three cars on 2 segmentos of 1 carril: every entrar and avanzar waits",
+                        impl, 2, 1, 1, 1, 2));
+
+      all.add(carretera("carretera-dos-carriles["+impl+"]",
+                        "cars change carril when they avanzar, the carril they leave must be freed",
+                        impl, 2, 2, 1, 2, 1));
+
+      all.add(carretera("carretera-cola["+impl+"]",
+                        "a fast car queues behind a slow one on 3 segmentos of 1 carril",
+                        impl, 3, 1, 2, 1));
+
+      if (Implementations.supports(impl, CarreteraConPlazo.class)) {
+        all.add(new Scenario<Carretera>("carretera-plazo["+impl+"]",
+                                        "entries with a timeout and without waiting compete with a normal one for 1 carril",
+                                        () -> Implementations.create(impl, 1, 1), new CarreteraModel(1, 1))
+                .thread(coche("c0", 2, 1))
+                .thread(cocheSinEspera("c1", 1, 1, 1))
+                .thread(cocheSinEspera("c2", 1, 1, 0))
+                .thread(reloj()));
+      }
+
+      if (Implementations.supports(impl, CarreteraConEspera.class)) {
+        all.add(new Scenario<Carretera>("carretera-ceder["+impl+"]",
+                                        "the cars wait by yielding (EstrategiaEspera.CEDER) instead of blocking",
+                                        () -> {
+                                          Carretera cr = Implementations.create(impl, 2, 1);
+                                          ((CarreteraConEspera) cr).esperarCon(EstrategiaEspera.CEDER);
+                                          return cr;
+                                        }, new CarreteraModel(2, 1))
+                .thread(coche("c0", 1, 2))
+                .thread(coche("c1", 2, 2))
+                .thread(reloj()));
+      }
+
+      if (Implementations.supports(impl, CarreteraConSaltos.class)) {
+        all.add(new Scenario<Carretera>("carretera-salto["+impl+"]",
+                                        "a reloj that jumps to the next expiry or ticks several times at once",
+                                        () -> Implementations.create(impl, 2, 2), new CarreteraModel(2, 2))
+                .thread(coche("c0", 3, 2))
+                .thread(coche("c1", 1, 2))
+                .thread(coche("c2", 2, 2))
+                .thread(relojSalto()));
+      }
+    }
+    return all;
+  }
+
+
+  // Almacen scripts
+
+  private static Scenario.Script<Almacen> productor(int n) {
+    return (almacen, r) -> {
+      for (int i = 0; i < n; i++) {
+        Producto p = new Producto();
+        r.run("almacenar", () -> almacen.almacenar(p), p);
+      }
+    };
+  }
+
+  private static Scenario.Script<Almacen> consumidor(int n) {
+    return (almacen, r) -> {
+      for (int i = 0; i < n; i++) {
+        r.call("extraer", almacen::extraer);
+      }
+    };
+  }
+
+
+  // MultiAlmacen scripts, one call per size
+
+  private static Scenario.Script<MultiAlmacen> almacenar(int... sizes) {
+    return (almacen, r) -> {
+      for (int n : sizes) {
+        Producto[] ps = new Producto[n];
+        for (int i = 0; i < n; i++) ps[i] = new Producto();
+        r.run("almacenar", () -> almacen.almacenar(ps), (Object) ps);
+      }
+    };
+  }
+
+  private static Scenario.Script<MultiAlmacen> extraer(int... sizes) {
+    return (almacen, r) -> {
+      for (int n : sizes) {
+        r.call("extraer", () -> almacen.extraer(n), n);
+      }
+    };
+  }
+
+  // The same calls through MultiAlmacenRangos, recorded as the plain
+  // ones: each almacenar passes the middle of a bigger array, and every
+  // extraer of the thread fills the same array from position 1
+
+  private static Scenario.Script<MultiAlmacen> almacenarTrozos(int... sizes) {
+    return (almacen, r) -> {
+      MultiAlmacenRangos rangos = (MultiAlmacenRangos) almacen;
+      for (int n : sizes) {
+        Producto[] origen = new Producto[n + 2];
+        for (int i = 0; i < origen.length; i++) origen[i] = new Producto();
+        Producto[] ps = Arrays.copyOfRange(origen, 1, 1 + n);
+        r.run("almacenar", () -> rangos.almacenar(origen, 1, n), (Object) ps);
+      }
+    };
+  }
+
+  private static Scenario.Script<MultiAlmacen> extraerEn(int... sizes) {
+    return (almacen, r) -> {
+      MultiAlmacenRangos rangos = (MultiAlmacenRangos) almacen;
+      Producto[] destino = new Producto[1 + Arrays.stream(sizes).max().orElse(0)];
+      for (int n : sizes) {
+        r.call("extraer", () -> {
+            rangos.extraer(destino, 1, n);
+            return Arrays.copyOfRange(destino, 1, 1 + n);
+          }, n);
+      }
+    };
+  }
+
+
+  // Carretera scenarios: one Coche thread per velocidad and a Reloj
+  // thread that ticks until the cars are done
+
+  private static Scenario<Carretera> carretera(String name, String description, String impl,
+                                               int segmentos, int carriles, int... velocidades) {
+    Scenario<Carretera> scenario =
+      new Scenario<>(name, description, () -> Implementations.create(impl, segmentos, carriles),
+                     new CarreteraModel(segmentos, carriles));
+    for (int i = 0; i < velocidades.length; i++) {
+      scenario.thread(coche("c"+i, velocidades[i], segmentos));
+    }
+    return scenario.thread(reloj());
+  }
+
+  private static Scenario.Script<Carretera> coche(String id, int tks, int segmentos) {
+    return (cr, r) -> {
+      r.call("entrar", () -> cr.entrar(id, tks), id, tks);
+      r.run("circulando", () -> cr.circulando(id), id);
+      for (int s = 1; s < segmentos; s++) {
+        r.call("avanzar", () -> cr.avanzar(id, tks), id, tks);
+        r.run("circulando", () -> cr.circulando(id), id);
+      }
+      r.run("salir", () -> cr.salir(id), id);
+    };
+  }
+
+  // A coche that uses entrar(id, tks, timeout), or tryEntrar if the
+  // timeout is 0, and goes home if it does not get in
+  private static Scenario.Script<Carretera> cocheSinEspera(String id, int tks, int segmentos, long timeout) {
+    return (cr, r) -> {
+      CarreteraConPlazo plazo = (CarreteraConPlazo) cr;
+      Object pos = timeout == 0
+        ? r.call("tryEntrar", () -> plazo.tryEntrar(id, tks), id, tks)
+        : r.call("entrarPlazo", () -> plazo.entrar(id, tks, timeout), id, tks, timeout);
+      if (pos == null) return;
+      r.run("circulando", () -> cr.circulando(id), id);
+      for (int s = 1; s < segmentos; s++) {
+        r.call("avanzar", () -> cr.avanzar(id, tks), id, tks);
+        r.run("circulando", () -> cr.circulando(id), id);
+      }
+      r.run("salir", () -> cr.salir(id), id);
+    };
+  }
+
+  private static Scenario.Script<Carretera> reloj() {
+    return (cr, r) -> {
+      for (int t = 0; t < MAX_TICKS && !r.othersFinished(); t++) {
+        r.run("tick", cr::tick);
+        Thread.yield();
+      }
+    };
+  }
+
+  // A reloj that alternates jumps to the next expiry with tick(2)
+  private static Scenario.Script<Carretera> relojSalto() {
+    return (cr, r) -> {
+      CarreteraConSaltos saltos = (CarreteraConSaltos) cr;
+      for (int t = 0; t < MAX_TICKS && !r.othersFinished(); t++) {
+        if (t % 2 == 0) {
+          r.call("tickHastaVencimiento", saltos::tickHastaVencimiento);
+        } else {
+          r.run("tickN", () -> cr.tick(2), 2);
+        }
+        Thread.yield();
+      }
+    };
+  }
+}
@@ -9,12 +9,9 @@ import es.upm.babel.cclib.Semaphore;
  * FIFO de hasta un determinado número de productos y el uso
  * simultáneo del almacén por varios threads.
  */
-class AlmacenN implements Almacen {
+public class AlmacenN implements Almacen {
    private int capacidad = 0;
-   private Producto[] almacenado = null;
-   private int nDatos = 0;
-   private int aExtraer = 0;
-   private int aInsertar = 0;
+   private BufferCircular almacenado = null;
 
    private Semaphore sem_productores;
    private Semaphore sem_consumidores;
@@ -22,10 +19,7 @@ class AlmacenN implements Almacen {
 
    public AlmacenN(int n) {
       capacidad = n;
-      almacenado = new Producto[capacidad];
-      nDatos = 0;
-      aExtraer = 0;
-      aInsertar = 0;
+      almacenado = new BufferCircular(capacidad);
 
       sem_productores = new Semaphore(n);
       sem_consumidores = new Semaphore(0);
@@ -39,10 +33,7 @@ class AlmacenN implements Almacen {
       mutex.await();
 
       // Sección crítica
-      almacenado[aInsertar] = producto;
-      nDatos++;
-      aInsertar++;
-      aInsertar %= capacidad;
+      almacenado.poner(producto);
 
       // Protocolo de salida de la sección crítica y código de
       // sincronización para poder extraer.
@@ -59,11 +50,7 @@ class AlmacenN implements Almacen {
       mutex.await();
 
       // Sección crítica
-      result = almacenado[aExtraer];
-      almacenado[aExtraer] = null;
-      nDatos--;
-      aExtraer++;
-      aExtraer %= capacidad;
+      result = almacenado.quitar();
 
       // Protocolo de salida de la sección crítica y código de
       // sincronización para poder almacenar.
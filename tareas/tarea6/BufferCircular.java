@@ -0,0 +1,84 @@
+package tareas.tarea6;
+
+import es.upm.babel.cclib.Producto;
+
+import java.util.Arrays;
+
+/**
+ * Buffer circular de productos, en orden FIFO, que comparten AlmacenN y
+ * los multibuffers de las tareas 8 y 9.
+ *
+ * El array tiene como longitud la menor potencia de 2 que no es menor
+ * que la capacidad, para dar la vuelta con una máscara en lugar de con
+ * %. Las secuencias se copian con System.arraycopy (dos copias si dan
+ * la vuelta), y los huecos que se vacían se dejan a null para no
+ * retener los productos.
+ *
+ * No comprueba si hay sitio o productos suficientes ni es thread-safe:
+ * eso lo hace el almacén que lo usa, dentro de su sección crítica.
+ */
+public final class BufferCircular {
+   private final Producto[] almacenado;
+   private final int mascara;
+   private int aExtraer = 0;
+   private int aInsertar = 0;
+   private int nDatos = 0;
+
+   public BufferCircular(int capacidad) {
+      almacenado = new Producto[capacidad <= 1 ? 1 : Integer.highestOneBit(capacidad - 1) << 1];
+      mascara = almacenado.length - 1;
+   }
+
+   /**
+    * @return El número de productos en el buffer.
+    */
+   public int nDatos() {
+      return nDatos;
+   }
+
+   /**
+    * Añade un producto al final del buffer.
+    */
+   public void poner(Producto producto) {
+      almacenado[aInsertar] = producto;
+      aInsertar = (aInsertar + 1) & mascara;
+      nDatos++;
+   }
+
+   /**
+    * Saca el primer producto del buffer.
+    */
+   public Producto quitar() {
+      Producto result = almacenado[aExtraer];
+      almacenado[aExtraer] = null;
+      aExtraer = (aExtraer + 1) & mascara;
+      nDatos--;
+      return result;
+   }
+
+   /**
+    * Copia n productos de origen, desde la posición desde, al final del
+    * buffer.
+    */
+   public void poner(Producto[] origen, int desde, int n) {
+      int primero = Math.min(n, almacenado.length - aInsertar);
+      System.arraycopy(origen, desde, almacenado, aInsertar, primero);
+      System.arraycopy(origen, desde + primero, almacenado, 0, n - primero);
+      aInsertar = (aInsertar + n) & mascara;
+      nDatos += n;
+   }
+
+   /**
+    * Copia los n primeros productos del buffer en destino, desde la
+    * posición desde, y deja sus huecos a null.
+    */
+   public void quitar(Producto[] destino, int desde, int n) {
+      int primero = Math.min(n, almacenado.length - aExtraer);
+      System.arraycopy(almacenado, aExtraer, destino, desde, primero);
+      Arrays.fill(almacenado, aExtraer, aExtraer + primero, null);
+      System.arraycopy(almacenado, 0, destino, desde + primero, n - primero);
+      Arrays.fill(almacenado, 0, n - primero, null);
+      aExtraer = (aExtraer + n) & mascara;
+      nDatos -= n;
+   }
+}
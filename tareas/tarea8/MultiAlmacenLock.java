@@ -0,0 +1,199 @@
+/**
+ * Octava tarea evaluable - Multibuffer con ReentrantLock y condiciones
+ *
+ * La misma especificación que MultiAlmacenSync (ver su cabecera), pero sin notifyAll(): con
+ * muchos productores y consumidores, cada operación despertaba a todos los bloqueados para que
+ * volvieran a comprobar su condición y casi todos se volvían a dormir.
+ *
+ * Aquí cada proceso bloqueado espera en su propia Condition, en una cola según el número de
+ * productos que pide. Al terminar una operación, el proceso que la ha hecho busca a los
+ * bloqueados cuya petición ya cabe (el tamaño mayor que cabe, en O(log n)), hace su operación
+ * por ellos y solo les despierta a ellos para que recojan el resultado. Así nadie se despierta
+ * para volver a dormirse, y ningún proceso que llegue después puede quitarle el sitio o los
+ * productos a uno que ya se ha despertado.
+ *
+ * Universidad Politecnica de Madrid
+ * Concurrencia
+ * Autor: Juan Francisco Casanova Ferrer
+ * github: https://github.com/joancasanova
+ */
+package tareas.tarea8;
+
+import es.upm.babel.cclib.Producto;
+import tareas.tarea6.BufferCircular;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class MultiAlmacenLock implements MultiAlmacenRangos {
+   private int capacidad = 0;
+   private BufferCircular almacenado = null;
+
+   // Exclusión mutua
+   private final ReentrantLock mutex = new ReentrantLock();
+
+   // Productores y consumidores bloqueados, en una cola por número de
+   // productos pedido (en orden de llegada). Solo están los tamaños con
+   // alguien esperando
+   private final TreeMap<Integer, ArrayDeque<Espera>> esperandoAlmacenar = new TreeMap<>();
+   private final TreeMap<Integer, ArrayDeque<Espera>> esperandoExtraer = new TreeMap<>();
+
+   // Para evitar la construcción de almacenes sin inicializar la capacidad
+   private MultiAlmacenLock() {
+   }
+
+   public MultiAlmacenLock(int n) {
+      almacenado = new BufferCircular(n);
+      capacidad = n;
+   }
+
+   private int nDatos() {
+      return almacenado.nDatos();
+   }
+
+   private int nHuecos() {
+      return capacidad - nDatos();
+   }
+
+   public void almacenar(Producto[] productos) {
+      almacenar(productos, 0, productos.length);
+   }
+
+   public void almacenar(Producto[] origen, int desde, int n) {
+      // Evaluación de la PRE
+      if (n > this.capacidad / 2) {
+         throw new IllegalArgumentException("No se puede almacenar tantos datos");
+      }
+      Objects.checkFromIndexSize(desde, n, origen.length);
+
+      mutex.lock();
+      try {
+         // Si no hay sitio esperamos a que otro proceso almacene por nosotros
+         if (nHuecos() < n) {
+            esperar(esperandoAlmacenar, new Espera(mutex.newCondition(), origen, desde, n));
+            return;
+         }
+
+         // Sección crítica
+         almacenado.poner(origen, desde, n);
+
+         // Desbloqueo de los que ahora pueden seguir
+         desbloqueo();
+      } finally {
+         mutex.unlock();
+      }
+   }
+
+   public Producto[] extraer(int n) {
+      // Evaluación de la PRE
+      if (n > this.capacidad / 2) {
+         throw new IllegalArgumentException("No se puede extraer tantos datos");
+      }
+
+      Producto[] result = new Producto[n];
+      extraer(result, 0, n);
+      return result;
+   }
+
+   public void extraer(Producto[] destino, int desde, int n) {
+      // Evaluación de la PRE
+      if (n > this.capacidad / 2) {
+         throw new IllegalArgumentException("No se puede extraer tantos datos");
+      }
+      Objects.checkFromIndexSize(desde, n, destino.length);
+
+      mutex.lock();
+      try {
+         // Si no hay productos esperamos a que otro proceso extraiga por nosotros
+         if (nDatos() < n) {
+            esperar(esperandoExtraer, new Espera(mutex.newCondition(), destino, desde, n));
+            return;
+         }
+
+         // Sección crítica
+         almacenado.quitar(destino, desde, n);
+
+         // Desbloqueo de los que ahora pueden seguir
+         desbloqueo();
+      } finally {
+         mutex.unlock();
+      }
+   }
+
+   // Pone la espera en la cola de su tamaño y se bloquea hasta que otro
+   // proceso haya hecho la operación
+   private void esperar(TreeMap<Integer, ArrayDeque<Espera>> colas, Espera espera) {
+      colas.computeIfAbsent(espera.n, k -> new ArrayDeque<>()).addLast(espera);
+      while (!espera.hecha) {
+         espera.condicion.awaitUninterruptibly();
+      }
+   }
+
+   // Hace las operaciones bloqueadas que ya caben, alternando productores
+   // y consumidores hasta que no cabe ninguna: lo que almacena uno puede
+   // servir a un consumidor, y el sitio que deja este a otro productor
+   private void desbloqueo() {
+      boolean servido = true;
+      while (servido) {
+         servido = false;
+         Espera espera = siguiente(esperandoAlmacenar, nHuecos());
+         if (espera != null) {
+            almacenado.poner(espera.productos, espera.desde, espera.n);
+            despertar(espera);
+            servido = true;
+         }
+         espera = siguiente(esperandoExtraer, nDatos());
+         if (espera != null) {
+            almacenado.quitar(espera.productos, espera.desde, espera.n);
+            despertar(espera);
+            servido = true;
+         }
+      }
+   }
+
+   // Saca la primera espera del mayor tamaño que no pasa de disponibles
+   // (así los pequeños no dejan sin servir a los grandes), o null si no
+   // cabe ninguna
+   private Espera siguiente(TreeMap<Integer, ArrayDeque<Espera>> colas, int disponibles) {
+      Map.Entry<Integer, ArrayDeque<Espera>> entrada = colas.floorEntry(disponibles);
+      if (entrada == null) {
+         return null;
+      }
+      Espera espera = entrada.getValue().pollFirst();
+      if (entrada.getValue().isEmpty()) {
+         colas.remove(entrada.getKey());
+      }
+      return espera;
+   }
+
+   private void despertar(Espera espera) {
+      espera.hecha = true;
+      espera.condicion.signal();
+   }
+
+   /**
+    * Clase que guarda la petición de un proceso bloqueado:
+    * - Condicion: condición en la que espera el proceso
+    * - Productos: array con los productos a almacenar, o en el que dejar los extraídos
+    * - Desde, n: trozo del array que se almacena o se rellena
+    * - Hecha: si otro proceso ya ha hecho la operación
+    */
+   private static class Espera {
+      private final Condition condicion;
+      private final Producto[] productos;
+      private final int desde;
+      private final int n;
+      private boolean hecha;
+
+      Espera(Condition condicion, Producto[] productos, int desde, int n) {
+         this.condicion = condicion;
+         this.productos = productos;
+         this.desde = desde;
+         this.n = n;
+      }
+   }
+}
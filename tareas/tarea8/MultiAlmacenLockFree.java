@@ -0,0 +1,278 @@
+/**
+ * Octava tarea evaluable - Multibuffer sin cerrojos
+ *
+ * La misma especificación que MultiAlmacenSync (ver su cabecera), pero sin ninguna sección
+ * crítica compartida: productores y consumidores de secuencias trabajan en paralelo, y solo se
+ * bloquean si su petición no cabe.
+ *
+ * Es el buffer circular de tareas.tarea6.AlmacenLockFree con reservas de varios huecos seguidos.
+ * Cada hueco tiene un número de secuencia: 2 * posición si está libre para la vuelta de esa
+ * posición, y 2 * posición + 1 si ya tiene su producto.
+ * - almacenar(s) comprueba que los Longitud(s) huecos desde aInsertar están libres y los reserva
+ *   todos con un solo CAS sobre aInsertar. Después copia los productos, sin ningún cerrojo, y
+ *   publica los huecos escribiendo sus secuencias.
+ * - extraer(n) hace lo mismo con los n huecos desde aExtraer, que tienen que estar publicados, y
+ *   los deja libres para la vuelta siguiente: 2 * (posición + capacidad).
+ * Como la reserva es un único CAS, una secuencia se almacena o se extrae entera, seguida y en
+ * orden, o no se toca: un consumidor nunca se lleva una secuencia a medias o mezclada con otra.
+ *
+ * Si la petición no cabe, el proceso se apunta en la cola de su lado con el número de productos
+ * que pide, lo vuelve a comprobar y se aparca. Cada operación despierta a los de la otra cola
+ * cuya petición puede caber ahora, que vuelven a intentarlo.
+ *
+ * Universidad Politecnica de Madrid
+ * Concurrencia
+ * Autor: Juan Francisco Casanova Ferrer
+ * github: https://github.com/joancasanova
+ */
+package tareas.tarea8;
+
+import es.upm.babel.cclib.Producto;
+
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+public class MultiAlmacenLockFree implements MultiAlmacenRangos {
+   // Longs entre un contador y el siguiente: 128 bytes, para que aInsertar
+   // y aExtraer no compartan línea de caché
+   private static final int RELLENO = 16;
+   private static final int A_INSERTAR = RELLENO;
+   private static final int A_EXTRAER = 2 * RELLENO;
+
+   // Vueltas comprobando antes de aparcarse (solo con varios procesadores)
+   // y veces que se cede el procesador, como en AlmacenLockFree
+   private static final int VUELTAS = Runtime.getRuntime().availableProcessors() > 1 ? 64 : 0;
+   private static final int CESIONES = 8;
+
+   private final int capacidad;
+   private final Producto[] almacenado;
+
+   // Si la capacidad es potencia de 2 se da la vuelta con una máscara,
+   // si no con % (-1)
+   private final int mascara;
+
+   // Secuencia de cada hueco
+   private final AtomicLongArray secuencias;
+
+   // Posiciones de inserción y extracción, sin dar la vuelta, rodeadas
+   // de relleno
+   private final AtomicLongArray contadores = new AtomicLongArray(3 * RELLENO);
+
+   // Productores y consumidores aparcados, con lo que piden
+   private final ConcurrentLinkedQueue<Espera> esperandoAlmacenar = new ConcurrentLinkedQueue<>();
+   private final ConcurrentLinkedQueue<Espera> esperandoExtraer = new ConcurrentLinkedQueue<>();
+
+   public MultiAlmacenLockFree(int n) {
+      if (n < 1) {
+         throw new IllegalArgumentException("La capacidad debe ser al menos 1");
+      }
+      capacidad = n;
+      almacenado = new Producto[n];
+      mascara = (n & (n - 1)) == 0 ? n - 1 : -1;
+      secuencias = new AtomicLongArray(n);
+      for (int i = 0; i < n; i++) {
+         secuencias.set(i, 2L * i);
+      }
+   }
+
+   public void almacenar(Producto[] productos) {
+      almacenar(productos, 0, productos.length);
+   }
+
+   public void almacenar(Producto[] origen, int desde, int n) {
+      // Evaluación de la PRE
+      if (n > this.capacidad / 2) {
+         throw new IllegalArgumentException("No se puede almacenar tantos datos");
+      }
+      Objects.checkFromIndexSize(desde, n, origen.length);
+
+      // Reserva de los n huecos, esperando mientras no estén libres
+      long pos;
+      while ((pos = reservar(A_INSERTAR, 0, n)) < 0) {
+         esperar(esperandoAlmacenar, A_INSERTAR, 0, n);
+      }
+
+      // Copia y publicación de los productos, fuera de cualquier cerrojo
+      int i = hueco(pos);
+      int primero = Math.min(n, capacidad - i);
+      System.arraycopy(origen, desde, almacenado, i, primero);
+      System.arraycopy(origen, desde + primero, almacenado, 0, n - primero);
+      publicar(pos, n, 1);
+
+      // Desbloqueo de los consumidores que ahora pueden caber
+      despertar(esperandoExtraer, datos());
+   }
+
+   public Producto[] extraer(int n) {
+      // Evaluación de la PRE, antes de crear el array del resultado
+      if (n > this.capacidad / 2) {
+         throw new IllegalArgumentException("No se puede extraer tantos datos");
+      }
+
+      Producto[] result = new Producto[n];
+      extraer(result, 0, n);
+      return result;
+   }
+
+   public void extraer(Producto[] destino, int desde, int n) {
+      // Evaluación de la PRE
+      if (n > this.capacidad / 2) {
+         throw new IllegalArgumentException("No se puede extraer tantos datos");
+      }
+      Objects.checkFromIndexSize(desde, n, destino.length);
+
+      // Reserva de los n productos, esperando mientras no estén publicados
+      long pos;
+      while ((pos = reservar(A_EXTRAER, 1, n)) < 0) {
+         esperar(esperandoExtraer, A_EXTRAER, 1, n);
+      }
+
+      // Copia de los productos y liberación de sus huecos para la
+      // vuelta siguiente, fuera de cualquier cerrojo
+      int i = hueco(pos);
+      int primero = Math.min(n, capacidad - i);
+      System.arraycopy(almacenado, i, destino, desde, primero);
+      Arrays.fill(almacenado, i, i + primero, null);
+      System.arraycopy(almacenado, 0, destino, desde + primero, n - primero);
+      Arrays.fill(almacenado, 0, n - primero, null);
+      publicar(pos, n, 2 * capacidad);
+
+      // Desbloqueo de los productores que ahora pueden caber
+      despertar(esperandoAlmacenar, huecos());
+   }
+
+   private int hueco(long pos) {
+      return mascara >= 0 ? (int) (pos & mascara) : (int) (pos % capacidad);
+   }
+
+   // Productos y huecos según los contadores. Cuentan como hechas las
+   // operaciones reservadas que aún no han terminado, y cada contador se
+   // lee de forma que, si cambia entre las dos lecturas, sobran y no
+   // faltan: como mucho se despierta a alguien que aún no cabe
+   private long datos() {
+      long aExtraer = contadores.get(A_EXTRAER);
+      return contadores.get(A_INSERTAR) - aExtraer;
+   }
+
+   private long huecos() {
+      long aInsertar = contadores.get(A_INSERTAR);
+      return capacidad - (aInsertar - contadores.get(A_EXTRAER));
+   }
+
+   // Reserva los n huecos siguientes al contador (A_INSERTAR o A_EXTRAER)
+   // con un solo CAS, si todos están listos. Devuelve la primera posición,
+   // o -1 si alguno no lo está y nadie ha movido el contador: la petición
+   // no cabe
+   private long reservar(int contador, int desfase, int n) {
+      long pos = contadores.get(contador);
+      while (true) {
+         if (listos(pos, desfase, n)) {
+            if (contadores.compareAndSet(contador, pos, pos + n)) {
+               return pos;
+            }
+            pos = contadores.get(contador);
+         } else {
+            long actual = contadores.get(contador);
+            if (actual == pos) {
+               return -1;
+            }
+            pos = actual;
+         }
+      }
+   }
+
+   // Si los n huecos desde pos tienen la secuencia de su posición más
+   // desfase: 0 si están libres, 1 si tienen producto
+   private boolean listos(long pos, int desfase, int n) {
+      int i = hueco(pos);
+      long secuencia = 2 * pos + desfase;
+      for (int k = 0; k < n; k++) {
+         if (secuencias.get(i) != secuencia) {
+            return false;
+         }
+         secuencia += 2;
+         if (++i == capacidad) {
+            i = 0;
+         }
+      }
+      return true;
+   }
+
+   // Pone la secuencia de los n huecos desde pos a 2 * posición +
+   // incremento (1 con producto, 2 * capacidad libre otra vez). Las
+   // escrituras solo necesitan que se vean después de la copia, y la
+   // barrera final hace que se vean antes de mirar las colas de espera:
+   // o el que se apunta en la cola ve los huecos, o nosotros le vemos a él
+   private void publicar(long pos, int n, long incremento) {
+      int i = hueco(pos);
+      long secuencia = 2 * pos + incremento;
+      for (int k = 0; k < n; k++) {
+         secuencias.lazySet(i, secuencia);
+         secuencia += 2;
+         if (++i == capacidad) {
+            i = 0;
+         }
+      }
+      VarHandle.fullFence();
+   }
+
+   // Espera hasta que merezca la pena volver a intentar la reserva: unas
+   // vueltas comprobando, unas cuantas cesiones del procesador y, si sigue
+   // sin caber, se apunta en la cola, lo vuelve a comprobar y se aparca.
+   // Quien nos despierta nos saca de la cola, y si nos despertamos por
+   // otra razón nos sacamos nosotros
+   private void esperar(ConcurrentLinkedQueue<Espera> esperando, int contador, int desfase, int n) {
+      for (int i = 0; i < VUELTAS; i++) {
+         if (listos(contadores.get(contador), desfase, n)) {
+            return;
+         }
+         Thread.onSpinWait();
+      }
+      for (int i = 0; i < CESIONES; i++) {
+         Thread.yield();
+         if (listos(contadores.get(contador), desfase, n)) {
+            return;
+         }
+      }
+
+      Espera espera = new Espera(Thread.currentThread(), n);
+      esperando.add(espera);
+      if (!listos(contadores.get(contador), desfase, n)) {
+         LockSupport.park(this);
+      }
+      esperando.remove(espera);
+   }
+
+   // Despierta a los que piden como mucho disponibles productos (o huecos).
+   // Si caben menos de los despertados, los que no quepan se vuelven a
+   // apuntar, y la siguiente operación del otro lado les vuelve a mirar
+   private static void despertar(ConcurrentLinkedQueue<Espera> esperando, long disponibles) {
+      if (esperando.isEmpty()) {
+         return;
+      }
+      for (Espera espera : esperando) {
+         if (espera.n <= disponibles && esperando.remove(espera)) {
+            LockSupport.unpark(espera.hilo);
+         }
+      }
+   }
+
+   /**
+    * Clase que guarda la petición de un proceso aparcado:
+    * - Hilo: el proceso aparcado
+    * - N: número de productos (o huecos) que pide
+    */
+   private static class Espera {
+      private final Thread hilo;
+      private final int n;
+
+      Espera(Thread hilo, int n) {
+         this.hilo = hilo;
+         this.n = n;
+      }
+   }
+}
@@ -0,0 +1,36 @@
+/**
+ * Multibuffer con operaciones sobre trozos de arrays
+ *
+ * Extiende es.upm.babel.cclib.MultiAlmacen (que no podemos cambiar) con dos operaciones que no
+ * crean arrays: el productor almacena un trozo de un array más grande y el consumidor extrae en
+ * un trozo de un array suyo, que puede reutilizar en cada llamada. Así un consumidor que siempre
+ * extrae en el mismo array no crea ningún objeto, y la copia de los productos es lo único que se
+ * hace dentro de la sección crítica.
+ *
+ * La especificación es la del MultiBuffer (ver MultiAlmacenSync), con la secuencia formada por
+ * los n productos de la posición desde en adelante. Si el trozo no cabe en el array se lanza
+ * IndexOutOfBoundsException, y si n es mayor que la mitad de la capacidad
+ * IllegalArgumentException, en los dos casos sin cambiar el multibuffer.
+ *
+ * Universidad Politecnica de Madrid
+ * Concurrencia
+ * Autor: Juan Francisco Casanova Ferrer
+ * github: https://github.com/joancasanova
+ */
+package tareas.tarea8;
+
+import es.upm.babel.cclib.MultiAlmacen;
+import es.upm.babel.cclib.Producto;
+
+public interface MultiAlmacenRangos extends MultiAlmacen {
+
+   /**
+    * Almacena los productos origen[desde], ..., origen[desde + n - 1].
+    */
+   void almacenar(Producto[] origen, int desde, int n);
+
+   /**
+    * Extrae n productos y los deja en destino[desde], ..., destino[desde + n - 1].
+    */
+   void extraer(Producto[] destino, int desde, int n);
+}
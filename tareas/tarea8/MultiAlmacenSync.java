@@ -46,44 +46,45 @@
  */
 package tareas.tarea8;
 
-import es.upm.babel.cclib.MultiAlmacen;
 import es.upm.babel.cclib.Producto;
+import tareas.tarea6.BufferCircular;
 
-class MultiAlmacenSync implements MultiAlmacen {
+import java.util.Objects;
+
+public class MultiAlmacenSync implements MultiAlmacenRangos {
     private int capacidad = 0;
-    private Producto[] almacenado = null;
-    private int aExtraer = 0;
-    private int aInsertar = 0;
-    private int nDatos = 0;
+    private BufferCircular almacenado = null;
 
    // Para evitar la construcción de almacenes sin inicializar la capacidad
    private MultiAlmacenSync() {
    }
 
    public MultiAlmacenSync(int n) {
-      almacenado = new Producto[n];
-      aExtraer = 0;
-      aInsertar = 0;
+      almacenado = new BufferCircular(n);
       capacidad = n;
-      nDatos = 0;
    }
 
    private int nDatos() {
-         return nDatos;
+         return almacenado.nDatos();
    }
    
    private int nHuecos() {
-      return capacidad - nDatos;
+      return capacidad - nDatos();
+   }
+
+   public void almacenar(Producto[] productos) {
+      almacenar(productos, 0, productos.length);
    }
 
-   synchronized public void almacenar(Producto[] productos) {
+   synchronized public void almacenar(Producto[] origen, int desde, int n) {
       // Evaluación de la PRE
-      if (productos.length > this.capacidad / 2) {
+      if (n > this.capacidad / 2) {
          throw new IllegalArgumentException("No se puede almacenar tantos datos");
       }
+      Objects.checkFromIndexSize(desde, n, origen.length);
 
       // Implementación de código de bloqueo para sincronización condicional
-      while (nHuecos() < productos.length) {
+      while (nHuecos() < n) {
          try {
             wait();
          } catch (InterruptedException e) {
@@ -92,22 +93,30 @@ class MultiAlmacenSync implements MultiAlmacen {
       }
 
       // Sección crítica
-      for (int i = 0; i < productos.length; i++) {
-         almacenado[aInsertar] = productos[i];
-         nDatos++;
-         aInsertar++;
-         aInsertar %= capacidad;
-      }
+      almacenado.poner(origen, desde, n);
 
       // Implementación de código de desbloqueo para sincronización condicional
       notifyAll();
    }
 
-   synchronized public Producto[] extraer(int n) {
+   public Producto[] extraer(int n) {
+      // Evaluación de la PRE, antes de crear el array del resultado
+      if (n > this.capacidad / 2) {
+         throw new IllegalArgumentException("No se puede extraer tantos datos");
+      }
+
+      // El array del resultado se crea fuera de la sección crítica
+      Producto[] result = new Producto[n];
+      extraer(result, 0, n);
+      return result;
+   }
+
+   synchronized public void extraer(Producto[] destino, int desde, int n) {
       // Evaluación de la PRE
       if (n > this.capacidad / 2) {
          throw new IllegalArgumentException("No se puede extraer tantos datos");
       }
+      Objects.checkFromIndexSize(desde, n, destino.length);
 
       // Implementación de código de bloqueo para sincronización condicional
       while (nDatos() < n) {
@@ -118,20 +127,10 @@ class MultiAlmacenSync implements MultiAlmacen {
          }
       }
 
-      Producto[] result = new Producto[n];
-
       // Sección crítica
-      for (int i = 0; i < result.length; i++) {
-         result[i] = almacenado[aExtraer];
-         almacenado[aExtraer] = null;
-         nDatos--;
-         aExtraer++;
-         aExtraer %= capacidad;
-      }
+      almacenado.quitar(destino, desde, n);
 
       // Implementación de código de desbloqueo para sincronización condicional
       notifyAll();
-
-      return result;
    }
 }
@@ -11,75 +11,76 @@
  */
 package tareas.tarea9;
 
-import es.upm.babel.cclib.MultiAlmacen;
 import es.upm.babel.cclib.Producto;
 import es.upm.babel.cclib.Monitor;
+import tareas.tarea6.BufferCircular;
+import tareas.tarea8.MultiAlmacenRangos;
 
-class MultiAlmacenMon implements MultiAlmacen {
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+public class MultiAlmacenMon implements MultiAlmacenRangos {
     private int capacidad = 0;
-    private Producto[] almacenado = null;
-    private int aExtraer = 0;
-    private int aInsertar = 0;
-    private int nDatos = 0;
+    private BufferCircular almacenado = null;
 
    // Declaración de atributos extras necesarios
    // para exclusión mutua y sincronización por condición
    private Monitor mutex;
-   private Monitor.Cond[] cAlm;
-   private Monitor.Cond[] cExt;
+
+   // Condiciones de los productores y consumidores bloqueados, indexadas
+   // por el número de productos que piden: solo están los tamaños con
+   // alguien esperando, así que el desbloqueo busca en O(log n) el
+   // tamaño mayor que ya cabe en vez de recorrer todos los tamaños
+   private TreeMap<Integer, Monitor.Cond> cAlm;
+   private TreeMap<Integer, Monitor.Cond> cExt;
 
    // Para evitar la construcción de almacenes sin inicializar la capacidad
    private MultiAlmacenMon() {
    }
 
    public MultiAlmacenMon(int n) {
-      almacenado = new Producto[n];
-      aExtraer = 0;
-      aInsertar = 0;
+      almacenado = new BufferCircular(n);
       capacidad = n;
-      nDatos = 0;
 
       // Inicialización de otros atributos
       mutex = new Monitor();
-      cAlm = new Monitor.Cond[capacidad/2 + 1];
-      cExt = new Monitor.Cond[capacidad/2 + 1];
-
-      for (int i = 0; i < cAlm.length; i++) {
-         cAlm[i] = mutex.newCond();
-         cExt[i] = mutex.newCond();
-      }
+      cAlm = new TreeMap<>();
+      cExt = new TreeMap<>();
    }
 
    private int nDatos() {
-         return nDatos;
+         return almacenado.nDatos();
    }
    
    private int nHuecos() {
-      return capacidad - nDatos;
+      return capacidad - nDatos();
    }
 
    public void almacenar(Producto[] productos) {
+      almacenar(productos, 0, productos.length);
+   }
+
+   public void almacenar(Producto[] origen, int desde, int n) {
+      // El trozo se comprueba antes de entrar: no depende del estado
+      Objects.checkFromIndexSize(desde, n, origen.length);
+
       mutex.enter();
 
       // Evaluación de la PRE
-      if (productos.length > this.capacidad / 2) {
+      if (n > this.capacidad / 2) {
          mutex.leave();
          throw new IllegalArgumentException("No se puede almacenar tantos datos");
       }
 
       // Implementación de código de bloqueo para
       // exclusión mutua y sincronización condicional
-      if (nHuecos() < productos.length) {
-         cAlm[productos.length].await();
+      if (nHuecos() < n) {
+         esperar(cAlm, n);
       }
 
       // Sección crítica
-      for (int i = 0; i < productos.length; i++) {
-         almacenado[aInsertar] = productos[i];
-         nDatos++;
-         aInsertar++;
-         aInsertar %= capacidad;
-      }
+      almacenado.poner(origen, desde, n);
 
       // Implementación de código de desbloqueo para
       // sincronización condicional y liberación de la exclusión mutua
@@ -88,6 +89,22 @@ class MultiAlmacenMon implements MultiAlmacen {
    }
 
    public Producto[] extraer(int n) {
+      // Evaluación de la PRE, antes de crear el array del resultado (la
+      // capacidad no cambia, así que no hace falta entrar en el monitor)
+      if (n > this.capacidad / 2) {
+         throw new IllegalArgumentException("No se puede extraer tantos datos");
+      }
+
+      // El array del resultado se crea fuera de la sección crítica
+      Producto[] result = new Producto[n];
+      extraer(result, 0, n);
+      return result;
+   }
+
+   public void extraer(Producto[] destino, int desde, int n) {
+      // El trozo se comprueba antes de entrar: no depende del estado
+      Objects.checkFromIndexSize(desde, n, destino.length);
+
       mutex.enter();
 
       // Evaluación de la PRE
@@ -99,41 +116,49 @@ class MultiAlmacenMon implements MultiAlmacen {
       // Implementación de código de bloqueo para exclusión
       // mutua y sincronización condicional
       if (nDatos() < n) {
-         cAlm[n].await();
+         esperar(cExt, n);
       }
 
-      Producto[] result = new Producto[n];
-
       // Sección crítica
-      for (int i = 0; i < result.length; i++) {
-         result[i] = almacenado[aExtraer];
-         almacenado[aExtraer] = null;
-         nDatos--;
-         aExtraer++;
-         aExtraer %= capacidad;
-      }
+      almacenado.quitar(destino, desde, n);
 
       // Implementación de código de desbloqueo para
       // sincronización condicional y liberación de la exclusión mutua
       desbloqueo();
       mutex.leave();
+   }
 
-      return result;
+   // Bloquea al proceso en la condición de su tamaño, que se crea la
+   // primera vez que alguien espera con ese tamaño
+   private void esperar(TreeMap<Integer, Monitor.Cond> condiciones, int n) {
+      condiciones.computeIfAbsent(n, k -> mutex.newCond()).await();
    }
 
+   // Desbloquea a un proceso cuya condición se cumple, primero los
+   // productores y luego los consumidores, y de cada lado el que pide
+   // más productos de los que caben (así los pequeños no dejan sin
+   // servir a los grandes). Con cclib solo se puede señalizar a uno por
+   // operación, pero el desbloqueado ejecuta la suya antes de que entre
+   // nadie más y vuelve a llamar a desbloqueo: cada operación despierta
+   // en cadena a todos los que pueden seguir, sin perder ninguno
    private void desbloqueo() {
-      boolean signaled = false;
-      for (int i = 1; i < cAlm.length && !signaled; i++) {
-         if (nHuecos() >= i && cAlm[i].waiting() > 0) {
-            signaled = true;
-            cAlm[i].signal();
-         }
+      if (!despertar(cAlm, nHuecos())) {
+         despertar(cExt, nDatos());
+      }
+   }
+
+   // Señaliza al primero que espera con el mayor tamaño que no pasa de
+   // disponibles. Los tamaños sin nadie esperando salen del índice
+   private boolean despertar(TreeMap<Integer, Monitor.Cond> condiciones, int disponibles) {
+      Map.Entry<Integer, Monitor.Cond> entrada = condiciones.floorEntry(disponibles);
+      if (entrada == null) {
+         return false;
       }
-      for (int i = 1; i < cExt.length && !signaled; i++) {
-         if (nDatos() >= i && cExt[i].waiting() > 0) {
-            signaled = true;
-            cExt[i].signal();
-         }
+      Monitor.Cond condicion = entrada.getValue();
+      condicion.signal();
+      if (condicion.waiting() == 0) {
+         condiciones.remove(entrada.getKey());
       }
+      return true;
    }
 }